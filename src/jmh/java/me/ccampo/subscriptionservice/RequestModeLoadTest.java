@@ -0,0 +1,185 @@
+package me.ccampo.subscriptionservice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the request modes under load: many slow consumers long polling a subscription which rarely gets a message,
+ * while publishers create messages as fast as they can. In blocking mode, every waiting consumer holds one of Tomcat's
+ * threads, so once there are more consumers than threads, publishes queue up behind them. In async mode, waiting
+ * consumers hold no thread, so publishing isn't affected by them.
+ * <p>
+ * Each mode gets its own instance of the app, on a random port. Run it with {@code ./gradlew loadTest}, optionally with
+ * {@code -Pconsumers=}, {@code -Ppublishers=}, {@code -PdurationSeconds=} and {@code -PtomcatThreads=}.
+ *
+ * @author Chris Campo
+ */
+public final class RequestModeLoadTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final int consumers;
+    private final int publishers;
+    private final long durationMillis;
+    private final int tomcatThreads;
+
+    private RequestModeLoadTest(final int consumers, final int publishers, final long durationMillis,
+            final int tomcatThreads) {
+        this.consumers = consumers;
+        this.publishers = publishers;
+        this.durationMillis = durationMillis;
+        this.tomcatThreads = tomcatThreads;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final RequestModeLoadTest test = new RequestModeLoadTest(
+                Integer.getInteger("consumers", 1000),
+                Integer.getInteger("publishers", 16),
+                TimeUnit.SECONDS.toMillis(Long.getLong("durationSeconds", 20)),
+                Integer.getInteger("tomcatThreads", 200));
+        final List<String> results = new ArrayList<>();
+        for (final String mode : Arrays.asList("BLOCKING", "ASYNC")) {
+            results.add(test.run(mode));
+        }
+        System.out.printf("%n%d consumers, %d publishers, %d Tomcat threads, %d s per mode%n", test.consumers,
+                test.publishers, test.tomcatThreads, TimeUnit.MILLISECONDS.toSeconds(test.durationMillis));
+        System.out.printf("%-10s %12s %10s %10s %10s %10s %10s%n", "mode", "publishes/s", "p50 ms", "p99 ms", "max ms",
+                "errors", "polls");
+        results.forEach(System.out::println);
+        System.exit(0);
+    }
+
+    @NotNull
+    private String run(@NotNull final String mode) throws Exception {
+        final ConfigurableApplicationContext context = SpringApplication.run(Application.class,
+                "--server.port=0",
+                "--server.tomcat.max-threads=" + tomcatThreads,
+                "--subscription-service.requests.mode=" + mode,
+                "--subscription-service.requests.max-wait-ms=" + durationMillis,
+                "--subscription-service.logging.sample-rate=0",
+                "--logging.level.root=WARN");
+        try {
+            final String base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+            final String idle = createSubscription(base, "idle");
+            createSubscription(base, "load");
+
+            final long deadline = System.currentTimeMillis() + durationMillis;
+            final AtomicLong polls = new AtomicLong();
+            final AtomicLong errors = new AtomicLong();
+            final ExecutorService consumerThreads = Executors.newFixedThreadPool(consumers);
+            for (int i = 0; i < consumers; i++) {
+                consumerThreads.execute(() -> {
+                    while (System.currentTimeMillis() < deadline) {
+                        try {
+                            // Nothing is ever published to it, so every poll waits until the test is over
+                            request(base + "/subscriptions/" + idle + "?view=metadata&waitMs=" + durationMillis,
+                                    "GET", null);
+                            polls.incrementAndGet();
+                        } catch (final IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            // Let the consumers start waiting first
+            Thread.sleep(Math.min(2000, durationMillis / 10));
+
+            final List<long[]> latencies = new ArrayList<>();
+            final CountDownLatch done = new CountDownLatch(publishers);
+            final ExecutorService publisherThreads = Executors.newFixedThreadPool(publishers);
+            final long start = System.nanoTime();
+            for (int i = 0; i < publishers; i++) {
+                final long[] samples = new long[1 << 18];
+                latencies.add(samples);
+                publisherThreads.execute(() -> {
+                    int count = 0;
+                    while (System.currentTimeMillis() < deadline && count < samples.length - 1) {
+                        final long sent = System.nanoTime();
+                        try {
+                            request(base + "/messages", "POST", "type=load&content=hello");
+                            samples[++count] = System.nanoTime() - sent;
+                        } catch (final IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    samples[0] = count;
+                    done.countDown();
+                });
+            }
+            done.await();
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            publisherThreads.shutdown();
+            consumerThreads.shutdownNow();
+
+            final long[] all = latencies.stream()
+                    .flatMapToLong(samples -> Arrays.stream(samples, 1, (int) samples[0] + 1))
+                    .sorted()
+                    .toArray();
+            return String.format("%-10s %12.0f %10.1f %10.1f %10.1f %10d %10d", mode, all.length / seconds,
+                    percentile(all, 0.5), percentile(all, 0.99), percentile(all, 1), errors.get(), polls.get());
+        } finally {
+            context.close();
+        }
+    }
+
+    private static double percentile(@NotNull final long[] sorted, final double fraction) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        final int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    @NotNull
+    private static String createSubscription(@NotNull final String base, @NotNull final String type)
+            throws IOException {
+        final JsonNode subscription = objectMapper.readTree(
+                request(base + "/subscriptions", "POST", "name=" + type + "&messageTypes=" + type));
+        return subscription.get("id").asText();
+    }
+
+    @NotNull
+    private static byte[] request(@NotNull final String url, @NotNull final String method, final String form)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if (form != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (final OutputStream out = connection.getOutputStream()) {
+                out.write(form.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (connection.getResponseCode() >= 400) {
+            throw new IOException(method + " " + url + " returned " + connection.getResponseCode());
+        }
+        try (final InputStream in = connection.getInputStream()) {
+            final byte[] buffer = new byte[8192];
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            return body.toByteArray();
+        }
+    }
+}
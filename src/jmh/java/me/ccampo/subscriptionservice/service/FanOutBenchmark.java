@@ -0,0 +1,98 @@
+package me.ccampo.subscriptionservice.service;
+
+import com.google.common.collect.ImmutableSet;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.OverflowPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures delivering a message to every supporting subscription, both on a single thread and with several publishers
+ * contending for the same subscriptions. Each subscription supports a single type, spread evenly over the types, so
+ * every message is delivered to {@code subscriptions / messageTypes} mailboxes. The mailboxes start out full, so every
+ * delivery also drops the oldest message, as it would in a long running service.
+ *
+ * @author Chris Campo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"10", "1000"})
+    public int subscriptions;
+
+    @Param({"1", "100"})
+    public int messageTypes;
+
+    @Param({"100", "10000"})
+    public int mailboxSize;
+
+    private SubscriptionService subscriptionService;
+    private Message[] messages;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        subscriptionService = new SubscriptionService(new ConcurrentHashMap<>(), mailboxSize,
+                OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < subscriptions; i++) {
+            subscriptionService.createSubscription("subscription-" + i, ImmutableSet.of(type(i % messageTypes)));
+        }
+        messages = new Message[messageTypes];
+        for (int i = 0; i < messageTypes; i++) {
+            messages[i] = new Message(type(i), "content-" + i);
+        }
+        for (int i = 0; i < mailboxSize; i++) {
+            for (final Message message : messages) {
+                subscriptionService.sendMessageToSupportingSubscriptions(message);
+            }
+        }
+    }
+
+    @Benchmark
+    public void fanOut(final Publisher publisher) {
+        subscriptionService.sendMessageToSupportingSubscriptions(publisher.next(messages));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void fanOutContended(final Publisher publisher) {
+        subscriptionService.sendMessageToSupportingSubscriptions(publisher.next(messages));
+    }
+
+    private static String type(final int index) {
+        return "type-" + index;
+    }
+
+    /**
+     * Cycles through the message types, separately for each publishing thread
+     */
+    @State(Scope.Thread)
+    public static class Publisher {
+
+        private int next;
+
+        Message next(final Message[] messages) {
+            final Message message = messages[next];
+            next = (next + 1) % messages.length;
+            return message;
+        }
+    }
+}
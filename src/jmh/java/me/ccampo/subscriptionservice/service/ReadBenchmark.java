@@ -0,0 +1,105 @@
+package me.ccampo.subscriptionservice.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.MessagePage;
+import me.ccampo.subscriptionservice.model.OverflowPolicy;
+import me.ccampo.subscriptionservice.model.Subscription;
+import me.ccampo.subscriptionservice.model.resource.SubscriptionResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the read paths: filtering a mailbox when a subscription's types change, rendering a subscription (with its
+ * whole mailbox, or a page of it), and listing the retained messages.
+ *
+ * @author Chris Campo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"1", "100"})
+    public int messageTypes;
+
+    @Param({"100", "10000"})
+    public int mailboxSize;
+
+    private Subscription subscription;
+    private ImmutableSet<String> filterTypes;
+    private MessageService messageService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final ImmutableSet.Builder<String> types = ImmutableSet.builder();
+        for (int i = 0; i < messageTypes; i++) {
+            types.add("type-" + i);
+        }
+        final ImmutableSet<String> allTypes = types.build();
+        // Keep roughly half of the types, so filtering actually has to drop messages
+        filterTypes = ImmutableSet.copyOf(allTypes.asList().subList(0, Math.max(1, messageTypes / 2)));
+
+        final SubscriptionService subscriptionService = new SubscriptionService(new ConcurrentHashMap<>(),
+                mailboxSize, OverflowPolicy.DROP_OLDEST);
+        subscription = subscriptionService.createSubscription("subscription", allTypes);
+        messageService = new MessageService(new BoundedMessageQueue(mailboxSize, 0, 0), subscriptionService);
+        for (int i = 0; i < mailboxSize; i++) {
+            messageService.createMessage("type-" + (i % messageTypes), "content-" + i);
+        }
+        subscription = subscriptionService.getSubscriptionById(subscription.id);
+    }
+
+    @Benchmark
+    public Subscription withMessageTypes() {
+        return subscription.withMessageTypes(filterTypes);
+    }
+
+    @Benchmark
+    public SubscriptionResource fromSubscription() {
+        return SubscriptionResource.fromSubscription(subscription);
+    }
+
+    @Benchmark
+    public SubscriptionResource fromSubscriptionPage() {
+        return SubscriptionResource.fromSubscription(subscription, 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public ImmutableList<Message> getMessages() {
+        return messageService.getMessages();
+    }
+
+    @Benchmark
+    public MessagePage getMessagesPage() {
+        return messageService.getMessages(0, PAGE_SIZE);
+    }
+
+    // Readers share the retained message queue's lock
+    @Benchmark
+    @Threads(4)
+    public List<Message> getMessagesPageContended() {
+        return messageService.getMessages(0, PAGE_SIZE).messages;
+    }
+}
@@ -0,0 +1,72 @@
+package me.ccampo.subscriptionservice.service;
+
+import com.google.common.collect.ImmutableSet;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.OverflowPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how delivering a message with a wide fan-out scales with the number of shards the subscriptions are
+ * partitioned across. Every subscription supports the one message type, so each message goes to all of them; with one
+ * shard that all happens on the publishing thread, with more it's spread over the fan-out pool. The mailboxes start
+ * out full, so every delivery also drops the oldest message.
+ *
+ * @author Chris Campo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardedFanOutBenchmark {
+
+    private static final String TYPE = "type";
+    private static final int MAILBOX_SIZE = 100;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    @Param({"1000", "100000"})
+    public int subscriptions;
+
+    private SubscriptionService subscriptionService;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // The default threshold, as configured in application.properties
+        subscriptionService = new SubscriptionService(shards, MAILBOX_SIZE, OverflowPolicy.DROP_OLDEST, 256);
+        for (int i = 0; i < subscriptions; i++) {
+            subscriptionService.createSubscription("subscription-" + i, ImmutableSet.of(TYPE));
+        }
+        message = new Message(TYPE, "content");
+        for (int i = 0; i < MAILBOX_SIZE; i++) {
+            subscriptionService.sendMessageToSupportingSubscriptions(message);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        subscriptionService.stop();
+    }
+
+    @Benchmark
+    public void fanOut() {
+        subscriptionService.sendMessageToSupportingSubscriptions(message);
+    }
+}
@@ -1,20 +1,43 @@
 package me.ccampo.subscriptionservice.controller;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import me.ccampo.subscriptionservice.exception.BatchTooLargeException;
 import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.MessagePage;
+import me.ccampo.subscriptionservice.model.resource.MessageRequest;
 import me.ccampo.subscriptionservice.service.MessageService;
+import me.ccampo.subscriptionservice.service.PublishResult;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+
+import static java.util.stream.Collectors.joining;
 
 /**
  * @author Chris Campo
@@ -25,11 +48,26 @@ public class MessageController {
 
     private static final Logger log = LoggerFactory.getLogger(MessageController.class);
 
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final String REJECTED_COUNT_HEADER = "X-Rejected-Count";
+    private static final String REJECTED_BY_HEADER = "X-Rejected-By";
+    // Keeps the header well within the container's limit, however many subscriptions rejected the message
+    private static final int MAX_REJECTED_IDS_LISTED = 100;
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+
     private final MessageService messageService;
+    private final ObjectMapper objectMapper;
+    private final RequestExecutor requestExecutor;
+    private final int maxBatchSize;
 
     @Autowired
-    public MessageController(@NotNull final MessageService messageService) {
+    public MessageController(@NotNull final MessageService messageService, @NotNull final ObjectMapper objectMapper,
+            @NotNull final RequestExecutor requestExecutor,
+            @Value("${subscription-service.requests.max-batch-size:10000}") final int maxBatchSize) {
         this.messageService = Objects.requireNonNull(messageService, "messageService");
+        this.objectMapper = Objects.requireNonNull(objectMapper, "objectMapper");
+        this.requestExecutor = Objects.requireNonNull(requestExecutor, "requestExecutor");
+        this.maxBatchSize = maxBatchSize;
     }
 
     /**
@@ -37,22 +75,133 @@ public class MessageController {
      *
      * @param type the type of message
      * @param content the content of the message
-     * @return An HTTP entity containing the new message object
+     * @return An HTTP entity containing the new message object; 202 Accepted instead of 201 Created if the message
+     * was only queued for delivery. Full subscriptions which rejected the message are listed in the headers.
      */
     @NotNull
     @RequestMapping(method = RequestMethod.POST)
-    public ResponseEntity<Message> createMessage(@RequestParam @NotNull final String type,
+    public DeferredResult<ResponseEntity<Message>> createMessage(@RequestParam @NotNull final String type,
             @RequestParam @NotNull final String content) {
-        log.info("POST /messages; type = {}, content = {}", type, content);
-        final Message message = messageService.createMessage(type, content);
-        log.info("Successfully created message with ID {}", message.id);
-        return new ResponseEntity<>(message, HttpStatus.CREATED);
+        // Only summarized by the HotPathLog at INFO, and never with the content
+        log.debug("POST /messages; type = {}", type);
+        return requestExecutor.execute(() -> {
+            final PublishResult<Message> result = messageService.createMessage(type, content);
+            log.debug("Successfully created message with ID {}", result.published.id);
+            return published(result);
+        });
+    }
+
+    /**
+     * Creates a batch of messages in the system, in order
+     *
+     * @param requests a JSON array of objects, each with a type and content
+     * @return An HTTP entity containing the new message objects; 202 Accepted instead of 201 Created if the messages
+     * were only queued for delivery. Full subscriptions which rejected any of them are listed in the headers.
+     */
+    @NotNull
+    @RequestMapping(value = "/batch", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<List<Message>>> createMessages(
+            @RequestBody @NotNull final List<MessageRequest> requests) {
+        log.debug("POST /messages/batch; {} message(s)", requests.size());
+        checkBatchSize(requests.size());
+        return createBatch(requests);
+    }
+
+    /**
+     * Creates a batch of messages in the system, in order, from newline delimited JSON; one object per line, each with
+     * a type and content. Reading stops as soon as the batch is too large, so an oversized body is never held in
+     * memory.
+     */
+    @NotNull
+    @RequestMapping(value = "/batch", method = RequestMethod.POST, consumes = NDJSON_VALUE)
+    public DeferredResult<ResponseEntity<List<Message>>> createMessagesFromNdjson(@NotNull final InputStream body)
+            throws IOException {
+        final List<MessageRequest> requests = new ArrayList<>();
+        try (final MappingIterator<MessageRequest> values =
+                     objectMapper.readerFor(MessageRequest.class).readValues(body)) {
+            while (values.hasNextValue()) {
+                requests.add(values.nextValue());
+                checkBatchSize(requests.size());
+            }
+        } catch (final JsonProcessingException e) {
+            throw new HttpMessageNotReadableException("Could not read NDJSON: " + e.getOriginalMessage(), e);
+        }
+        log.debug("POST /messages/batch (NDJSON); {} message(s)", requests.size());
+        return createBatch(requests);
+    }
+
+    /**
+     * Gets the state of the async delivery queue
+     *
+     * @return An HTTP entity containing the number of messages waiting to be delivered and the queue capacity
+     */
+    @NotNull
+    @RequestMapping(value = "/queue", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, Object>> getQueue() {
+        final Map<String, Object> queue = ImmutableMap.of(
+                "async", messageService.isAsyncDelivery(),
+                "depth", messageService.getPendingDeliveryCount(),
+                "capacity", messageService.getPendingDeliveryCapacity());
+        return new ResponseEntity<>(queue, HttpStatus.OK);
+    }
+
+    /**
+     * Gets the number of messages retained by GET /messages, and how many have been evicted (by reason)
+     *
+     * @return An HTTP entity containing the retention statistics
+     */
+    @NotNull
+    @RequestMapping(value = "/retention", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, Long>> getRetention() {
+        return new ResponseEntity<>(messageService.getRetentionStats(), HttpStatus.OK);
+    }
+
+    private void checkBatchSize(final int size) throws BatchTooLargeException {
+        if (size > maxBatchSize) {
+            throw new BatchTooLargeException("Batches are limited to " + maxBatchSize + " message(s)");
+        }
+    }
+
+    @NotNull
+    private DeferredResult<ResponseEntity<List<Message>>> createBatch(@NotNull final List<MessageRequest> requests) {
+        return requestExecutor.execute(() -> {
+            final PublishResult<ImmutableList<Message>> result = messageService.createMessages(requests);
+            log.debug("Successfully created {} message(s)", result.published.size());
+            return published(result);
+        });
+    }
+
+    /**
+     * A rejection by a full subscription is still a success: every other subscription got the message, so retrying
+     * would only deliver it to them again. The rejecting subscriptions are listed in headers instead.
+     */
+    @NotNull
+    private <T> ResponseEntity<T> published(@NotNull final PublishResult<? extends T> result) {
+        final HttpHeaders headers = new HttpHeaders();
+        if (!result.rejectedIds.isEmpty()) {
+            headers.set(REJECTED_COUNT_HEADER, String.valueOf(result.rejectedIds.size()));
+            headers.set(REJECTED_BY_HEADER, result.rejectedIds.stream()
+                    .limit(MAX_REJECTED_IDS_LISTED)
+                    .map(UUID::toString)
+                    .collect(joining(",")));
+        }
+        final HttpStatus status = messageService.isAsyncDelivery() ? HttpStatus.ACCEPTED : HttpStatus.CREATED;
+        return new ResponseEntity<>(result.published, headers, status);
     }
 
-    // Not part of the API spec, but useful for debugging at least
+    // Not part of the API spec, but useful for debugging at least. Pass the `X-Next-Cursor` response header back as
+    // `after` to get the next page.
     @NotNull
     @RequestMapping(method = RequestMethod.GET)
-    public ResponseEntity<List<Message>> getAllMessages() {
-        return new ResponseEntity<>(messageService.getMessages(), HttpStatus.OK);
+    public DeferredResult<ResponseEntity<List<Message>>> getAllMessages(
+            @RequestParam @NotNull final Optional<Long> after,
+            @RequestParam @NotNull final Optional<Integer> limit) {
+        Paging.checkLimit(limit);
+        return requestExecutor.execute(() -> {
+            final MessagePage page = messageService.getMessages(after.orElse(0L), limit.orElse(Integer.MAX_VALUE));
+            final HttpHeaders headers = new HttpHeaders();
+            headers.set(NEXT_CURSOR_HEADER, String.valueOf(page.nextCursor));
+            return new ResponseEntity<>(page.messages, headers, HttpStatus.OK);
+        });
     }
 }
@@ -0,0 +1,40 @@
+package me.ccampo.subscriptionservice.controller;
+
+import me.ccampo.subscriptionservice.metrics.MetricsRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Objects;
+
+/**
+ * @author Chris Campo
+ */
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    static final String PROMETHEUS_TEXT_VALUE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricsRegistry metrics;
+
+    @Autowired
+    public MetricsController(@NotNull final MetricsRegistry metrics) {
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+    }
+
+    /**
+     * Gets every metric, in the Prometheus text exposition format, so it can be scraped directly
+     *
+     * @return An HTTP entity containing the metrics
+     */
+    @NotNull
+    @RequestMapping(method = RequestMethod.GET, produces = PROMETHEUS_TEXT_VALUE)
+    public ResponseEntity<String> getMetrics() {
+        return new ResponseEntity<>(metrics.scrape(), HttpStatus.OK);
+    }
+}
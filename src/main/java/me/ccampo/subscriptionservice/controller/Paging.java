@@ -0,0 +1,24 @@
+package me.ccampo.subscriptionservice.controller;
+
+import me.ccampo.subscriptionservice.exception.BadRequestException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Optional;
+
+/**
+ * Validates the paging parameters shared by the read endpoints, before any work is handed off, so that a bad value is
+ * a 400 rather than a failure halfway through the response.
+ *
+ * @author Chris Campo
+ */
+final class Paging {
+
+    private Paging() {
+    }
+
+    static void checkLimit(@NotNull final Optional<Integer> limit) throws BadRequestException {
+        if (limit.isPresent() && limit.get() < 0) {
+            throw new BadRequestException("limit must not be negative, but was " + limit.get());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package me.ccampo.subscriptionservice.controller;
+
+import me.ccampo.subscriptionservice.exception.RequestQueueFullException;
+import me.ccampo.subscriptionservice.exception.RequestTimeoutException;
+import me.ccampo.subscriptionservice.metrics.MetricsRegistry;
+import me.ccampo.subscriptionservice.service.SubscriptionService;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PreDestroy;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Executes the work of the API's requests according to the {@link RequestMode}. Handlers return the
+ * {@link DeferredResult} from here, and the servlet container writes the response once it's set.
+ * <p>
+ * In blocking mode, the work is done right away on the container thread, so the result is already set when the handler
+ * returns. In async mode, it's queued for a bounded pool of workers, and the container thread goes straight back to
+ * serving other connections; when the queue is full, the request fails fast with 503 instead of piling up, and when it
+ * isn't handled within the configured timeout, it fails with 503 too (and its work is skipped if it hasn't started
+ * yet). Long polls hold no thread at all while they wait: they're woken up by the delivery of a message, like
+ * subscription streams, and their own wait is their timeout.
+ *
+ * @author Chris Campo
+ */
+@Component
+public class RequestExecutor {
+
+    private final SubscriptionService subscriptionService;
+    private final RequestMode mode;
+    private final long maxWaitMillis;
+    private final long timeoutMillis;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    @Autowired
+    public RequestExecutor(@NotNull final SubscriptionService subscriptionService,
+            @NotNull final MetricsRegistry metrics,
+            @Value("${subscription-service.requests.mode:BLOCKING}") final String mode,
+            @Value("${subscription-service.requests.worker-threads:16}") final int workerThreads,
+            @Value("${subscription-service.requests.queue-capacity:10000}") final int queueCapacity,
+            @Value("${subscription-service.requests.max-wait-ms:60000}") final long maxWaitMillis,
+            @Value("${subscription-service.requests.timeout-ms:30000}") final long timeoutMillis) {
+        this.subscriptionService = Objects.requireNonNull(subscriptionService, "subscriptionService");
+        this.mode = RequestMode.parse(mode);
+        this.maxWaitMillis = maxWaitMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    final Thread thread = new Thread(runnable, "request-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        metrics.gauge("pending_requests", "Number of requests waiting for a worker in async request mode",
+                () -> workers.getQueue().size());
+        metrics.gauge("waiting_long_polls", "Number of long polls waiting for a message", waiting::get);
+    }
+
+    @PreDestroy
+    public void stop() {
+        workers.shutdownNow();
+    }
+
+    @NotNull
+    public RequestMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Does the work of a request, now or on a worker depending on the mode. Anything it throws is handled as if the
+     * handler had thrown it. The handler has to read anything it needs from the request itself (e.g. its URI) before
+     * calling this, since the work may not be done on the container thread.
+     */
+    @NotNull
+    public <T> DeferredResult<T> execute(@NotNull final Callable<T> work) {
+        final DeferredResult<T> result = new DeferredResult<>(timeoutMillis);
+        if (mode == RequestMode.BLOCKING) {
+            complete(result, work);
+        } else {
+            result.onTimeout(() -> result.setErrorResult(new RequestTimeoutException(
+                    "The request was not handled within " + timeoutMillis + " ms")));
+            submit(result, work);
+        }
+        return result;
+    }
+
+    /**
+     * Waits until {@code ready} (e.g. the subscription has a message the consumer hasn't seen yet), or up to
+     * {@code waitMillis} (capped at the configured maximum), and then does the work of the request. {@code ready} is
+     * checked again each time a message is delivered to the subscription, on the publisher's thread, so it must be
+     * cheap; if it throws (e.g. the subscription was deleted), the wait is over.
+     */
+    @NotNull
+    public <T> DeferredResult<T> awaitDelivery(@NotNull final UUID id, final long waitMillis,
+            @NotNull final BooleanSupplier ready, @NotNull final Callable<T> work) {
+        final long timeoutMillis = Math.min(waitMillis, maxWaitMillis);
+        if (timeoutMillis <= 0) {
+            return execute(work);
+        }
+        if (mode == RequestMode.BLOCKING) {
+            final DeferredResult<T> result = new DeferredResult<>();
+            awaitBlocking(id, timeoutMillis, ready);
+            complete(result, work);
+            return result;
+        }
+        final LongPoll<T> poll = new LongPoll<>(id, ready, work, new DeferredResult<>(timeoutMillis));
+        waiting.incrementAndGet();
+        subscriptionService.addDeliveryListener(id, poll);
+        poll.result.onTimeout(poll::timeout);
+        // E.g. the consumer went away
+        poll.result.onCompletion(poll::finish);
+        // A message may have been delivered before the listener was added
+        poll.run();
+        return poll.result;
+    }
+
+    private void awaitBlocking(@NotNull final UUID id, final long timeoutMillis, @NotNull final BooleanSupplier ready) {
+        final Semaphore delivered = new Semaphore(0);
+        final Runnable listener = delivered::release;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        waiting.incrementAndGet();
+        subscriptionService.addDeliveryListener(id, listener);
+        try {
+            long remaining = timeoutMillis;
+            while (!isReady(ready) && remaining > 0) {
+                delivered.tryAcquire(remaining, TimeUnit.MILLISECONDS);
+                remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscriptionService.removeDeliveryListener(id, listener);
+            waiting.decrementAndGet();
+        }
+    }
+
+    private <T> void submit(@NotNull final DeferredResult<T> result, @NotNull final Callable<T> work) {
+        try {
+            workers.execute(() -> {
+                // Timed out while it was queued; the client has already been told
+                if (!result.isSetOrExpired()) {
+                    complete(result, work);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            result.setErrorResult(new RequestQueueFullException("Too many requests are already waiting to be handled"));
+        }
+    }
+
+    private static <T> void complete(@NotNull final DeferredResult<T> result, @NotNull final Callable<T> work) {
+        try {
+            result.setResult(work.call());
+        } catch (final Exception e) {
+            result.setErrorResult(e);
+        }
+    }
+
+    private final class LongPoll<T> implements Runnable {
+
+        private final UUID id;
+        private final BooleanSupplier ready;
+        private final Callable<T> work;
+        private final DeferredResult<T> result;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private LongPoll(@NotNull final UUID id, @NotNull final BooleanSupplier ready, @NotNull final Callable<T> work,
+                @NotNull final DeferredResult<T> result) {
+            this.id = Objects.requireNonNull(id, "id");
+            this.ready = Objects.requireNonNull(ready, "ready");
+            this.work = Objects.requireNonNull(work, "work");
+            this.result = Objects.requireNonNull(result, "result");
+        }
+
+        // The delivery listener
+        @Override
+        public void run() {
+            if (isReady(ready) && finish()) {
+                submit(result, work);
+            }
+        }
+
+        private void timeout() {
+            // The response has to be set before this returns, or it'll be a 503; it's cheap, so do it right here
+            finish();
+            complete(result, work);
+        }
+
+        /**
+         * @return false if it was already finished
+         */
+        private boolean finish() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            subscriptionService.removeDeliveryListener(id, this);
+            waiting.decrementAndGet();
+            return true;
+        }
+    }
+
+    private static boolean isReady(@NotNull final BooleanSupplier ready) {
+        try {
+            return ready.getAsBoolean();
+        } catch (final RuntimeException e) {
+            // Let the work report it
+            return true;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package me.ccampo.subscriptionservice.controller;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * How the API's requests are executed; see {@link RequestExecutor}.
+ *
+ * @author Chris Campo
+ */
+public enum RequestMode {
+    /** Every request is handled on the servlet container thread which received it, and holds it until it's done */
+    BLOCKING,
+    /**
+     * Requests are handed off to a bounded pool of workers, and waiting requests (long polls) hold no thread at all,
+     * so the container's threads are only ever busy reading requests and writing responses
+     */
+    ASYNC;
+
+    /**
+     * Parses a mode leniently, so that both {@code ASYNC} and {@code async} are accepted.
+     */
+    @NotNull
+    public static RequestMode parse(@NotNull final String value) {
+        return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+}
@@ -1,25 +1,42 @@
 package me.ccampo.subscriptionservice.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import me.ccampo.subscriptionservice.model.OverflowPolicy;
 import me.ccampo.subscriptionservice.model.Subscription;
+import me.ccampo.subscriptionservice.model.resource.BatchResult;
+import me.ccampo.subscriptionservice.model.resource.SubscriptionRequest;
 import me.ccampo.subscriptionservice.model.resource.SubscriptionResource;
+import me.ccampo.subscriptionservice.model.resource.SubscriptionUpdateRequest;
 import me.ccampo.subscriptionservice.service.SubscriptionService;
+import me.ccampo.subscriptionservice.service.SubscriptionStreamService;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
 
+import static java.util.stream.Collectors.collectingAndThen;
+import static java.util.stream.Collectors.toList;
+
 /**
  * @author Chris Campo
  */
@@ -29,59 +46,198 @@ public class SubscriptionController {
 
     private static final Logger log = LoggerFactory.getLogger(SubscriptionController.class);
 
+    private static final String METADATA_VIEW = "metadata";
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+    private static final String EVENT_STREAM_VALUE = "text/event-stream";
+
     private final SubscriptionService subscriptionService;
+    private final SubscriptionStreamService subscriptionStreamService;
+    private final ObjectMapper objectMapper;
+    private final RequestExecutor requestExecutor;
 
     @Autowired
-    public SubscriptionController(@NotNull final SubscriptionService subscriptionService) {
+    public SubscriptionController(@NotNull final SubscriptionService subscriptionService,
+            @NotNull final SubscriptionStreamService subscriptionStreamService,
+            @NotNull final ObjectMapper objectMapper,
+            @NotNull final RequestExecutor requestExecutor) {
         this.subscriptionService = Objects.requireNonNull(subscriptionService, "subscriptionService");
+        this.subscriptionStreamService = Objects.requireNonNull(subscriptionStreamService,
+                "subscriptionStreamService");
+        this.objectMapper = Objects.requireNonNull(objectMapper, "objectMapper");
+        this.requestExecutor = Objects.requireNonNull(requestExecutor, "requestExecutor");
     }
 
     /**
      * Creates a subscription, given a name and the list of messageTypes it should receive.
      *
-     * @param name         The name of the subscription
-     * @param messageTypes The list of messageTypes to receive
+     * @param name           The name of the subscription
+     * @param messageTypes   The list of messageTypes to receive
+     * @param capacity       The maximum number of messages to keep (optional)
+     * @param overflowPolicy What to do with messages beyond the capacity; drop-oldest, drop-newest or reject (optional)
      * @return An HTTP response containing the new subscription object
      */
     @NotNull
     @RequestMapping(method = RequestMethod.POST)
-    public ResponseEntity<SubscriptionResource> createSubscription(@RequestParam @NotNull final String name,
-            @RequestParam @NotNull final List<String> messageTypes) {
-        log.info("POST /subscriptions; name = {}, messageTypes = {}", name, messageTypes);
+    public DeferredResult<ResponseEntity<SubscriptionResource>> createSubscription(
+            @RequestParam @NotNull final String name,
+            @RequestParam @NotNull final List<String> messageTypes,
+            @RequestParam @NotNull final Optional<Integer> capacity,
+            @RequestParam @NotNull final Optional<String> overflowPolicy) {
+        log.info("POST /subscriptions; name = {}, messageTypes = {}, capacity = {}, overflowPolicy = {}", name,
+                messageTypes, capacity, overflowPolicy);
         final ImmutableSet<String> types = ImmutableSet.copyOf(messageTypes);
-        final Subscription subscription = subscriptionService.createSubscription(name, types);
-        final URI location = ServletUriComponentsBuilder.fromCurrentRequest()
-                .path("/{id}").buildAndExpand(subscription.id).toUri();
-        final HttpHeaders headers = new HttpHeaders();
-        headers.setLocation(location);
-        final SubscriptionResource resource = SubscriptionResource.fromSubscription(subscription);
-        log.info("Subscription successfully created with ID = {}", subscription.id);
-        return new ResponseEntity<>(resource, headers, HttpStatus.CREATED);
+        // The current request is only known on the container thread
+        final UriComponentsBuilder uri = ServletUriComponentsBuilder.fromCurrentRequest().path("/{id}");
+        return requestExecutor.execute(() -> {
+            final Subscription subscription = subscriptionService.createSubscription(name, types, capacity,
+                    overflowPolicy.map(OverflowPolicy::parse));
+            final URI location = uri.buildAndExpand(subscription.id).toUri();
+            final HttpHeaders headers = new HttpHeaders();
+            headers.setLocation(location);
+            final SubscriptionResource resource = SubscriptionResource.fromSubscription(subscription);
+            log.info("Subscription successfully created with ID = {}", subscription.id);
+            return new ResponseEntity<>(resource, headers, HttpStatus.CREATED);
+        });
+    }
+
+    /**
+     * Creates a batch of subscriptions in one request; either all of them are created, or none are.
+     *
+     * @param requests a JSON array of objects, each with a name and messageTypes, and optionally a capacity and
+     *                 overflowPolicy
+     * @return An HTTP response containing the ID and status of each new subscription, in order
+     */
+    @NotNull
+    @RequestMapping(value = "/batch", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<List<BatchResult>>> createSubscriptions(
+            @RequestBody @NotNull final List<SubscriptionRequest> requests) {
+        log.info("POST /subscriptions/batch; {} subscription(s)", requests.size());
+        return requestExecutor.execute(() -> {
+            final List<BatchResult> results = subscriptionService.createSubscriptions(requests).stream()
+                    .map(subscription -> new BatchResult(subscription.id, HttpStatus.CREATED.value(), null))
+                    .collect(collectingAndThen(toList(), ImmutableList::copyOf));
+            log.info("Successfully created {} subscription(s)", results.size());
+            return new ResponseEntity<>(results, HttpStatus.CREATED);
+        });
+    }
+
+    /**
+     * Updates a batch of existing subscriptions in one request. Each item is applied independently, exactly like
+     * {@code PUT /subscriptions/{id}}; a missing subscription doesn't stop the rest.
+     *
+     * @param requests a JSON array of objects, each with an id, and optionally a name and messageTypes
+     * @return An HTTP response containing the ID and status (200 or 404) of each subscription, in order
+     */
+    @NotNull
+    @RequestMapping(value = "/batch", method = RequestMethod.PUT, consumes = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<List<BatchResult>>> updateSubscriptions(
+            @RequestBody @NotNull final List<SubscriptionUpdateRequest> requests) {
+        log.info("PUT /subscriptions/batch; {} subscription(s)", requests.size());
+        return requestExecutor.execute(() -> {
+            final List<Optional<Subscription>> updated = subscriptionService.updateSubscriptions(requests);
+            final ImmutableList.Builder<BatchResult> results = ImmutableList.builder();
+            for (int i = 0; i < requests.size(); i++) {
+                final UUID id = requests.get(i).id;
+                results.add(updated.get(i).isPresent()
+                        ? new BatchResult(id, HttpStatus.OK.value(), null)
+                        : new BatchResult(id, HttpStatus.NOT_FOUND.value(),
+                                "Subscription with ID " + id + " was not found"));
+            }
+            return new ResponseEntity<>(results.build(), HttpStatus.OK);
+        });
     }
 
-    // Not part of the API spec, but useful for debugging at least
+    // Not part of the API spec, but useful for debugging at least. The paging parameters apply to the messages of
+    // each subscription; see below.
     @NotNull
     @RequestMapping(method = RequestMethod.GET)
-    public ResponseEntity<List<SubscriptionResource>> getAllSubscriptions() {
-        final List<SubscriptionResource> resources =
-                SubscriptionResource.fromSubscriptions(subscriptionService.getSubscriptions());
-        return new ResponseEntity<>(resources, HttpStatus.OK);
+    public DeferredResult<ResponseEntity<List<SubscriptionResource>>> getAllSubscriptions(
+            @RequestParam @NotNull final Optional<String> view,
+            @RequestParam @NotNull final Optional<Long> after,
+            @RequestParam @NotNull final Optional<Integer> limit) {
+        Paging.checkLimit(limit);
+        return requestExecutor.execute(() -> {
+            final List<SubscriptionResource> resources = subscriptionService.getSubscriptions().stream()
+                    .map(subscription -> toResource(subscription, view, after, limit))
+                    .collect(collectingAndThen(toList(), ImmutableList::copyOf));
+            return new ResponseEntity<>(resources, HttpStatus.OK);
+        });
+    }
+
+    /**
+     * Streams every subscription as newline delimited JSON, one subscription per line. Each subscription is written as
+     * soon as it's read from the store, so memory use stays flat no matter how many subscriptions there are. Takes the
+     * same view and paging parameters as above.
+     */
+    @NotNull
+    @RequestMapping(method = RequestMethod.GET, params = "format=ndjson", produces = NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAllSubscriptions(
+            @RequestParam @NotNull final Optional<String> view,
+            @RequestParam @NotNull final Optional<Long> after,
+            @RequestParam @NotNull final Optional<Integer> limit) {
+        Paging.checkLimit(limit);
+        final StreamingResponseBody body = out -> {
+            final Iterator<Subscription> subscriptions = subscriptionService.streamSubscriptions().iterator();
+            try (final SequenceWriter writer = objectMapper.writer().withRootValueSeparator("\n").writeValues(out)) {
+                while (subscriptions.hasNext()) {
+                    writer.write(toResource(subscriptions.next(), view, after, limit));
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON_VALUE)).body(body);
     }
 
     /**
      * Gets a single subscription by its unique identifier
      *
-     * @param id the UUID of the subscription
+     * @param id    the UUID of the subscription
+     * @param view  {@code metadata} to leave out the messages entirely (optional)
+     * @param after only include messages with sequence numbers after this cursor (optional)
+     * @param limit the maximum number of messages to include (optional)
+     * @param waitMs if there are no messages after {@code after} yet, wait up to this many milliseconds for one to be
+     *               delivered before responding (optional)
      * @return an HTTP response containing the existing subscription object
      */
     @NotNull
     @RequestMapping(value = "/{id}", method = RequestMethod.GET)
-    public ResponseEntity<SubscriptionResource> getSubscriptionById(@PathVariable @NotNull final String id) {
-        log.info("GET /subscriptions/{}", id);
-        final Subscription subscription = subscriptionService.getSubscriptionById(UUID.fromString(id));
-        final SubscriptionResource resource = SubscriptionResource.fromSubscription(subscription);
-        log.info("Successfully retrieved subscription with ID {}", id);
-        return new ResponseEntity<>(resource, HttpStatus.OK);
+    public DeferredResult<ResponseEntity<SubscriptionResource>> getSubscriptionById(
+            @PathVariable @NotNull final String id,
+            @RequestParam @NotNull final Optional<String> view,
+            @RequestParam @NotNull final Optional<Long> after,
+            @RequestParam @NotNull final Optional<Integer> limit,
+            @RequestParam @NotNull final Optional<Long> waitMs) {
+        log.debug("GET /subscriptions/{}; view = {}, after = {}, limit = {}, waitMs = {}", id, view, after, limit,
+                waitMs);
+        Paging.checkLimit(limit);
+        final UUID uuid = UUID.fromString(id);
+        final long cursor = after.orElse(0L);
+        return requestExecutor.awaitDelivery(uuid, waitMs.orElse(0L),
+                () -> subscriptionService.getSubscriptionById(uuid).messages.nextSequence() - 1 > cursor,
+                () -> {
+                    final Subscription subscription = subscriptionService.getSubscriptionById(uuid);
+                    final SubscriptionResource resource = toResource(subscription, view, after, limit);
+                    log.debug("Successfully retrieved subscription with ID {}", id);
+                    return new ResponseEntity<>(resource, HttpStatus.OK);
+                });
+    }
+
+    /**
+     * Streams the messages delivered to a subscription as Server-Sent Events, as soon as they're delivered. Each event
+     * is a {@code message} whose ID is the message's sequence number.
+     *
+     * @param id          the UUID of the subscription
+     * @param since       only send messages with sequence numbers after this cursor; defaults to every message in the
+     *                    mailbox (optional)
+     * @param lastEventId sent by SSE clients when reconnecting; used in place of {@code since} (optional)
+     * @return the event stream
+     */
+    @NotNull
+    @RequestMapping(value = "/{id}/stream", method = RequestMethod.GET, produces = EVENT_STREAM_VALUE)
+    public SseEmitter streamSubscriptionById(@PathVariable @NotNull final String id,
+            @RequestParam @NotNull final Optional<Long> since,
+            @RequestHeader(value = "Last-Event-ID") @NotNull final Optional<Long> lastEventId) {
+        log.debug("GET /subscriptions/{}/stream; since = {}, Last-Event-ID = {}", id, since, lastEventId);
+        return subscriptionStreamService.open(UUID.fromString(id), lastEventId.orElse(since.orElse(0L)));
     }
 
     /**
@@ -103,7 +259,8 @@ public class SubscriptionController {
      */
     @NotNull
     @RequestMapping(value = "/{id}", method = RequestMethod.PUT)
-    public ResponseEntity<SubscriptionResource> updateSubscriptionById(@PathVariable @NotNull final String id,
+    public DeferredResult<ResponseEntity<SubscriptionResource>> updateSubscriptionById(
+            @PathVariable @NotNull final String id,
             @RequestParam @NotNull final Optional<String> name,
             // Note: usually I'd prefer defaulting to an empty collection instead of an optional,
             // but this allows for the case where we want to remove all supported message types
@@ -111,15 +268,71 @@ public class SubscriptionController {
             // by omitting the parameter altogether.
             @RequestParam @NotNull final Optional<List<String>> messageTypes) {
         log.info("PUT /subscriptions/{}; name = {}, messageTypes = {}", id, name, messageTypes);
-        if (!name.isPresent() && !messageTypes.isPresent()) {
-            // Nothing to do
+        final UUID uuid = UUID.fromString(id);
+        final Optional<ImmutableSet<String>> types = messageTypes.map(ImmutableSet::copyOf);
+        return requestExecutor.execute(() -> {
+            if (!name.isPresent() && !types.isPresent()) {
+                // Nothing to do
+                return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+            }
+
+            final Subscription subscription = subscriptionService.updateSubscriptionById(uuid, name, types);
+            final SubscriptionResource resource = SubscriptionResource.fromSubscription(subscription);
+            log.info("Successfully updated subscription with ID {}", id);
+            return new ResponseEntity<>(resource, HttpStatus.OK);
+        });
+    }
+
+    /**
+     * Deletes a subscription, along with every message in its mailbox
+     *
+     * @param id the UUID of the subscription
+     * @return An empty HTTP entity
+     */
+    @NotNull
+    @RequestMapping(value = "/{id}", method = RequestMethod.DELETE)
+    public DeferredResult<ResponseEntity<Void>> deleteSubscriptionById(@PathVariable @NotNull final String id) {
+        log.info("DELETE /subscriptions/{}", id);
+        final UUID uuid = UUID.fromString(id);
+        return requestExecutor.execute(() -> {
+            subscriptionService.deleteSubscriptionById(uuid);
+            log.info("Successfully deleted subscription with ID {}", id);
             return new ResponseEntity<>(HttpStatus.NO_CONTENT);
-        }
+        });
+    }
 
-        final Optional<ImmutableSet<String>> types = messageTypes.map(ImmutableSet::copyOf);
-        final Subscription subscription = subscriptionService.updateSubscriptionById(UUID.fromString(id), name, types);
-        final SubscriptionResource resource = SubscriptionResource.fromSubscription(subscription);
-        log.info("Successfully updated subscription with ID {}", id);
-        return new ResponseEntity<>(resource, HttpStatus.OK);
+    /**
+     * Acknowledges messages once they've been processed, removing them from the subscription's mailbox
+     *
+     * @param id   the UUID of the subscription
+     * @param upTo the sequence number of the last processed message; it and every message before it are removed
+     * @return An HTTP entity containing the subscription, without its messages
+     */
+    @NotNull
+    @RequestMapping(value = "/{id}/ack", method = RequestMethod.POST)
+    public DeferredResult<ResponseEntity<SubscriptionResource>> acknowledgeMessages(
+            @PathVariable @NotNull final String id,
+            @RequestParam final long upTo) {
+        log.debug("POST /subscriptions/{}/ack; upTo = {}", id, upTo);
+        final UUID uuid = UUID.fromString(id);
+        return requestExecutor.execute(() -> {
+            final Subscription subscription = subscriptionService.acknowledgeMessages(uuid, upTo);
+            log.debug("Successfully acknowledged messages up to {} for subscription with ID {}", upTo, id);
+            return new ResponseEntity<>(SubscriptionResource.metadataOf(subscription), HttpStatus.OK);
+        });
+    }
+
+    @NotNull
+    private static SubscriptionResource toResource(@NotNull final Subscription subscription,
+            @NotNull final Optional<String> view,
+            @NotNull final Optional<Long> after,
+            @NotNull final Optional<Integer> limit) {
+        if (view.filter(METADATA_VIEW::equalsIgnoreCase).isPresent()) {
+            return SubscriptionResource.metadataOf(subscription);
+        }
+        if (!after.isPresent() && !limit.isPresent()) {
+            return SubscriptionResource.fromSubscription(subscription);
+        }
+        return SubscriptionResource.fromSubscription(subscription, after.orElse(0L), limit.orElse(Integer.MAX_VALUE));
     }
 }
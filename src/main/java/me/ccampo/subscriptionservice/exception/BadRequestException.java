@@ -0,0 +1,15 @@
+package me.ccampo.subscriptionservice.exception;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * @author Chris Campo
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class BadRequestException extends RuntimeException {
+    public BadRequestException(@NotNull final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,17 @@
+package me.ccampo.subscriptionservice.exception;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Unlike {@link MessageQueueFullException}, retrying can never help; the batch has to be split up.
+ *
+ * @author Chris Campo
+ */
+@ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+public class BatchTooLargeException extends RuntimeException {
+    public BatchTooLargeException(@NotNull final String message) {
+        super(message);
+    }
+}
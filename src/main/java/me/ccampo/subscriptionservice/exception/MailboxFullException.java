@@ -0,0 +1,24 @@
+package me.ccampo.subscriptionservice.exception;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Thrown when subscriptions using the {@code REJECT} overflow policy turned a message away because their mailboxes were
+ * full. By then the message has already been delivered to every other subscription, so this isn't an error response:
+ * the publish endpoints still succeed, and list the rejecting subscriptions in a header instead.
+ *
+ * @author Chris Campo
+ */
+public class MailboxFullException extends RuntimeException {
+
+    public final ImmutableList<UUID> rejectedIds;
+
+    public MailboxFullException(@NotNull final String message, @NotNull final List<UUID> rejectedIds) {
+        super(message);
+        this.rejectedIds = ImmutableList.copyOf(rejectedIds);
+    }
+}
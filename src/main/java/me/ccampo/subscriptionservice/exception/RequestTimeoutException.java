@@ -0,0 +1,15 @@
+package me.ccampo.subscriptionservice.exception;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * @author Chris Campo
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class RequestTimeoutException extends RuntimeException {
+    public RequestTimeoutException(@NotNull final String message) {
+        super(message);
+    }
+}
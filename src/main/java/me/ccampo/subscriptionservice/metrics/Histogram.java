@@ -0,0 +1,74 @@
+package me.ccampo.subscriptionservice.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram with fixed buckets. Recording a value is a few uncontended adds, so it's cheap enough to do on
+ * every request.
+ *
+ * @author Chris Campo
+ */
+public final class Histogram {
+
+    // Inclusive upper bounds, in ascending order; anything bigger than the last one only counts towards +Inf
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    public Histogram(@NotNull final long... bounds) {
+        Objects.requireNonNull(bounds, "bounds");
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Bucket bounds must be strictly ascending");
+            }
+        }
+        this.bounds = Arrays.copyOf(bounds, bounds.length);
+        this.buckets = new LongAdder[bounds.length];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(final long value) {
+        final int index = Arrays.binarySearch(bounds, value);
+        // Not found gives -(insertion point) - 1, and the insertion point is the first bound bigger than the value
+        final int bucket = index >= 0 ? index : -index - 1;
+        if (bucket < buckets.length) {
+            buckets[bucket].increment();
+        }
+        sum.add(value);
+        count.increment();
+    }
+
+    public int getBucketCount() {
+        return bounds.length;
+    }
+
+    public long getBound(final int bucket) {
+        return bounds[bucket];
+    }
+
+    /**
+     * @return the number of values recorded which were at most the bound of the given bucket
+     */
+    public long getCumulativeCount(final int bucket) {
+        long total = 0;
+        for (int i = 0; i <= bucket; i++) {
+            total += buckets[i].sum();
+        }
+        return total;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+}
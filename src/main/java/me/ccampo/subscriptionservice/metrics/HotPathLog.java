@@ -0,0 +1,76 @@
+package me.ccampo.subscriptionservice.metrics;
+
+import me.ccampo.subscriptionservice.model.Message;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs one structured summary line per delivery and per request on the publish and read paths, in place of logging
+ * each one in detail (and once per subscriber). Lines are {@code key=value} pairs on the
+ * {@code subscription-service.hot-path} logger, so they can be parsed, routed or silenced on their own, and only a
+ * sample of them is logged. Message content is never logged unless explicitly enabled.
+ *
+ * @author Chris Campo
+ */
+@Service
+public class HotPathLog {
+
+    private static final Logger log = LoggerFactory.getLogger("subscription-service.hot-path");
+
+    private final double sampleRate;
+    private final boolean logContent;
+
+    @Autowired
+    public HotPathLog(@Value("${subscription-service.logging.sample-rate:0.01}") final double sampleRate,
+            @Value("${subscription-service.logging.log-content:false}") final boolean logContent) {
+        this.sampleRate = sampleRate;
+        this.logContent = logContent;
+    }
+
+    /**
+     * A log which never logs anything
+     */
+    @NotNull
+    public static HotPathLog disabled() {
+        return new HotPathLog(0, false);
+    }
+
+    public void delivered(@NotNull final Message message, final int fanOut, final int rejected, final long nanos) {
+        if (!sampled()) {
+            return;
+        }
+        if (logContent) {
+            log.info("event=deliver id={} type={} fanOut={} rejected={} durationUs={} content={}", message.id,
+                    message.type, fanOut, rejected, TimeUnit.NANOSECONDS.toMicros(nanos), message.content);
+        } else {
+            log.info("event=deliver id={} type={} fanOut={} rejected={} durationUs={}", message.id, message.type,
+                    fanOut, rejected, TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+    }
+
+    public void deliveredBatch(final int messages, final int fanOut, final int rejected, final long nanos) {
+        if (sampled()) {
+            log.info("event=deliver-batch messages={} fanOut={} rejected={} durationUs={}", messages, fanOut, rejected,
+                    TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+    }
+
+    public void request(@NotNull final String handler, final int status, final long nanos) {
+        if (sampled()) {
+            log.info("event=request handler={} status={} durationUs={}", handler, status,
+                    TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+    }
+
+    private boolean sampled() {
+        return sampleRate > 0 && log.isInfoEnabled()
+                && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+}
@@ -0,0 +1,30 @@
+package me.ccampo.subscriptionservice.metrics;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+import java.util.Objects;
+
+/**
+ * @author Chris Campo
+ */
+@Configuration
+public class MetricsConfiguration extends WebMvcConfigurerAdapter {
+
+    private final MetricsRegistry metrics;
+    private final HotPathLog hotPathLog;
+
+    @Autowired
+    public MetricsConfiguration(@NotNull final MetricsRegistry metrics, @NotNull final HotPathLog hotPathLog) {
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        this.hotPathLog = Objects.requireNonNull(hotPathLog, "hotPathLog");
+    }
+
+    @Override
+    public void addInterceptors(final InterceptorRegistry registry) {
+        registry.addInterceptor(new RequestMetricsInterceptor(metrics, hotPathLog));
+    }
+}
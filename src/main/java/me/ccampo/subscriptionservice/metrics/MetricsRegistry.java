@@ -0,0 +1,178 @@
+package me.ccampo.subscriptionservice.metrics;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects the service's metrics, and renders them in the Prometheus text exposition format so they can be scraped
+ * from {@code GET /metrics}.
+ * <p>
+ * Message types are chosen by clients, so to keep the number of time series bounded, only the first
+ * {@code maxMessageTypes} types seen are counted separately; the rest are all counted as {@value #OTHER_TYPE}.
+ *
+ * @author Chris Campo
+ */
+@Service
+public class MetricsRegistry {
+
+    static final String PREFIX = "subscription_service_";
+    static final String OTHER_TYPE = "_other";
+
+    private static final long[] LATENCY_BUCKETS_NANOS = {
+            TimeUnit.MICROSECONDS.toNanos(10), TimeUnit.MICROSECONDS.toNanos(50), TimeUnit.MICROSECONDS.toNanos(100),
+            TimeUnit.MICROSECONDS.toNanos(500), TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(5),
+            TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(100),
+            TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(5)};
+    private static final long[] FAN_OUT_BUCKETS = {0, 1, 2, 5, 10, 50, 100, 500, 1000, 5000, 10000};
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int maxMessageTypes;
+    private final Histogram publishLatency = new Histogram(LATENCY_BUCKETS_NANOS);
+    private final Histogram fanOutWidth = new Histogram(FAN_OUT_BUCKETS);
+    // Sorted, so the output is stable between scrapes
+    private final Map<String, LongAdder> messagesPublishedByType = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> requestLatencyByHandler = new ConcurrentSkipListMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Gauge> counters = new ConcurrentSkipListMap<>();
+
+    @Autowired
+    public MetricsRegistry(@Value("${subscription-service.metrics.max-message-types:1000}") final int maxMessageTypes) {
+        this.maxMessageTypes = maxMessageTypes;
+    }
+
+    // Primarily used for testing
+    public MetricsRegistry() {
+        this(1000);
+    }
+
+    /**
+     * Records a message being published: how long it took (including delivery, when that's synchronous), and its type.
+     */
+    public void recordPublish(@NotNull final String type, final long nanos) {
+        publishLatency.record(nanos);
+        LongAdder counter = messagesPublishedByType.get(type);
+        if (counter == null) {
+            // Racing threads may briefly exceed the limit by a few types, which is harmless
+            final String key = messagesPublishedByType.size() < maxMessageTypes ? type : OTHER_TYPE;
+            counter = messagesPublishedByType.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Records the number of subscriptions a message was delivered to
+     */
+    public void recordFanOut(final int subscriptions) {
+        fanOutWidth.record(subscriptions);
+    }
+
+    /**
+     * Records how long an HTTP request took to handle, by the controller method which handled it
+     */
+    public void recordRequest(@NotNull final String handler, final long nanos) {
+        requestLatencyByHandler.computeIfAbsent(handler, key -> new Histogram(LATENCY_BUCKETS_NANOS)).record(nanos);
+    }
+
+    /**
+     * Registers a value which is read every time the metrics are scraped. Registering the same name again replaces it.
+     */
+    public void gauge(@NotNull final String name, @NotNull final String help, @NotNull final LongSupplier value) {
+        gauges.put(PREFIX + Objects.requireNonNull(name, "name"), new Gauge(help, value));
+    }
+
+    /**
+     * Registers a count which only ever goes up, and is read every time the metrics are scraped. By convention, its
+     * name should end in {@code _total}. Registering the same name again replaces it.
+     */
+    public void counter(@NotNull final String name, @NotNull final String help, @NotNull final LongSupplier value) {
+        counters.put(PREFIX + Objects.requireNonNull(name, "name"), new Gauge(help, value));
+    }
+
+    /**
+     * @return every metric, in the Prometheus text exposition format (version 0.0.4)
+     */
+    @NotNull
+    public String scrape() {
+        final StringBuilder out = new StringBuilder();
+        gauges.forEach((name, gauge) -> {
+            header(out, name, gauge.help, "gauge");
+            out.append(name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        });
+        counters.forEach((name, counter) -> {
+            header(out, name, counter.help, "counter");
+            out.append(name).append(' ').append(counter.value.getAsLong()).append('\n');
+        });
+
+        final String published = PREFIX + "messages_published_total";
+        header(out, published, "Messages published, by type", "counter");
+        messagesPublishedByType.forEach((type, count) ->
+                out.append(published).append("{type=\"").append(escape(type)).append("\"} ").append(count.sum())
+                        .append('\n'));
+
+        final String publishLatencyName = PREFIX + "publish_latency_seconds";
+        header(out, publishLatencyName, "Time taken to publish a message", "histogram");
+        histogram(out, publishLatencyName, "", publishLatency, NANOS_PER_SECOND);
+
+        final String fanOutName = PREFIX + "fan_out_width";
+        header(out, fanOutName, "Number of subscriptions each message was delivered to", "histogram");
+        histogram(out, fanOutName, "", fanOutWidth, 1);
+
+        final String requestLatencyName = PREFIX + "http_request_latency_seconds";
+        header(out, requestLatencyName, "Time taken to handle HTTP requests, by handler", "histogram");
+        requestLatencyByHandler.forEach((handler, histogram) -> histogram(out, requestLatencyName,
+                "handler=\"" + escape(handler) + "\",", histogram, NANOS_PER_SECOND));
+        return out.toString();
+    }
+
+    private static void header(@NotNull final StringBuilder out, @NotNull final String name,
+            @NotNull final String help, @NotNull final String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histogram(@NotNull final StringBuilder out, @NotNull final String name,
+            @NotNull final String labels, @NotNull final Histogram histogram, final double unitsPerValue) {
+        // Read the count first, so the +Inf bucket is never smaller than the other buckets read after it
+        final long count = histogram.getCount();
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            out.append(name).append("_bucket{").append(labels).append("le=\"")
+                    .append(format(histogram.getBound(i) / unitsPerValue)).append("\"} ")
+                    .append(Math.min(count, histogram.getCumulativeCount(i))).append('\n');
+        }
+        out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(count).append('\n');
+        final String sumLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(name).append("_sum").append(sumLabels).append(' ')
+                .append(format(histogram.getSum() / unitsPerValue)).append('\n');
+        out.append(name).append("_count").append(sumLabels).append(' ').append(count).append('\n');
+    }
+
+    @NotNull
+    private static String format(final double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    @NotNull
+    private static String escape(@NotNull final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Gauge {
+
+        private final String help;
+        private final LongSupplier value;
+
+        private Gauge(@NotNull final String help, @NotNull final LongSupplier value) {
+            this.help = Objects.requireNonNull(help, "help");
+            this.value = Objects.requireNonNull(value, "value");
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package me.ccampo.subscriptionservice.metrics;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Objects;
+
+/**
+ * Times every request handled by a controller method, records it against that method (e.g.
+ * {@code MessageController.createMessage}), and logs a (sampled) summary of it.
+ *
+ * @author Chris Campo
+ */
+public class RequestMetricsInterceptor extends HandlerInterceptorAdapter {
+
+    private static final String START_ATTRIBUTE = RequestMetricsInterceptor.class.getName() + ".start";
+
+    private final MetricsRegistry metrics;
+    private final HotPathLog hotPathLog;
+
+    public RequestMetricsInterceptor(@NotNull final MetricsRegistry metrics, @NotNull final HotPathLog hotPathLog) {
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        this.hotPathLog = Objects.requireNonNull(hotPathLog, "hotPathLog");
+    }
+
+    @Override
+    public boolean preHandle(final HttpServletRequest request, final HttpServletResponse response,
+            final Object handler) {
+        // Streaming responses are dispatched a second time once they finish; keep timing from the first dispatch
+        if (request.getAttribute(START_ATTRIBUTE) == null) {
+            request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(final HttpServletRequest request, final HttpServletResponse response,
+            final Object handler, final Exception ex) {
+        final Object start = request.getAttribute(START_ATTRIBUTE);
+        if (start == null || !(handler instanceof HandlerMethod)) {
+            return;
+        }
+        final HandlerMethod method = (HandlerMethod) handler;
+        final String name = method.getBeanType().getSimpleName() + "." + method.getMethod().getName();
+        final long nanos = System.nanoTime() - (Long) start;
+        metrics.recordRequest(name, nanos);
+        hotPathLog.request(name, response.getStatus(), nanos);
+    }
+}
@@ -0,0 +1,51 @@
+package me.ccampo.subscriptionservice.model;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Generates the IDs of new messages, as configured by {@code subscription-service.message-ids}. Every message the
+ * service creates gets its ID from here; subscriptions always get random IDs instead.
+ *
+ * @author Chris Campo
+ */
+public interface IdGenerator {
+
+    @NotNull
+    UUID next();
+
+    /**
+     * Version 7 UUIDs: a millisecond timestamp, then a counter, then random bits. Every ID sorts after the ones
+     * generated before it on the same thread, and after those generated in an earlier millisecond on any thread.
+     * Generating one takes no locks, no shared counter and no {@code SecureRandom}.
+     */
+    @NotNull
+    static IdGenerator timeOrdered() {
+        return TimeOrderedIdGenerator.INSTANCE;
+    }
+
+    /**
+     * Version 4 UUIDs from {@link UUID#randomUUID()}, which are unordered and contend on a shared {@code SecureRandom}
+     */
+    @NotNull
+    static IdGenerator random() {
+        return UUID::randomUUID;
+    }
+
+    /**
+     * Parses a generator leniently, so that both {@code TIME_ORDERED} and {@code time-ordered} are accepted.
+     */
+    @NotNull
+    static IdGenerator parse(@NotNull final String value) {
+        switch (value.trim().replace('_', '-').toLowerCase(Locale.ROOT)) {
+            case "time-ordered":
+                return timeOrdered();
+            case "random":
+                return random();
+            default:
+                throw new IllegalArgumentException("Unknown ID generator: " + value);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package me.ccampo.subscriptionservice.model;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Objects;
 import java.util.UUID;
@@ -12,16 +13,55 @@ public class Message {
 
     public final UUID id;
     public final String type;
-    public final String content;
+    public final Payload content;
 
-    public Message(@NotNull final UUID id, @NotNull final String type, @NotNull final String content) {
+    // The ID of `type` in the MessageTypes it was last found in, and that registry's copy of the name. A type nobody
+    // subscribed to yet may be registered later, so until it's known, it's looked up again each time. Once nobody
+    // subscribes to it any more, its ID may be reused for another type, so the ID is only used while the registry still
+    // has the same copy of the name for it. Only ever a copy equal to `type`, so even a stale pair of the two, or one
+    // from another registry, can't match some other type.
+    private int typeId = MessageTypes.UNKNOWN;
+    @Nullable
+    private String registeredType;
+
+    public Message(@NotNull final UUID id, @NotNull final String type, @NotNull final Payload content) {
         this.id = Objects.requireNonNull(id, "id");
         this.type = Objects.requireNonNull(type, "type");
         this.content = Objects.requireNonNull(content, "content");
     }
 
+    public Message(@NotNull final UUID id, @NotNull final String type, @NotNull final String content) {
+        this(id, type, Payload.of(content));
+    }
+
+    public Message(@NotNull final String type, @NotNull final Payload content) {
+        // Start with an auto-generated, time-ordered UUID
+        this(IdGenerator.timeOrdered().next(), type, content);
+    }
+
     public Message(@NotNull final String type, @NotNull final String content) {
-        // Start with an auto-generated UUID
-        this(UUID.randomUUID(), type, content);
+        this(type, Payload.of(content));
+    }
+
+    /**
+     * @return the ID of this message's type in the registry, or {@link MessageTypes#UNKNOWN} if no subscription
+     * supports it
+     */
+    public int typeId(@NotNull final MessageTypes registry) {
+        final int cached = typeId;
+        final String name = registeredType;
+        // Just a reference comparison
+        if (cached != MessageTypes.UNKNOWN && name != null && registry.nameOf(cached) == name) {
+            return cached;
+        }
+        final int found = registry.find(type);
+        // The ID may have been freed (or even reused) since it was found, in which case this type is unknown now
+        final String foundName = found == MessageTypes.UNKNOWN ? null : registry.nameOf(found);
+        if (!type.equals(foundName)) {
+            return MessageTypes.UNKNOWN;
+        }
+        registeredType = foundName;
+        typeId = found;
+        return found;
     }
 }
@@ -0,0 +1,197 @@
+package me.ccampo.subscriptionservice.model;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable count of the messages in a mailbox by type.
+ * <p>
+ * Each type is given a slot the first time it's counted, and the counts themselves are a primitive array indexed by
+ * slot. Counting a delivery copies that array (one long per type in the mailbox) instead of rebuilding a map, so it
+ * does no hashing beyond looking up the slot, and no boxing. The slots are shared, and only ever appended to, by every
+ * version of the counts which came from the same subscribed types; a version just never looks past its own counts.
+ * <p>
+ * As a map, the subscribed types always come first, in order, even when their count is zero. Any other type (i.e.
+ * matched by a pattern) follows, from the first time a message of it was counted.
+ *
+ * @author Chris Campo
+ */
+public final class MessageCounts extends AbstractMap<String, Long> {
+
+    private final Slots slots;
+    private final long[] counts;
+
+    private MessageCounts(@NotNull final Slots slots, @NotNull final long[] counts) {
+        this.slots = slots;
+        this.counts = counts;
+    }
+
+    /**
+     * Returns zero counts for every given type
+     */
+    @NotNull
+    public static MessageCounts of(@NotNull final Iterable<String> messageTypes) {
+        final Slots slots = new Slots();
+        messageTypes.forEach(slots::slotOf);
+        return new MessageCounts(slots, new long[slots.size()]);
+    }
+
+    /**
+     * Returns zero counts for every given type, except for those given in {@code initial}
+     */
+    @NotNull
+    public static MessageCounts of(@NotNull final Iterable<String> messageTypes,
+            @NotNull final Map<String, Long> initial) {
+        final MessageCounts empty = of(messageTypes);
+        final Slots slots = empty.slots;
+        initial.keySet().forEach(slots::slotOf);
+        final long[] counts = Arrays.copyOf(empty.counts, slots.size());
+        initial.forEach((type, count) -> counts[slots.find(type)] = count);
+        return new MessageCounts(slots, counts);
+    }
+
+    /**
+     * Returns these counts, plus the {@code added} messages and minus the {@code removed} ones, in O(number of types)
+     * plus the number of messages. Every removed message must have been counted before. These counts are left
+     * unchanged.
+     */
+    @NotNull
+    public MessageCounts plus(@NotNull final List<Message> added, @NotNull final List<Message> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return this;
+        }
+        long[] result = Arrays.copyOf(counts, counts.length);
+        for (int i = 0; i < added.size(); i++) {
+            final int slot = slots.slotOf(added.get(i).type);
+            if (slot >= result.length) {
+                result = Arrays.copyOf(result, slot + 1);
+            }
+            result[slot]++;
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            result[slots.find(removed.get(i).type)]--;
+        }
+        return new MessageCounts(slots, result);
+    }
+
+    @Override
+    @Nullable
+    @Contract(pure = true)
+    public Long get(@Nullable final Object type) {
+        final int slot = slotOf(type);
+        return slot >= 0 ? counts[slot] : null;
+    }
+
+    @Override
+    @Contract(pure = true)
+    public boolean containsKey(@Nullable final Object type) {
+        return slotOf(type) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return counts.length;
+    }
+
+    @NotNull
+    @Override
+    public Set<Entry<String, Long>> entrySet() {
+        return new AbstractSet<Entry<String, Long>>() {
+            @NotNull
+            @Override
+            public Iterator<Entry<String, Long>> iterator() {
+                return new Iterator<Entry<String, Long>>() {
+                    private int slot;
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < counts.length;
+                    }
+
+                    @Override
+                    public Entry<String, Long> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        final int current = slot++;
+                        return new SimpleImmutableEntry<>(slots.typeAt(current), counts[current]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return counts.length;
+            }
+        };
+    }
+
+    // The slot of the type in this version, or -1
+    private int slotOf(@Nullable final Object type) {
+        if (!(type instanceof String)) {
+            return -1;
+        }
+        final int slot = slots.find((String) type);
+        return slot < counts.length ? slot : -1;
+    }
+
+    /**
+     * The slot of each type, assigned in the order the types are first seen. Appended to concurrently, the same way
+     * as {@link MessageTypes}.
+     */
+    private static final class Slots {
+
+        private final Map<String, Integer> slotsByType = new ConcurrentHashMap<>();
+        // Indexed by slot; replaced (never modified in place past its published size) as it grows
+        private volatile String[] types = new String[8];
+        private int size;
+
+        int find(@NotNull final String type) {
+            final Integer slot = slotsByType.get(type);
+            return slot != null ? slot : -1;
+        }
+
+        int slotOf(@NotNull final String type) {
+            final Integer slot = slotsByType.get(Objects.requireNonNull(type, "type"));
+            return slot != null ? slot : assign(type);
+        }
+
+        @NotNull
+        String typeAt(final int slot) {
+            return types[slot];
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        private synchronized int assign(@NotNull final String type) {
+            final Integer existing = slotsByType.get(type);
+            if (existing != null) {
+                return existing;
+            }
+            final int slot = size++;
+            String[] current = types;
+            if (slot == current.length) {
+                current = Arrays.copyOf(current, 2 * current.length);
+            }
+            current[slot] = type;
+            types = current;
+            // Only findable once its type is published
+            slotsByType.put(type, slot);
+            return slot;
+        }
+    }
+}
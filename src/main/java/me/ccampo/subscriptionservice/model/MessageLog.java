@@ -0,0 +1,476 @@
+package me.ccampo.subscriptionservice.model;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * An immutable, append-only list of messages.
+ * <p>
+ * Messages are stored in fixed size chunks which are shared between every version of the log. Appending to the most
+ * recent version writes the message into the next free slot and returns a new (larger) view of the same chunks, so it
+ * costs O(1) amortized and copies nothing. Older versions never look past their own size, so they remain valid,
+ * immutable snapshots no matter how many messages are appended afterwards.
+ * <p>
+ * Appending to a version which has already been appended to (i.e. branching the log) is still allowed, but falls back
+ * to copying the messages into a new set of chunks.
+ * <p>
+ * The oldest messages can be dropped from the front in O(1) amortized as well; once a whole chunk has been dropped, the
+ * new version stops referencing it, so it can be garbage collected when no older version needs it anymore.
+ * <p>
+ * Every message is numbered with a sequence number, starting at 1, which is stored alongside it and never changes: not
+ * as older messages are dropped, and not when messages are filtered out from between others. Sequence numbers only
+ * ever increase through the log, but there may be gaps in them, so they're looked up by binary search. These can be
+ * used as cursors to page through the log.
+ * <p>
+ * Messages can also be hidden in O(1) (see {@link #hiding}), when the caller already knows how many of them a filter
+ * removes. Appending, trimming from the front and iterating all just skip over them; they're only filtered out for
+ * real, in one pass, the first time the log is read by index (e.g. paged through), or as soon as they outnumber the
+ * messages left, so that they never take up more than half of it.
+ *
+ * @author Chris Campo
+ */
+public final class MessageLog extends AbstractList<Message> implements RandomAccess {
+
+    private static final int CHUNK_SHIFT = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final Message[][] EMPTY_CHUNKS = new Message[0][];
+    private static final long[][] EMPTY_SEQUENCES = new long[0][];
+    // Never equal to the end of any version, so once the tail is set to this, every append falls back to copying
+    private static final int RETIRED = -1;
+
+    // The number of slots claimed in the shared chunks; shared by every version of this log
+    private final AtomicInteger tail;
+    private final Message[][] chunks;
+    // The sequence number of the message in each slot, chunked the same way
+    private final long[][] sequences;
+    // Absolute slot indexes of the first message, and one past the last message, of this version
+    private final int start;
+    private final int end;
+    // The sequence number the next appended message will get
+    private final long nextSequence;
+    // Which of the messages between start and end are actually in this version, if not all of them; and how many
+    // aren't. Only ever null and zero together.
+    @Nullable
+    private final Hiding keep;
+    private final int hidden;
+    // This version with the hidden messages filtered out, once they have been
+    @Nullable
+    private volatile MessageLog compacted;
+
+    private MessageLog(@NotNull final AtomicInteger tail, @NotNull final Message[][] chunks,
+            @NotNull final long[][] sequences, final int start, final int end, final long nextSequence) {
+        this(tail, chunks, sequences, start, end, nextSequence, null, 0);
+    }
+
+    private MessageLog(@NotNull final AtomicInteger tail, @NotNull final Message[][] chunks,
+            @NotNull final long[][] sequences, final int start, final int end, final long nextSequence,
+            @Nullable final Hiding keep, final int hidden) {
+        this.tail = tail;
+        this.chunks = chunks;
+        this.sequences = sequences;
+        this.start = start;
+        this.end = end;
+        this.nextSequence = nextSequence;
+        this.keep = keep;
+        this.hidden = hidden;
+    }
+
+    @NotNull
+    @Contract(pure = true)
+    public static MessageLog empty() {
+        // Not a shared constant, since appending to it would leak chunks into every other empty log
+        return emptyFrom(1);
+    }
+
+    @NotNull
+    public static MessageLog copyOf(@NotNull final Collection<Message> messages) {
+        if (messages instanceof MessageLog) {
+            return (MessageLog) messages;
+        }
+        MessageLog log = empty();
+        for (final Message message : messages) {
+            log = log.append(message);
+        }
+        return log;
+    }
+
+    @NotNull
+    private static MessageLog emptyFrom(final long nextSequence) {
+        return new MessageLog(new AtomicInteger(), EMPTY_CHUNKS, EMPTY_SEQUENCES, 0, 0, nextSequence);
+    }
+
+    /**
+     * Returns a new log containing every message in this log, followed by the given message. This log is left
+     * unchanged.
+     */
+    @NotNull
+    public MessageLog append(@NotNull final Message message) {
+        return append(message, nextSequence);
+    }
+
+    /**
+     * The same, but with the given sequence number, which must be at least {@link #nextSequence()}; e.g. when a log is
+     * restored from disk with gaps in its sequence numbers.
+     */
+    @NotNull
+    public MessageLog append(@NotNull final Message message, final long sequence) {
+        Objects.requireNonNull(message, "message");
+        if (sequence < nextSequence) {
+            throw new IllegalArgumentException("Sequence number " + sequence + " must be at least " + nextSequence);
+        }
+        final MessageLog current = compacted;
+        if (current != null) {
+            return current.put(message, sequence, sequence + 1);
+        }
+        return put(message, sequence, sequence + 1);
+    }
+
+    /**
+     * Returns a new log without the oldest {@code count} messages in this log (or without any messages, if there are
+     * fewer than that). This log is left unchanged.
+     */
+    @NotNull
+    public MessageLog dropOldest(final int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative");
+        }
+        if (keep == null) {
+            return dropTo(start + Math.min(count, size()), 0);
+        }
+        // Any hidden messages among the oldest ones are dropped along with them, without filtering out the rest
+        int slot = start;
+        int skipped = 0;
+        for (int remaining = Math.min(count, size()); remaining > 0; slot++) {
+            if (keeps(slot)) {
+                remaining--;
+            } else {
+                skipped++;
+            }
+        }
+        return dropTo(slot, skipped);
+    }
+
+    /**
+     * Returns a new log without any of the messages in this log whose sequence numbers are {@code sequence} or lower.
+     * This log is left unchanged.
+     */
+    @NotNull
+    public MessageLog dropThrough(final long sequence) {
+        if (keep == null) {
+            return dropOldest(indexAfter(sequence));
+        }
+        // As above; walking through them to count the hidden ones, which costs no more than dropping them
+        int slot = start;
+        int skipped = 0;
+        for (; slot < end && sequences[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] <= sequence; slot++) {
+            if (!keeps(slot)) {
+                skipped++;
+            }
+        }
+        return dropTo(slot, skipped);
+    }
+
+    /**
+     * @param skipped the number of hidden messages before the new start
+     */
+    @NotNull
+    private MessageLog dropTo(final int newStart, final int skipped) {
+        final int newHidden = hidden - skipped;
+        // Everything after the hidden messages is kept, so once they're all dropped, nothing needs filtering out
+        final Hiding newKeep = newHidden == 0 ? null : keep;
+        final int firstChunk = newStart >>> CHUNK_SHIFT;
+        if (firstChunk == start >>> CHUNK_SHIFT) {
+            return new MessageLog(tail, chunks, sequences, newStart, end, nextSequence, newKeep, newHidden);
+        }
+        // Whole chunks were dropped; stop referencing them. Older versions keep their own reference, if needed.
+        // Hidden messages are found by their slots, so the log can't be rebased until they're gone.
+        if (newKeep == null && firstChunk * 2 >= chunks.length && tail.compareAndSet(end, RETIRED)) {
+            // Most of the chunk array is dead space, so rebase onto a fresh log which starts at the first live chunk.
+            // The old tail is retired first, so no older version can ever append into the chunks shared with it.
+            final int shift = firstChunk << CHUNK_SHIFT;
+            return new MessageLog(new AtomicInteger(end - shift),
+                    Arrays.copyOfRange(chunks, firstChunk, chunks.length),
+                    Arrays.copyOfRange(sequences, firstChunk, sequences.length),
+                    newStart - shift, end - shift, nextSequence);
+        }
+        final Message[][] resultChunks = Arrays.copyOf(chunks, chunks.length);
+        final long[][] resultSequences = Arrays.copyOf(sequences, sequences.length);
+        Arrays.fill(resultChunks, 0, firstChunk, null);
+        Arrays.fill(resultSequences, 0, firstChunk, null);
+        return new MessageLog(tail, resultChunks, resultSequences, newStart, end, nextSequence, newKeep, newHidden);
+    }
+
+    /**
+     * Returns a new log with only the messages in this log which match, in O(size). They keep their sequence numbers,
+     * and the next message appended gets the same sequence number as it would have here. This log is left unchanged.
+     */
+    @NotNull
+    public MessageLog filter(@NotNull final Predicate<? super Message> keep) {
+        if (this.keep != null) {
+            return compacted().filter(keep);
+        }
+        MessageLog result = emptyFrom(nextSequence);
+        for (int i = 0; i < size(); i++) {
+            final Message message = get(i);
+            if (keep.test(message)) {
+                result = result.put(message, sequenceAt(i), nextSequence);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new log with only the messages in this log which match, like {@link #filter}, but in O(1): the
+     * messages which don't match are only hidden, and filtered out later (see above). The caller has to know exactly
+     * how many of them there are. This log is left unchanged.
+     *
+     * @param removed the number of messages in this log which don't match
+     */
+    @NotNull
+    public MessageLog hiding(@NotNull final Predicate<? super Message> keep, final int removed) {
+        Objects.requireNonNull(keep, "keep");
+        if (removed < 0 || removed > size()) {
+            throw new IllegalArgumentException("Can't hide " + removed + " of " + size() + " message(s)");
+        }
+        final MessageLog current = compacted;
+        if (current != null) {
+            return current.hiding(keep, removed);
+        }
+        if (removed == 0) {
+            return this;
+        }
+        final MessageLog result = new MessageLog(tail, chunks, sequences, start, end, nextSequence,
+                new Hiding(keep, end, this.keep), hidden + removed);
+        return result.hidden > result.size() ? result.compacted() : result;
+    }
+
+    /**
+     * Returns this log, skipped ahead so that the next message appended gets the given sequence number, if it would
+     * have got a lower one. Used when an empty log replaces another one, so that sequence numbers never go backwards.
+     */
+    @NotNull
+    public MessageLog withNextSequence(final long nextSequence) {
+        return new MessageLog(tail, chunks, sequences, start, end, Math.max(this.nextSequence, nextSequence), keep,
+                hidden);
+    }
+
+    /**
+     * The sequence number which the next appended message will get
+     */
+    public long nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * The sequence number of the message at the given index
+     */
+    public long sequenceAt(final int index) {
+        if (keep != null) {
+            return compacted().sequenceAt(index);
+        }
+        checkIndex(index);
+        final int slot = start + index;
+        return sequences[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+
+    /**
+     * Returns up to {@code limit} messages whose sequence numbers come after {@code after}, in O(log(size) + limit).
+     */
+    @NotNull
+    public MessagePage page(final long after, final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        if (keep != null) {
+            return compacted().page(after, limit);
+        }
+        final int from = indexAfter(after);
+        final int to = (int) Math.min(size(), (long) from + limit);
+        final long[] pageSequences = new long[to - from];
+        for (int i = from; i < to; i++) {
+            pageSequences[i - from] = sequenceAt(i);
+        }
+        final long last;
+        if (to == size()) {
+            // The end of the log, so skip over anything filtered out after the last message too
+            last = nextSequence - 1;
+        } else {
+            last = to == 0 ? after : sequenceAt(to - 1);
+        }
+        return new MessagePage(ImmutableList.copyOf(subList(from, to)), pageSequences, Math.max(after, last));
+    }
+
+    @Override
+    public Message get(final int index) {
+        if (keep != null) {
+            return compacted().get(index);
+        }
+        checkIndex(index);
+        final int slot = start + index;
+        return chunks[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+
+    @Override
+    public int size() {
+        return end - start - hidden;
+    }
+
+    /**
+     * Iterates over the messages in order, skipping any hidden ones as it goes rather than filtering them out first
+     */
+    @NotNull
+    @Override
+    public Iterator<Message> iterator() {
+        if (keep == null) {
+            return super.iterator();
+        }
+        return new Iterator<Message>() {
+
+            private int slot = nextKept(start);
+
+            @Override
+            public boolean hasNext() {
+                return slot < end;
+            }
+
+            @Override
+            public Message next() {
+                if (slot >= end) {
+                    throw new NoSuchElementException();
+                }
+                final Message message = chunks[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+                slot = nextKept(slot + 1);
+                return message;
+            }
+        };
+    }
+
+    /**
+     * @return the index of the first message whose sequence number is higher than the given one, or the size of the log
+     * if there isn't one
+     */
+    private int indexAfter(final long sequence) {
+        if (keep != null) {
+            return compacted().indexAfter(sequence);
+        }
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sequenceAt(middle) <= sequence) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @NotNull
+    private MessageLog put(@NotNull final Message message, final long sequence, final long newNextSequence) {
+        if (!tail.compareAndSet(end, end + 1)) {
+            // Something was already appended after this version, so the next slot is taken
+            return copy().put(message, sequence, newNextSequence);
+        }
+        final int chunk = end >>> CHUNK_SHIFT;
+        Message[][] resultChunks = chunks;
+        long[][] resultSequences = sequences;
+        if (chunk == resultChunks.length) {
+            resultChunks = Arrays.copyOf(resultChunks, Math.max(1, resultChunks.length * 2));
+            resultSequences = Arrays.copyOf(resultSequences, resultChunks.length);
+        }
+        if (resultChunks[chunk] == null) {
+            resultChunks[chunk] = new Message[CHUNK_SIZE];
+            resultSequences[chunk] = new long[CHUNK_SIZE];
+        }
+        resultChunks[chunk][end & CHUNK_MASK] = message;
+        resultSequences[chunk][end & CHUNK_MASK] = sequence;
+        // Still hiding whatever was hidden here; but only up to the new message, which is always kept
+        return new MessageLog(tail, resultChunks, resultSequences, start, end + 1, newNextSequence, keep, hidden);
+    }
+
+    /**
+     * @return a copy of this log, in new chunks, with only the messages actually in it
+     */
+    @NotNull
+    private MessageLog copy() {
+        MessageLog result = emptyFrom(nextSequence);
+        for (int slot = start; slot < end; slot++) {
+            final Message message = chunks[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+            if (keeps(slot)) {
+                result = result.put(message, sequences[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK], nextSequence);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return this log with its hidden messages filtered out, doing so the first time only
+     */
+    @NotNull
+    private MessageLog compacted() {
+        MessageLog result = compacted;
+        if (result == null) {
+            // Racing threads may each filter it; the results are equivalent, and only one is kept
+            result = copy();
+            compacted = result;
+        }
+        return result;
+    }
+
+    private boolean keeps(final int slot) {
+        return keep == null || keep.keeps(slot, chunks[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK]);
+    }
+
+    /**
+     * @return the first slot from the given one holding a message which isn't hidden, or the end
+     */
+    private int nextKept(final int from) {
+        int slot = from;
+        while (slot < end && !keeps(slot)) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+    }
+
+    /**
+     * A filter hiding messages from a log, which only applies to the ones already in it when it was hidden (i.e. the
+     * slots before {@code end}), on top of any filters hidden before it
+     */
+    private static final class Hiding {
+
+        private final Predicate<? super Message> keep;
+        private final int end;
+        @Nullable
+        private final Hiding previous;
+
+        private Hiding(@NotNull final Predicate<? super Message> keep, final int end, @Nullable final Hiding previous) {
+            this.keep = keep;
+            this.end = end;
+            this.previous = previous;
+        }
+
+        private boolean keeps(final int slot, @NotNull final Message message) {
+            return (slot >= end || keep.test(message)) && (previous == null || previous.keeps(slot, message));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package me.ccampo.subscriptionservice.model;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+
+/**
+ * A page of messages, along with the sequence number of each one, and the cursor to pass as {@code after} to get the
+ * next page.
+ *
+ * @author Chris Campo
+ */
+public class MessagePage {
+
+    public final ImmutableList<Message> messages;
+    public final long nextCursor;
+    // Parallel to `messages`; never modified
+    private final long[] sequences;
+
+    public MessagePage(@NotNull final ImmutableList<Message> messages, @NotNull final long[] sequences,
+            final long nextCursor) {
+        this.messages = Objects.requireNonNull(messages, "messages");
+        this.sequences = Objects.requireNonNull(sequences, "sequences");
+        if (sequences.length != messages.size()) {
+            throw new IllegalArgumentException("Every message must have exactly one sequence number");
+        }
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * The sequence number of the message at the given index in {@link #messages}
+     */
+    public long sequenceAt(final int index) {
+        return sequences[index];
+    }
+}
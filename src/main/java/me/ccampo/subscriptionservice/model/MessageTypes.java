@@ -0,0 +1,116 @@
+package me.ccampo.subscriptionservice.model;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns message types as small, dense integer IDs, so that matching a message against a subscription is a bit test
+ * rather than a string hash lookup.
+ * <p>
+ * Each {@code SubscriptionService} owns one, and is the only thing which registers or releases types in it: once when
+ * it stores a version of a subscription with new types (see {@link TypeMatcher#bind(MessageTypes)}), and once when
+ * that version is replaced or removed. A subscription which is only built (by a request, the journal or a test) and
+ * never stored matches types by name, and never registers anything, so it has nothing to release either.
+ * <p>
+ * Only the types of subscriptions are ever registered; a message with a type nobody subscribes to is just never found,
+ * so clients publishing arbitrary types can't grow the registry. Every registration is a reference to the type, and
+ * once the last one is released (i.e. no subscription supports the type any more), the type is forgotten and its ID is
+ * given to the next new type. So the registry only grows with the number of distinct types subscribed to at once, and
+ * IDs stay dense.
+ * <p>
+ * Since an ID may be reused, anything which keeps one without holding a reference to its type (e.g. a message) has to
+ * check that {@link #nameOf(int)} is still its type before using it.
+ *
+ * @author Chris Campo
+ */
+public final class MessageTypes {
+
+    public static final int UNKNOWN = -1;
+
+    private final Map<String, Integer> idsByName = new ConcurrentHashMap<>();
+    // Indexed by ID; replaced as it grows, and written again (so that the write is published) whenever an ID is freed
+    // or reused. Null for an ID which is free.
+    private volatile String[] names = new String[64];
+    // Everything below is guarded by this
+    // Indexed by ID; the number of references to each type
+    private int[] references = new int[64];
+    private int size;
+    // IDs which were released, to be reused before any new ones
+    private int[] freeIds = new int[16];
+    private int freeCount;
+
+    /**
+     * Takes a reference to the type, registering it first if needed. Has to be released exactly once, with
+     * {@link #release(int)}, once it's no longer used.
+     *
+     * @return the ID of the type, which won't be reused until the reference is released
+     */
+    public synchronized int register(@NotNull final String type) {
+        final Integer existing = idsByName.get(Objects.requireNonNull(type, "type"));
+        final int id = existing != null ? existing : registerNew(type);
+        references[id]++;
+        return id;
+    }
+
+    /**
+     * Releases a reference to the type with the given ID, forgetting the type if it was the last one
+     */
+    public synchronized void release(final int id) {
+        if (id < 0 || id >= size || references[id] == 0) {
+            throw new IllegalStateException("Type ID " + id + " is not registered");
+        }
+        if (--references[id] > 0) {
+            return;
+        }
+        final String[] current = names;
+        // No longer findable before its name is cleared
+        idsByName.remove(current[id]);
+        current[id] = null;
+        names = current;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, 2 * freeIds.length);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * @return the ID of the type, or {@link #UNKNOWN} if it isn't registered
+     */
+    public int find(@NotNull final String type) {
+        final Integer id = idsByName.get(type);
+        return id != null ? id : UNKNOWN;
+    }
+
+    /**
+     * @return the name of the type with the given ID, or null if the ID is free (or was never given out)
+     */
+    @Nullable
+    public String nameOf(final int id) {
+        final String[] current = names;
+        return id >= 0 && id < current.length ? current[id] : null;
+    }
+
+    private int registerNew(@NotNull final String type) {
+        final int id;
+        String[] current = names;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = size++;
+            if (id == current.length) {
+                current = Arrays.copyOf(current, 2 * current.length);
+                references = Arrays.copyOf(references, current.length);
+            }
+        }
+        current[id] = type;
+        names = current;
+        // Only findable once its name is published
+        idsByName.put(type, id);
+        return id;
+    }
+}
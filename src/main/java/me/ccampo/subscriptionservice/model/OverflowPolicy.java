@@ -0,0 +1,27 @@
+package me.ccampo.subscriptionservice.model;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * What happens when a message is delivered to a subscription whose mailbox is already at capacity.
+ *
+ * @author Chris Campo
+ */
+public enum OverflowPolicy {
+    /** The oldest message in the mailbox is evicted to make room for the new one */
+    DROP_OLDEST,
+    /** The new message is silently discarded */
+    DROP_NEWEST,
+    /** The new message is discarded, and the publisher is told so */
+    REJECT;
+
+    /**
+     * Parses a policy leniently, so that both {@code DROP_OLDEST} and {@code drop-oldest} are accepted.
+     */
+    @NotNull
+    public static OverflowPolicy parse(@NotNull final String value) {
+        return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+}
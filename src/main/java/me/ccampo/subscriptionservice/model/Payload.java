@@ -0,0 +1,200 @@
+package me.ccampo.subscriptionservice.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.json.UTF8JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * The content of a message, either held on the heap as a {@link String}, or as UTF-8 bytes outside the heap in a
+ * {@link PayloadArena}. Either way it's serialized as a plain JSON string.
+ *
+ * @author Chris Campo
+ */
+@JsonSerialize(using = Payload.Serializer.class)
+public abstract class Payload {
+
+    // Reused for copying off-heap bytes out, so writing them doesn't allocate. Anything larger than the limit gets a
+    // buffer of its own, so that one huge payload doesn't leave every thread holding on to a huge buffer.
+    private static final int SCRATCH_SIZE = 8192;
+    private static final int MAX_SCRATCH_SIZE = 1 << 20;
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+
+    Payload() {
+    }
+
+    @NotNull
+    public static Payload of(@NotNull final String content) {
+        return new HeapPayload(content);
+    }
+
+    /**
+     * @return an approximation of the memory retained by the content, for retention limits
+     */
+    public abstract long retainedSize();
+
+    /**
+     * Writes the content as UTF-8, prefixed with its length in bytes.
+     */
+    public abstract void writeTo(@NotNull DataOutput out) throws IOException;
+
+    abstract void writeJson(@NotNull JsonGenerator generator) throws IOException;
+
+    /**
+     * @return the content; for an off-heap payload, this decodes a new copy of it every time
+     */
+    @Override
+    @NotNull
+    public abstract String toString();
+
+    /**
+     * Payloads are equal if their content is, wherever it's stored
+     */
+    @Override
+    public final boolean equals(final Object other) {
+        return this == other || other instanceof Payload && toString().equals(other.toString());
+    }
+
+    @Override
+    public final int hashCode() {
+        return toString().hashCode();
+    }
+
+    @NotNull
+    private static byte[] scratch(final int size) {
+        final byte[] buffer = scratch.get();
+        if (buffer.length >= size) {
+            return buffer;
+        }
+        if (size > MAX_SCRATCH_SIZE) {
+            return new byte[size];
+        }
+        final byte[] larger = new byte[Math.max(size, Math.min(2 * buffer.length, MAX_SCRATCH_SIZE))];
+        scratch.set(larger);
+        return larger;
+    }
+
+    private static final class HeapPayload extends Payload {
+
+        private final String content;
+
+        private HeapPayload(@NotNull final String content) {
+            this.content = Objects.requireNonNull(content, "content");
+        }
+
+        @Override
+        public long retainedSize() {
+            // UTF-16
+            return 2L * content.length();
+        }
+
+        @Override
+        public void writeTo(@NotNull final DataOutput out) throws IOException {
+            final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        void writeJson(@NotNull final JsonGenerator generator) throws IOException {
+            generator.writeString(content);
+        }
+
+        @Override
+        @NotNull
+        public String toString() {
+            return content;
+        }
+    }
+
+    static final class OffHeapPayload extends Payload {
+
+        // The handle itself, plus the buffer describing its slice of the slab, which aren't counted by the slab
+        private static final long HANDLE_SIZE = 96;
+
+        // A slice of one of the arena's slabs; never handed out as is, since it's writable
+        private final ByteBuffer bytes;
+        private final PayloadArena.Slab slab;
+
+        OffHeapPayload(@NotNull final ByteBuffer bytes, @NotNull final PayloadArena.Slab slab) {
+            this.bytes = Objects.requireNonNull(bytes, "bytes");
+            this.slab = Objects.requireNonNull(slab, "slab");
+        }
+
+        void encode(@NotNull final String content, @NotNull final CharsetEncoder encoder) {
+            final ByteBuffer target = bytes.duplicate();
+            final CoderResult result = encoder.encode(CharBuffer.wrap(content), target, true);
+            if (result.isError() || result.isOverflow() || encoder.flush(target).isOverflow()) {
+                // Can't happen; the content was checked, and the region is exactly the right size
+                throw new IllegalStateException("Failed to encode content: " + result);
+            }
+        }
+
+        @Override
+        public long retainedSize() {
+            // A single reachable payload keeps its whole slab in use, but that's shared by every other payload in it,
+            // so it's accounted for by the arena instead
+            return HANDLE_SIZE + bytes.remaining();
+        }
+
+        @Override
+        public void writeTo(@NotNull final DataOutput out) throws IOException {
+            final ByteBuffer source = bytes.duplicate();
+            out.writeInt(source.remaining());
+            final byte[] buffer = scratch(Math.min(source.remaining(), SCRATCH_SIZE));
+            while (source.hasRemaining()) {
+                final int length = Math.min(source.remaining(), buffer.length);
+                source.get(buffer, 0, length);
+                out.write(buffer, 0, length);
+            }
+            slab.keepAlive();
+        }
+
+        @Override
+        void writeJson(@NotNull final JsonGenerator generator) throws IOException {
+            // Only a generator writing UTF-8 bytes (e.g. to an HTTP response) can take UTF-8 bytes as they are
+            if (!(generator instanceof UTF8JsonGenerator)) {
+                generator.writeString(toString());
+                return;
+            }
+            // The generator escapes them straight into its own output buffer, without decoding them first
+            final byte[] buffer = scratch(bytes.remaining());
+            final int length = bytes.remaining();
+            bytes.duplicate().get(buffer, 0, length);
+            slab.keepAlive();
+            generator.writeUTF8String(buffer, 0, length);
+        }
+
+        @Override
+        @NotNull
+        public String toString() {
+            final String content = StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+            slab.keepAlive();
+            return content;
+        }
+    }
+
+    public static final class Serializer extends StdSerializer<Payload> {
+
+        public Serializer() {
+            super(Payload.class);
+        }
+
+        @Override
+        public void serialize(final Payload value, final JsonGenerator generator, final SerializerProvider provider)
+                throws IOException {
+            value.writeJson(generator);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package me.ccampo.subscriptionservice.model;
+
+import com.google.common.base.Utf8;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores message content, either on the heap as is (the default), or outside the heap as UTF-8.
+ * <p>
+ * Off the heap, content is bump allocated from fixed size slabs of direct memory, so the heap only holds a small
+ * handle per message, however large the content is, and the garbage collector never has to copy or scan the content
+ * itself. Content larger than a slab gets a slab of its own.
+ * <p>
+ * Nothing counts who holds a message: mailboxes are immutable snapshots, so a response may still be writing a message
+ * out long after it was acknowledged, and would write some other message's bytes if its memory had been reused by then.
+ * Instead, every handle references its slab, and once the garbage collector finds that none do, nothing can read the
+ * slab's memory any more, so it's put on a free-list, and new slabs are taken from there before any more direct memory
+ * is allocated. Up to {@code maxFreeSlabs} are kept; beyond that, the JVM frees them. A slab stays in use as long as a
+ * single message in it is reachable, however much of the rest of it is dead; smaller slabs waste less that way, larger
+ * ones allocate less often. Direct memory is limited by {@code -XX:MaxDirectMemorySize}.
+ *
+ * @author Chris Campo
+ */
+@Service
+public class PayloadArena {
+
+    private static final ThreadLocal<CharsetEncoder> encoders =
+            ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+
+    private final boolean offHeap;
+    private final int slabSize;
+    private final int maxFreeSlabs;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong slabBytes = new AtomicLong();
+    private final AtomicLong freeBytes = new AtomicLong();
+
+    // Everything below is guarded by this
+    // The slab currently being allocated from, and its memory (positioned at the next free byte)
+    private Slab slab;
+    private ByteBuffer slabMemory;
+    // Every slab which may still be referenced, until it's found to be unreachable
+    private final Set<SlabReference> slabs = new HashSet<>();
+    private final ReferenceQueue<Slab> unreachable = new ReferenceQueue<>();
+    private final Deque<ByteBuffer> freeSlabs = new ArrayDeque<>();
+
+    @Autowired
+    public PayloadArena(@Value("${subscription-service.payloads.off-heap:false}") final boolean offHeap,
+            @Value("${subscription-service.payloads.slab-size:1048576}") final int slabSize,
+            @Value("${subscription-service.payloads.max-free-slabs:16}") final int maxFreeSlabs) {
+        if (offHeap && slabSize <= 0) {
+            throw new IllegalArgumentException("slabSize must be positive");
+        }
+        this.offHeap = offHeap;
+        this.slabSize = slabSize;
+        this.maxFreeSlabs = maxFreeSlabs;
+    }
+
+    // Primarily used for testing
+    public PayloadArena(final boolean offHeap, final int slabSize) {
+        this(offHeap, slabSize, 16);
+    }
+
+    /**
+     * An arena which keeps all content on the heap
+     */
+    @NotNull
+    public static PayloadArena onHeap() {
+        return new PayloadArena(false, 0);
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @return the total size of every slab allocated from the JVM so far, including those which have since been freed
+     * (but not counting reuse)
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return the total size of the slabs which may still hold reachable content, and so can't be reused yet. Only
+     * checked when a new slab is needed, so slabs which have become unreachable since then are still counted.
+     */
+    public long getSlabBytes() {
+        return slabBytes.get();
+    }
+
+    /**
+     * @return the total size of the slabs on the free-list, waiting to be reused
+     */
+    public long getFreeBytes() {
+        return freeBytes.get();
+    }
+
+    @NotNull
+    public Payload store(@NotNull final String content) {
+        if (!offHeap) {
+            return Payload.of(content);
+        }
+        final int size;
+        try {
+            size = Utf8.encodedLength(content);
+        } catch (final IllegalArgumentException e) {
+            // Unpaired surrogates can't be encoded as is; keep the content exactly as it was given
+            return Payload.of(content);
+        }
+        final Payload.OffHeapPayload payload = allocate(size);
+        payload.encode(content, encoders.get().reset());
+        return payload;
+    }
+
+    @NotNull
+    private synchronized Payload.OffHeapPayload allocate(final int size) {
+        if (size > slabSize) {
+            reclaimUnreachable();
+            allocatedBytes.addAndGet(size);
+            final ByteBuffer memory = ByteBuffer.allocateDirect(size);
+            // Never reused, since no other content would fit it, but still tracked so that it's counted while in use
+            return new Payload.OffHeapPayload(memory, track(memory));
+        }
+        if (slab == null || slabMemory.remaining() < size) {
+            reclaimUnreachable();
+            final ByteBuffer free = freeSlabs.poll();
+            if (free != null) {
+                freeBytes.addAndGet(-slabSize);
+                free.clear();
+                slabMemory = free;
+            } else {
+                allocatedBytes.addAndGet(slabSize);
+                slabMemory = ByteBuffer.allocateDirect(slabSize);
+            }
+            slab = track(slabMemory);
+        }
+        final ByteBuffer region = slabMemory.slice();
+        region.limit(size);
+        slabMemory.position(slabMemory.position() + size);
+        return new Payload.OffHeapPayload(region, slab);
+    }
+
+    @NotNull
+    private Slab track(@NotNull final ByteBuffer memory) {
+        final Slab result = new Slab();
+        slabs.add(new SlabReference(result, memory, unreachable));
+        slabBytes.addAndGet(memory.capacity());
+        return result;
+    }
+
+    private void reclaimUnreachable() {
+        for (Reference<? extends Slab> next = unreachable.poll(); next != null; next = unreachable.poll()) {
+            final SlabReference reference = (SlabReference) next;
+            slabs.remove(reference);
+            final int size = reference.memory.capacity();
+            slabBytes.addAndGet(-size);
+            if (size == slabSize && freeSlabs.size() < maxFreeSlabs) {
+                freeSlabs.push(reference.memory);
+                freeBytes.addAndGet(slabSize);
+            }
+        }
+    }
+
+    /**
+     * Stands for a slab of direct memory, and is referenced by every payload stored in it. Once nothing references it
+     * any more, nothing can read its memory either, so it can be reused.
+     */
+    static final class Slab {
+
+        // Only ever written; see keepAlive()
+        @SuppressWarnings("unused")
+        private volatile boolean read;
+
+        private Slab() {
+        }
+
+        /**
+         * Called after reading the memory of a payload in this slab. Java 8 has no reachability fence, so otherwise,
+         * once the payload's fields were loaded, it (and so the slab) could be found unreachable, and the memory
+         * reused, while it's still being read. A volatile write can neither be dropped nor moved ahead of the reads
+         * before it, so the slab is still reachable until they're done.
+         */
+        void keepAlive() {
+            read = true;
+        }
+    }
+
+    // Holds on to the memory of a slab, for once the slab itself is unreachable
+    private static final class SlabReference extends WeakReference<Slab> {
+
+        private final ByteBuffer memory;
+
+        private SlabReference(@NotNull final Slab slab, @NotNull final ByteBuffer memory,
+                @NotNull final ReferenceQueue<Slab> queue) {
+            super(slab, queue);
+            this.memory = memory;
+        }
+    }
+}
@@ -1,9 +1,16 @@
 package me.ccampo.subscriptionservice.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 
@@ -15,28 +22,282 @@ public class Subscription {
     public final UUID id;
     public final String name;
     public final ImmutableSet<String> messageTypes;
-    public final ImmutableList<Message> messages;
+    // Serialized by SubscriptionResource instead, which can page through them
+    @JsonIgnore
+    public final MessageLog messages;
+    // The maximum number of messages kept in `messages`, and what to do with new messages beyond that
+    public final int capacity;
+    public final OverflowPolicy overflowPolicy;
+    // The number of messages dropped or rejected because the mailbox was full
+    public final long overflowCount;
+    // Kept up to date on every change to `messages`, so reading it never has to scan them. Serialized by
+    // SubscriptionResource instead.
+    @JsonIgnore
+    public final MessageCounts messageCountsByType;
+    // `messageTypes` again, for matching messages; by name, until bound to the MessageTypes of the service storing it.
+    // Any of them may be a TypePattern.
+    private final TypeMatcher matcher;
 
     public Subscription(@NotNull final UUID id,
             @NotNull final String name,
             @NotNull final ImmutableSet<String> messageTypes,
-            @NotNull final ImmutableList<Message> messages) {
+            @NotNull final MessageLog messages,
+            final int capacity,
+            @NotNull final OverflowPolicy overflowPolicy,
+            final long overflowCount) {
         this.id = Objects.requireNonNull(id, "id");
         this.name = Objects.requireNonNull(name, "name");
         this.messageTypes = Objects.requireNonNull(messageTypes, "messageTypes");
+        if (capacity <= 0 || messages.size() > capacity) {
+            throw new IllegalArgumentException("Capacity must be positive, and at least the number of messages");
+        }
+        this.matcher = TypeMatcher.of(messageTypes);
         // I'm not a huge fan of logic in constructors, and it's probably not needed, but I figured it couldn't hurt.
-        if (messages.stream().anyMatch(msg -> !messageTypes.contains(msg.type))) {
-            throw new IllegalArgumentException("Must only contain messages with types defined in `messageTypes`");
+        for (final Message message : messages) {
+            if (!supportsType(message)) {
+                throw new IllegalArgumentException("Must only contain messages with types defined in `messageTypes`");
+            }
         }
+        // Messages matched by a pattern are counted under their own types, and the pattern itself stays at zero
+        this.messageCountsByType = MessageCounts.of(messageTypes).plus(messages, ImmutableList.of());
         this.messages = Objects.requireNonNull(messages, "messages");
+        this.capacity = capacity;
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "overflowPolicy");
+        this.overflowCount = overflowCount;
+    }
+
+    public Subscription(@NotNull final UUID id,
+            @NotNull final String name,
+            @NotNull final ImmutableSet<String> messageTypes,
+            @NotNull final MessageLog messages) {
+        // Unbounded
+        this(id, name, messageTypes, messages, Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST, 0);
+    }
+
+    public Subscription(@NotNull final UUID id,
+            @NotNull final String name,
+            @NotNull final ImmutableSet<String> messageTypes,
+            @NotNull final ImmutableList<Message> messages) {
+        this(id, name, messageTypes, MessageLog.copyOf(messages));
+    }
+
+    public Subscription(@NotNull final String name, @NotNull final ImmutableSet<String> messageTypes,
+            final int capacity, @NotNull final OverflowPolicy overflowPolicy) {
+        // Start with a random UUID and empty list. Random, since anyone who knows a subscription's ID can read (and
+        // acknowledge or delete) its messages, so it must not be guessable from the IDs of others.
+        this(UUID.randomUUID(), name, messageTypes, MessageLog.empty(), capacity, overflowPolicy, 0);
     }
 
     public Subscription(@NotNull final String name, @NotNull final ImmutableSet<String> messageTypes) {
-        // Start with an auto-generated UUID and empty list
-        this(UUID.randomUUID(), name, messageTypes, ImmutableList.of());
+        this(name, messageTypes, Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST);
+    }
+
+    // Skips the validation above; only used when the messages are already known to be supported
+    private Subscription(@NotNull final Subscription subscription, @NotNull final MessageLog messages,
+            final long overflowCount, @NotNull final MessageCounts messageCountsByType) {
+        this(subscription.id, subscription.name, subscription.messageTypes, subscription.matcher, messages,
+                subscription.capacity, subscription.overflowPolicy, overflowCount, messageCountsByType);
     }
 
+    // The same, for when the types change too
+    private Subscription(@NotNull final UUID id,
+            @NotNull final String name,
+            @NotNull final ImmutableSet<String> messageTypes,
+            @NotNull final TypeMatcher matcher,
+            @NotNull final MessageLog messages,
+            final int capacity,
+            @NotNull final OverflowPolicy overflowPolicy,
+            final long overflowCount,
+            @NotNull final MessageCounts messageCountsByType) {
+        this.id = id;
+        this.name = name;
+        this.messageTypes = messageTypes;
+        this.matcher = matcher;
+        this.messages = messages;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowCount = overflowCount;
+        this.messageCountsByType = messageCountsByType;
+    }
+
+    /**
+     * @return whether the type is one of `messageTypes`, or matches one of the patterns among them
+     */
     public boolean supportsType(@NotNull final String type) {
-        return messageTypes.contains(type);
+        return matcher.matches(type);
+    }
+
+    /**
+     * The same as {@code supportsType(message.type)}, but only a bit test unless this subscription has patterns
+     */
+    public boolean supportsType(@NotNull final Message message) {
+        return matcher.matches(message);
+    }
+
+    /**
+     * Returns this subscription with its types registered in the given registry (see {@link TypeMatcher#bind}), so
+     * that messages are matched by their IDs in it. If they already are, this is returned as is; otherwise, the copy
+     * has to be released with {@link #releaseMessageTypes} once it's replaced or removed. Every version derived from
+     * the copy (other than by changing its types) shares its registration.
+     */
+    @NotNull
+    public Subscription boundTo(@NotNull final MessageTypes registry) {
+        if (matcher.isBoundTo(registry)) {
+            return this;
+        }
+        return new Subscription(id, name, messageTypes, matcher.bind(registry), messages, capacity, overflowPolicy,
+                overflowCount, messageCountsByType);
+    }
+
+    /**
+     * Releases this subscription's references to its types in the registry it's bound to, once it's been replaced by
+     * another version (or removed, when that's null), unless the replacement still shares them. Does nothing if it
+     * isn't bound.
+     */
+    public void releaseMessageTypes(@Nullable final Subscription replacement) {
+        if (replacement == null || replacement.matcher != matcher) {
+            matcher.release();
+        }
+    }
+
+    public boolean isFull() {
+        return messages.size() >= capacity;
+    }
+
+    /**
+     * Returns a copy of this subscription with the given message appended to its messages. Only the new message is
+     * validated, and the existing messages are not copied.
+     * <p>
+     * If the mailbox is full, the overflow policy applies: either the oldest message is dropped, or the new message is
+     * discarded (whether it's dropped or rejected is up to the caller). Either way, the overflow count is incremented.
+     */
+    @NotNull
+    public Subscription withMessage(@NotNull final Message message) {
+        if (!supportsType(message)) {
+            throw new IllegalArgumentException("Message type " + message.type + " is not supported");
+        }
+        if (!isFull()) {
+            return new Subscription(this, messages.append(message), overflowCount,
+                    messageCountsByType.plus(ImmutableList.of(message), ImmutableList.of()));
+        }
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            final int dropped = messages.size() - capacity + 1;
+            final MessageLog trimmed = messages.dropOldest(dropped);
+            return new Subscription(this, trimmed.append(message), overflowCount + 1,
+                    messageCountsByType.plus(ImmutableList.of(message),
+                            ImmutableList.copyOf(Iterables.limit(messages, dropped))));
+        }
+        return new Subscription(this, messages, overflowCount + 1, messageCountsByType);
+    }
+
+    /**
+     * Returns a copy of this subscription with every given message appended, in order, exactly as if
+     * {@link #withMessage(Message)} had been called for each one; but the message counts are only rebuilt once, so a
+     * batch costs O(number of types) plus O(1) amortized per message.
+     */
+    @NotNull
+    public Subscription withMessages(@NotNull final List<Message> batch) {
+        for (final Message message : batch) {
+            if (!supportsType(message)) {
+                throw new IllegalArgumentException("Message type " + message.type + " is not supported");
+            }
+        }
+        MessageLog result = messages;
+        final List<Message> accepted = new ArrayList<>(batch.size());
+        int dropped = 0;
+        long overflow = overflowCount;
+        for (final Message message : batch) {
+            if (result.size() < capacity) {
+                result = result.append(message);
+                accepted.add(message);
+            } else if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                result = result.dropOldest(result.size() - capacity + 1).append(message);
+                accepted.add(message);
+                dropped++;
+                overflow++;
+            } else {
+                overflow++;
+            }
+        }
+        if (accepted.isEmpty()) {
+            return overflow == overflowCount ? this : new Subscription(this, messages, overflow, messageCountsByType);
+        }
+        // The dropped messages are always the oldest, whether they were already here or only just arrived
+        final List<Message> removed = ImmutableList.copyOf(Iterables.limit(Iterables.concat(messages, accepted),
+                dropped));
+        return new Subscription(this, result, overflow, messageCountsByType.plus(accepted, removed));
+    }
+
+    /**
+     * Returns a copy of this subscription without the messages whose sequence numbers are {@code upTo} or lower, i.e.
+     * once a consumer has acknowledged them. Costs O(1) amortized per removed message, and the memory they used is
+     * reclaimed as whole chunks of the log are dropped.
+     */
+    @NotNull
+    public Subscription withAcknowledged(final long upTo) {
+        final MessageLog trimmed = messages.dropThrough(upTo);
+        final int removed = messages.size() - trimmed.size();
+        if (removed == 0) {
+            return this;
+        }
+        return new Subscription(this, trimmed, overflowCount,
+                messageCountsByType.plus(ImmutableList.of(), ImmutableList.copyOf(Iterables.limit(messages, removed))));
+    }
+
+    /**
+     * Returns a copy of this subscription with the given name. The messages are shared, not copied.
+     */
+    @NotNull
+    public Subscription withName(@NotNull final String name) {
+        return new Subscription(id, Objects.requireNonNull(name, "name"), messageTypes, matcher, messages, capacity,
+                overflowPolicy, overflowCount, messageCountsByType);
+    }
+
+    /**
+     * Returns a copy of this subscription which supports the given types instead, without any of the messages whose
+     * types it no longer supports. The remaining messages keep their sequence numbers, and new messages carry on from
+     * the same sequence number, so cursors and acknowledgements held by consumers stay valid.
+     * <p>
+     * The message counts already say which types are in the mailbox, and how many messages of each, so this costs
+     * O(number of types) whatever is dropped: if none of them are, the messages are shared as they are; if all of them
+     * are, the mailbox is just emptied; and if only some are, the dropped messages are hidden in the shared log (see
+     * {@link MessageLog#hiding}), and only filtered out once it's next paged through by a consumer, rather than while
+     * deliveries to this subscription wait on the update. The kept messages aren't validated again.
+     */
+    @NotNull
+    public Subscription withMessageTypes(@NotNull final ImmutableSet<String> messageTypes) {
+        return withMessageTypes(TypeMatcher.of(messageTypes));
+    }
+
+    /**
+     * The same as {@link #withMessageTypes(ImmutableSet)}, with a matcher for the new types built ahead of time, e.g.
+     * one already bound to the registry this subscription is stored with. The copy uses that matcher as is.
+     */
+    @NotNull
+    public Subscription withMessageTypes(@NotNull final TypeMatcher newMatcher) {
+        final ImmutableSet<String> messageTypes = newMatcher.getTypesAndPatterns();
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        long dropped = 0;
+        for (final Map.Entry<String, Long> entry : messageCountsByType.entrySet()) {
+            if (entry.getValue() == 0) {
+                continue;
+            }
+            if (newMatcher.matches(entry.getKey())) {
+                counts.put(entry.getKey(), entry.getValue());
+            } else {
+                dropped += entry.getValue();
+            }
+        }
+        final MessageLog result;
+        if (dropped == 0) {
+            result = messages;
+        } else if (dropped == messages.size()) {
+            result = MessageLog.empty().withNextSequence(messages.nextSequence());
+        } else {
+            // By name, since the matcher may be released (and its type IDs reused) before the log is read
+            result = messages.hiding(message -> newMatcher.matches(message.type), (int) dropped);
+        }
+        return new Subscription(id, name, messageTypes, newMatcher, result, capacity, overflowPolicy, overflowCount,
+                MessageCounts.of(messageTypes, counts));
     }
 }
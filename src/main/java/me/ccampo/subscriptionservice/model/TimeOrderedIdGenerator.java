@@ -0,0 +1,50 @@
+package me.ccampo.subscriptionservice.model;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * Generates version 7 UUIDs (RFC 9562): 48 bits of Unix time in milliseconds, a 12 bit counter, and 62 random bits.
+ * Each thread advances its own timestamp and counter together, so the IDs generated by a thread are strictly
+ * increasing, even if the clock goes backwards or more than 4096 IDs are generated in a millisecond (the timestamp then
+ * runs slightly ahead). Threads never contend on a shared counter, so IDs from different threads are only ordered by
+ * their millisecond; within one, the random bits keep them unique. They come from {@link ThreadLocalRandom}, and only
+ * make the IDs unique, not unguessable.
+ *
+ * @author Chris Campo
+ */
+final class TimeOrderedIdGenerator implements IdGenerator {
+
+    static final TimeOrderedIdGenerator INSTANCE = new TimeOrderedIdGenerator(System::currentTimeMillis);
+
+    private static final int COUNTER_BITS = 12;
+    private static final long VERSION = 0x7000L;
+    private static final long VARIANT = 0x8000_0000_0000_0000L;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final long RANDOM_MASK = 0x3FFF_FFFF_FFFF_FFFFL;
+
+    private final LongSupplier clock;
+
+    // The timestamp and counter of the last ID generated on each thread, i.e. its top 60 bits without the version
+    private final ThreadLocal<long[]> last = ThreadLocal.withInitial(() -> new long[1]);
+
+    // Primarily used for testing
+    TimeOrderedIdGenerator(@NotNull final LongSupplier clock) {
+        this.clock = Objects.requireNonNull(clock, "clock");
+    }
+
+    @Override
+    @NotNull
+    public UUID next() {
+        final long[] previous = last.get();
+        final long stamp = Math.max(clock.getAsLong() << COUNTER_BITS, previous[0] + 1);
+        previous[0] = stamp;
+        final long mostSignificant = ((stamp >>> COUNTER_BITS) << 16) | VERSION | (stamp & COUNTER_MASK);
+        final long leastSignificant = (ThreadLocalRandom.current().nextLong() & RANDOM_MASK) | VARIANT;
+        return new UUID(mostSignificant, leastSignificant);
+    }
+}
@@ -0,0 +1,113 @@
+package me.ccampo.subscriptionservice.model;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Matches messages against a set of types, each either a plain type or a {@link TypePattern}. Patterns, which are far
+ * less common, are matched one at a time.
+ * <p>
+ * Plain types are matched by name, until the matcher is bound to a {@link MessageTypes} registry; from then on, a
+ * message is matched with a single bit test. Binding registers the plain types, so a bound matcher has to be released
+ * once it's no longer used; an unbound one holds nothing, and releasing it does nothing.
+ *
+ * @author Chris Campo
+ */
+public final class TypeMatcher {
+
+    // Every plain type and pattern, as given
+    private final ImmutableSet<String> typesAndPatterns;
+    private final ImmutableSet<String> types;
+    private final ImmutableList<TypePattern> patterns;
+    // Both null until bound
+    @Nullable
+    private final MessageTypes registry;
+    @Nullable
+    private final TypeSet typeIds;
+
+    private TypeMatcher(@NotNull final ImmutableSet<String> typesAndPatterns, @NotNull final ImmutableSet<String> types,
+            @NotNull final ImmutableList<TypePattern> patterns, @Nullable final MessageTypes registry,
+            @Nullable final TypeSet typeIds) {
+        this.typesAndPatterns = typesAndPatterns;
+        this.types = types;
+        this.patterns = patterns;
+        this.registry = registry;
+        this.typeIds = typeIds;
+    }
+
+    /**
+     * @return an unbound matcher for all of the given types and patterns, which registers nothing
+     */
+    @NotNull
+    public static TypeMatcher of(@NotNull final ImmutableSet<String> typesAndPatterns) {
+        final ImmutableSet.Builder<String> types = ImmutableSet.builder();
+        final ImmutableList.Builder<TypePattern> patterns = ImmutableList.builder();
+        for (final String type : typesAndPatterns) {
+            if (TypePattern.isPattern(type)) {
+                patterns.add(TypePattern.compile(type));
+            } else {
+                types.add(type);
+            }
+        }
+        return new TypeMatcher(typesAndPatterns, types.build(), patterns.build(), null, null);
+    }
+
+    /**
+     * Registers every plain type in the registry, and returns a matcher for the same types which matches messages by
+     * their IDs in it. Has to be released once it's no longer used.
+     */
+    @NotNull
+    public TypeMatcher bind(@NotNull final MessageTypes registry) {
+        return new TypeMatcher(typesAndPatterns, types, patterns, registry, TypeSet.of(types, registry));
+    }
+
+    /**
+     * @return whether this matcher is bound to the given registry
+     */
+    @Contract(pure = true)
+    public boolean isBoundTo(@NotNull final MessageTypes registry) {
+        return this.registry == registry;
+    }
+
+    /**
+     * @return every plain type and pattern this matcher matches, as given
+     */
+    @NotNull
+    public ImmutableSet<String> getTypesAndPatterns() {
+        return typesAndPatterns;
+    }
+
+    @Contract(pure = true)
+    public boolean matches(@NotNull final Message message) {
+        final boolean matchesType = typeIds != null
+                ? typeIds.contains(message.typeId(registry))
+                : types.contains(message.type);
+        return matchesType || matchesPattern(message.type);
+    }
+
+    @Contract(pure = true)
+    public boolean matches(@NotNull final String type) {
+        return types.contains(type) || matchesPattern(type);
+    }
+
+    /**
+     * Releases the plain types, if bound; see {@link TypeSet#release()}
+     */
+    public void release() {
+        if (typeIds != null) {
+            typeIds.release();
+        }
+    }
+
+    private boolean matchesPattern(@NotNull final String type) {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matches(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,98 @@
+package me.ccampo.subscriptionservice.model;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+
+/**
+ * A hierarchical message type pattern. Types are made up of segments separated by dots (e.g.
+ * {@code orders.eu.created}); in a pattern, a {@code *} segment matches exactly one segment of a type, and a {@code #}
+ * segment matches any number of them, including none. So {@code orders.*} matches {@code orders.created} but not
+ * {@code orders.eu.created}, while {@code orders.#} matches both, and {@code orders} itself. Anything else must match
+ * exactly; a {@code *} or {@code #} within a segment (e.g. {@code ord*}) is just a character.
+ *
+ * @author Chris Campo
+ */
+public final class TypePattern {
+
+    public static final String SEPARATOR = ".";
+    public static final String ONE = "*";
+    public static final String ANY = "#";
+
+    // String#split only skips the regex engine for a single escaped character
+    private static final String SEPARATOR_REGEX = "\\" + SEPARATOR;
+
+    public final String pattern;
+    private final String[] segments;
+
+    private TypePattern(@NotNull final String pattern) {
+        this.pattern = pattern;
+        this.segments = split(pattern);
+    }
+
+    /**
+     * @return whether the type contains any wildcard segments, i.e. isn't just a plain type
+     */
+    @Contract(pure = true)
+    public static boolean isPattern(@NotNull final String type) {
+        for (final String segment : split(type)) {
+            if (segment.equals(ONE) || segment.equals(ANY)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    public static TypePattern compile(@NotNull final String pattern) {
+        return new TypePattern(Objects.requireNonNull(pattern, "pattern"));
+    }
+
+    @NotNull
+    public static String[] split(@NotNull final String type) {
+        return type.split(SEPARATOR_REGEX, -1);
+    }
+
+    /**
+     * Matches the type without splitting it up first, so it doesn't allocate
+     */
+    @Contract(pure = true)
+    public boolean matches(@NotNull final String type) {
+        return matches(0, type, 0);
+    }
+
+    // `from` is where the type's next segment starts; past the end of the type, there are none left
+    private boolean matches(final int index, @NotNull final String type, final int from) {
+        if (index == segments.length) {
+            return from > type.length();
+        }
+        final String segment = segments[index];
+        if (segment.equals(ANY)) {
+            // Match none of the remaining segments, then one more at a time
+            if (matches(index + 1, type, from)) {
+                return true;
+            }
+            for (int start = from; start <= type.length(); start = endOfSegment(type, start) + 1) {
+                if (matches(index + 1, type, endOfSegment(type, start) + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (from > type.length()) {
+            return false;
+        }
+        final int end = endOfSegment(type, from);
+        if (!segment.equals(ONE)
+                && (segment.length() != end - from || !type.regionMatches(from, segment, 0, segment.length()))) {
+            return false;
+        }
+        return matches(index + 1, type, end + 1);
+    }
+
+    private static int endOfSegment(@NotNull final String type, final int from) {
+        final int end = type.indexOf(SEPARATOR, from);
+        return end < 0 ? type.length() : end;
+    }
+}
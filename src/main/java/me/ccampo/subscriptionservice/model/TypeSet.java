@@ -0,0 +1,106 @@
+package me.ccampo.subscriptionservice.model;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An immutable set of message types, by their IDs in a {@link MessageTypes}. Checking whether a type is in it is a
+ * single bit test, with no hashing or boxing, as long as a bitset of its IDs fits in a few words; past that (e.g. a
+ * handful of types registered long after thousands of others), it's a sorted array of the IDs instead, and a binary
+ * search.
+ * <p>
+ * The set holds a reference to each of its types, so their IDs can't be reused while it's in use, and has to be
+ * released once it isn't.
+ *
+ * @author Chris Campo
+ */
+public final class TypeSet {
+
+    // The largest bitset kept, unless it's still no larger than the sorted IDs would be
+    private static final int MAX_WORDS = 4;
+
+    private final MessageTypes registry;
+    // Exactly one of these is set
+    @Nullable
+    private final long[] words;
+    @Nullable
+    private final int[] ids;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private TypeSet(@NotNull final MessageTypes registry, @Nullable final long[] words, @Nullable final int[] ids) {
+        this.registry = registry;
+        this.words = words;
+        this.ids = ids;
+    }
+
+    /**
+     * Registers every given type in the registry, and returns the set of them
+     */
+    @NotNull
+    public static TypeSet of(@NotNull final Iterable<String> types, @NotNull final MessageTypes registry) {
+        Objects.requireNonNull(registry, "registry");
+        int[] ids = new int[8];
+        int count = 0;
+        for (final String type : types) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * count);
+            }
+            ids[count++] = registry.register(type);
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        final int wordCount = count == 0 ? 0 : (ids[count - 1] >> 6) + 1;
+        // Two IDs fit in each word of the array
+        if (wordCount > MAX_WORDS && wordCount * 2 > count) {
+            return new TypeSet(registry, null, ids);
+        }
+        final long[] words = new long[wordCount];
+        for (final int id : ids) {
+            words[id >> 6] |= 1L << id;
+        }
+        return new TypeSet(registry, words, null);
+    }
+
+    /**
+     * @return whether the type with the given ID in the registry (e.g. {@link Message#typeId(MessageTypes)}) is in
+     * this set
+     */
+    @Contract(pure = true)
+    public boolean contains(final int typeId) {
+        // An unknown type (-1) is negative, so it falls out here too
+        if (typeId < 0) {
+            return false;
+        }
+        if (words == null) {
+            return Arrays.binarySearch(ids, typeId) >= 0;
+        }
+        final int word = typeId >> 6;
+        return word < words.length && (words[word] & 1L << typeId) != 0;
+    }
+
+    /**
+     * Releases every type in this set (only the first time), so that the ones which nothing else references are
+     * forgotten. This set shouldn't be used afterwards.
+     */
+    public void release() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        if (words == null) {
+            for (final int id : ids) {
+                registry.release(id);
+            }
+            return;
+        }
+        for (int word = 0; word < words.length; word++) {
+            for (long bits = words[word]; bits != 0; bits &= bits - 1) {
+                registry.release((word << 6) + Long.numberOfTrailingZeros(bits));
+            }
+        }
+    }
+}
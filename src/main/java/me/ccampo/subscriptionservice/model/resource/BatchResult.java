@@ -0,0 +1,29 @@
+package me.ccampo.subscriptionservice.model.resource;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * The outcome of a single item in a batch request: just the ID and an HTTP status code, so that the response for a
+ * large batch stays small.
+ *
+ * @author Chris Campo
+ */
+public class BatchResult {
+
+    public final UUID id;
+    public final int status;
+    @Nullable
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public final String error;
+
+    public BatchResult(@NotNull final UUID id, final int status, @Nullable final String error) {
+        this.id = Objects.requireNonNull(id, "id");
+        this.status = status;
+        this.error = error;
+    }
+}
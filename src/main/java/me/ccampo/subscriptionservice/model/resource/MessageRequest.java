@@ -0,0 +1,25 @@
+package me.ccampo.subscriptionservice.model.resource;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+
+/**
+ * A message to be created, as sent in a batch to POST /messages/batch
+ *
+ * @author Chris Campo
+ */
+public class MessageRequest {
+
+    public final String type;
+    public final String content;
+
+    @JsonCreator
+    public MessageRequest(@JsonProperty("type") @NotNull final String type,
+            @JsonProperty("content") @NotNull final String content) {
+        this.type = Objects.requireNonNull(type, "type");
+        this.content = Objects.requireNonNull(content, "content");
+    }
+}
@@ -0,0 +1,37 @@
+package me.ccampo.subscriptionservice.model.resource;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A subscription to be created, as sent in a batch to POST /subscriptions/batch
+ *
+ * @author Chris Campo
+ */
+public class SubscriptionRequest {
+
+    public final String name;
+    public final ImmutableSet<String> messageTypes;
+    // Absent to use the defaults; plain nullable fields rather than optionals, so they can be read from JSON
+    @Nullable
+    public final Integer capacity;
+    @Nullable
+    public final String overflowPolicy;
+
+    @JsonCreator
+    public SubscriptionRequest(@JsonProperty("name") @NotNull final String name,
+            @JsonProperty("messageTypes") @NotNull final List<String> messageTypes,
+            @JsonProperty("capacity") @Nullable final Integer capacity,
+            @JsonProperty("overflowPolicy") @Nullable final String overflowPolicy) {
+        this.name = Objects.requireNonNull(name, "name");
+        this.messageTypes = ImmutableSet.copyOf(Objects.requireNonNull(messageTypes, "messageTypes"));
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+}
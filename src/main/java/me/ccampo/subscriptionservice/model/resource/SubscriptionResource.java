@@ -1,13 +1,17 @@
 package me.ccampo.subscriptionservice.model.resource;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonUnwrapped;
 import com.google.common.collect.ImmutableList;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.MessagePage;
 import me.ccampo.subscriptionservice.model.Subscription;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import static java.util.stream.Collectors.collectingAndThen;
 import static java.util.stream.Collectors.toList;
@@ -20,23 +24,52 @@ public class SubscriptionResource {
     @JsonUnwrapped
     public final Subscription subscription;
     public final Map<String, Long> messageCountsByType;
+    // Either every message, a single page of them, or nothing at all for the metadata only view (hence nullable)
+    @Nullable
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public final List<Message> messages;
+    // The sequence number of the last message included (or skipped over); pass as `after` to get the next page
+    public final long nextCursor;
 
-    // Private constructor because we only want to be able to create these via the static factory method below
+    // Private constructor because we only want to be able to create these via the static factory methods below
     private SubscriptionResource(@NotNull final Subscription subscription,
-            @NotNull final Map<String, Long> messageCountsByType) {
+            @NotNull final Map<String, Long> messageCountsByType,
+            @Nullable final List<Message> messages,
+            final long nextCursor) {
         this.subscription = subscription;
         this.messageCountsByType = messageCountsByType;
+        this.messages = messages;
+        this.nextCursor = nextCursor;
     }
 
     @NotNull
     @Contract(pure = true)
     public static SubscriptionResource fromSubscription(@NotNull final Subscription subscription) {
-        final Map<String, Long> messageCountsByType = subscription.messages.stream()
-                .collect(Collectors.groupingBy(msg -> msg.type, Collectors.counting()));
-        // The stream collector just returns an empty map if there are zero
-        // messages for certain types, so we have to populate those manually.
-        subscription.messageTypes.forEach(type -> messageCountsByType.putIfAbsent(type, 0L));
-        return new SubscriptionResource(subscription, messageCountsByType);
+        // The log is already an immutable snapshot, so there's no need to copy it
+        return new SubscriptionResource(subscription, subscription.messageCountsByType, subscription.messages,
+                subscription.messages.nextSequence() - 1);
+    }
+
+    /**
+     * Only includes up to {@code limit} messages whose sequence numbers come after {@code after}.
+     */
+    @NotNull
+    @Contract(pure = true)
+    public static SubscriptionResource fromSubscription(@NotNull final Subscription subscription, final long after,
+            final int limit) {
+        final MessagePage page = subscription.messages.page(after, limit);
+        return new SubscriptionResource(subscription, subscription.messageCountsByType, page.messages,
+                page.nextCursor);
+    }
+
+    /**
+     * Leaves the messages out entirely.
+     */
+    @NotNull
+    @Contract(pure = true)
+    public static SubscriptionResource metadataOf(@NotNull final Subscription subscription) {
+        return new SubscriptionResource(subscription, subscription.messageCountsByType, null,
+                subscription.messages.nextSequence() - 1);
     }
 
     @NotNull
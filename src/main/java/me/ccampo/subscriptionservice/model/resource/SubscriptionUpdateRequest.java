@@ -0,0 +1,35 @@
+package me.ccampo.subscriptionservice.model.resource;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * An update to an existing subscription, as sent in a batch to PUT /subscriptions/batch. As with a single update,
+ * leaving out a field leaves it unchanged, while an empty list of message types removes them all.
+ *
+ * @author Chris Campo
+ */
+public class SubscriptionUpdateRequest {
+
+    public final UUID id;
+    @Nullable
+    public final String name;
+    @Nullable
+    public final ImmutableSet<String> messageTypes;
+
+    @JsonCreator
+    public SubscriptionUpdateRequest(@JsonProperty("id") @NotNull final UUID id,
+            @JsonProperty("name") @Nullable final String name,
+            @JsonProperty("messageTypes") @Nullable final List<String> messageTypes) {
+        this.id = Objects.requireNonNull(id, "id");
+        this.name = name;
+        this.messageTypes = messageTypes == null ? null : ImmutableSet.copyOf(messageTypes);
+    }
+}
@@ -0,0 +1,345 @@
+package me.ccampo.subscriptionservice.persistence;
+
+import me.ccampo.subscriptionservice.model.PayloadArena;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, memory-mapped write-ahead log of every change to the in-memory state.
+ * <p>
+ * The log is split into fixed size segment files. Each record is written as its length, a CRC32 of its payload, and
+ * the payload itself; a zero length (the file is zero filled when mapped) or a bad checksum marks the end of a segment,
+ * so a record torn by a crash is simply ignored on recovery.
+ * <p>
+ * Each change is applied and its record appended in one critical section (under the append lock), so the log is always
+ * in exactly the order the changes were applied in, and replaying it rebuilds the same state, even for changes which
+ * raced with each other (e.g. two concurrent publishes landing in one mailbox). Events are encoded beforehand, outside
+ * of the lock. A change is always applied before it's logged, so one which fails is never logged. A snapshot captures
+ * the state under the same lock, so it lines up exactly with a position in the log.
+ * <p>
+ * Flushing to disk happens outside of every lock, on a dedicated thread: every caller waits until its record is
+ * flushed, and each flush covers every record written while the previous one was in progress (group commit), so the
+ * cost of an fsync is spread over as many writes as arrive during it.
+ * <p>
+ * When persistence is disabled, or until {@link #open(long)} is called (i.e. while recovering), changes are just
+ * applied without being logged.
+ *
+ * @author Chris Campo
+ */
+@Service
+public class Journal {
+
+    private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+
+    // Held while a change is applied and appended, and while a snapshot is captured, so that the log is in the order
+    // the changes were applied in, and every change is either both in the snapshot and before its position, or
+    // neither. Also guards appending and rolling over segments.
+    private final Object appendLock = new Object();
+    // Guards the positions below, and is waited on by writers until their records are flushed
+    private final Object flushMonitor = new Object();
+
+    private volatile boolean open;
+    private long segmentNumber;
+    private MappedByteBuffer segment;
+    private FileChannel segmentChannel;
+    // Total bytes written (and flushed) since the journal was opened
+    private long written;
+    private long flushed;
+    private Thread flusher;
+
+    @Autowired
+    public Journal(@Value("${subscription-service.persistence.enabled:false}") final boolean enabled,
+            @Value("${subscription-service.persistence.directory:data}") @NotNull final String directory,
+            @Value("${subscription-service.persistence.segment-size:67108864}") final int segmentSize) {
+        this.enabled = enabled;
+        this.directory = Paths.get(Objects.requireNonNull(directory, "directory"));
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * A journal which never logs anything
+     */
+    @NotNull
+    public static Journal disabled() {
+        return new Journal(false, ".", 0);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @NotNull
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Applies a change, and if the journal is open, logs the event describing it and waits until it's flushed to disk.
+     * The change is applied first, so if it throws, nothing is logged. Applying and logging it is serialized with other
+     * changes; encoding the event and waiting for the flush aren't.
+     */
+    public <T> T record(@NotNull final JournalEvent event, @NotNull final Supplier<T> change) {
+        if (!open) {
+            return change.get();
+        }
+        final byte[] payload = encode(event);
+        final T result;
+        final long position;
+        synchronized (appendLock) {
+            result = change.get();
+            position = append(payload);
+        }
+        awaitFlushed(position);
+        return result;
+    }
+
+    /**
+     * Starts logging changes into a new segment with the given number, after any existing segments.
+     */
+    void open(final long firstSegmentNumber) throws IOException {
+        synchronized (appendLock) {
+            Files.createDirectories(directory);
+            openSegment(firstSegmentNumber);
+            open = true;
+        }
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("Journal opened in {}", directory.toAbsolutePath());
+    }
+
+    /**
+     * Captures the state while no change is in progress, so that it matches the log exactly, and rolls over to a new
+     * segment. Every change in the new segment and after it happened after the capture.
+     *
+     * @return the number of the new segment, which is where replay has to start from on top of the captured state
+     */
+    long checkpoint(@NotNull final Runnable capture) throws IOException {
+        synchronized (appendLock) {
+            capture.run();
+            if (open) {
+                openSegment(segmentNumber + 1);
+            }
+            return segmentNumber;
+        }
+    }
+
+    /**
+     * Reads every intact event in the segments numbered {@code firstSegmentNumber} and higher, in order, storing the
+     * content of their messages in the given arena.
+     *
+     * @return the number after the last segment read, i.e. where new segments should start
+     */
+    long replay(final long firstSegmentNumber, @NotNull final PayloadArena payloads,
+            @NotNull final Consumer<JournalEvent> consumer) throws IOException {
+        long next = firstSegmentNumber;
+        for (final long number : listSegments()) {
+            if (number < firstSegmentNumber) {
+                continue;
+            }
+            try (final FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+                final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int count = 0;
+                for (byte[] payload = readRecord(buffer); payload != null; payload = readRecord(buffer)) {
+                    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                    consumer.accept(JournalEvent.readFrom(in, payloads));
+                    count++;
+                }
+                log.info("Replayed {} event(s) from journal segment {}", count, number);
+            }
+            next = number + 1;
+        }
+        return next;
+    }
+
+    /**
+     * Deletes every segment numbered lower than the given one; they're all covered by a snapshot.
+     */
+    void deleteSegmentsBefore(final long segmentNumber) throws IOException {
+        for (final long number : listSegments()) {
+            if (number < segmentNumber) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        flusher.interrupt();
+        flusher.join();
+        synchronized (appendLock) {
+            segment.force();
+            segmentChannel.close();
+        }
+        // Release anyone who was still waiting on the flusher
+        synchronized (flushMonitor) {
+            flushed = written;
+            flushMonitor.notifyAll();
+        }
+    }
+
+    private long append(@NotNull final byte[] payload) {
+        if (payload.length + RECORD_HEADER_SIZE > segmentSize) {
+            throw new IllegalArgumentException("Journal event of " + payload.length + " bytes exceeds segment size");
+        }
+        try {
+            if (segment.remaining() < payload.length + RECORD_HEADER_SIZE) {
+                openSegment(segmentNumber + 1);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        segment.putInt(payload.length);
+        segment.putInt((int) crc.getValue());
+        segment.put(payload);
+        synchronized (flushMonitor) {
+            written += payload.length + RECORD_HEADER_SIZE;
+            flushMonitor.notifyAll();
+            return written;
+        }
+    }
+
+    private void awaitFlushed(final long position) {
+        synchronized (flushMonitor) {
+            while (flushed < position) {
+                try {
+                    flushMonitor.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the journal to be flushed", e);
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final long target;
+                final MappedByteBuffer current;
+                synchronized (flushMonitor) {
+                    while (written == flushed) {
+                        flushMonitor.wait();
+                    }
+                    target = written;
+                    current = segment;
+                }
+                // Anything written to an earlier segment was already flushed when it was rolled over
+                current.force();
+                synchronized (flushMonitor) {
+                    flushed = target;
+                    flushMonitor.notifyAll();
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Only called under the append lock
+    private void openSegment(final long number) throws IOException {
+        if (segment != null) {
+            segment.force();
+            segmentChannel.close();
+        }
+        segmentChannel = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final MappedByteBuffer mapped = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        synchronized (flushMonitor) {
+            segment = mapped;
+            segmentNumber = number;
+        }
+    }
+
+    private static byte[] readRecord(@NotNull final ByteBuffer buffer) {
+        if (buffer.remaining() < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        final int length = buffer.getInt();
+        final int checksum = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            return null;
+        }
+        final byte[] payload = new byte[length];
+        buffer.get(payload);
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == checksum ? payload : null;
+    }
+
+    @NotNull
+    private static byte[] encode(@NotNull final JournalEvent event) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            event.writeTo(out);
+        } catch (final IOException e) {
+            // Can't happen when writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @NotNull
+    private List<Long> listSegments() throws IOException {
+        final List<Long> numbers = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return numbers;
+        }
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    @NotNull
+    private Path segmentPath(final long number) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+}
@@ -0,0 +1,169 @@
+package me.ccampo.subscriptionservice.persistence;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.MessageLog;
+import me.ccampo.subscriptionservice.model.OverflowPolicy;
+import me.ccampo.subscriptionservice.model.PayloadArena;
+import me.ccampo.subscriptionservice.model.Subscription;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The binary encoding shared by the write-ahead log and snapshots. Strings (and message content) are length prefixed
+ * UTF-8, since {@link DataOutput#writeUTF(String)} can't handle message content over 64KB. Recovered message content is
+ * stored through the given {@link PayloadArena}, so it's kept off the heap just like live content, if it's configured
+ * to be.
+ * <p>
+ * A subscription's messages are either written out in full, or (in a snapshot, where the same message is usually in
+ * many mailboxes) as references to a table of messages written once, so that they're read back as a single instance.
+ *
+ * @author Chris Campo
+ */
+final class JournalCodec {
+
+    private JournalCodec() {
+    }
+
+    static void writeString(@NotNull final DataOutput out, @NotNull final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NotNull
+    static String readString(@NotNull final DataInput in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeStrings(@NotNull final DataOutput out, @NotNull final Collection<String> values)
+            throws IOException {
+        out.writeInt(values.size());
+        for (final String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    @NotNull
+    static ImmutableSet<String> readStrings(@NotNull final DataInput in) throws IOException {
+        final int size = in.readInt();
+        final ImmutableSet.Builder<String> values = ImmutableSet.builder();
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values.build();
+    }
+
+    static void writeUuid(@NotNull final DataOutput out, @NotNull final UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    @NotNull
+    static UUID readUuid(@NotNull final DataInput in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    static void writeMessage(@NotNull final DataOutput out, @NotNull final Message message) throws IOException {
+        writeUuid(out, message.id);
+        writeString(out, message.type);
+        message.content.writeTo(out);
+    }
+
+    @NotNull
+    static Message readMessage(@NotNull final DataInput in, @NotNull final PayloadArena payloads) throws IOException {
+        return new Message(readUuid(in), readString(in), payloads.store(readString(in)));
+    }
+
+    static void writeMessages(@NotNull final DataOutput out, @NotNull final List<Message> messages)
+            throws IOException {
+        out.writeInt(messages.size());
+        for (final Message message : messages) {
+            writeMessage(out, message);
+        }
+    }
+
+    @NotNull
+    static ImmutableList<Message> readMessages(@NotNull final DataInput in, @NotNull final PayloadArena payloads)
+            throws IOException {
+        final int size = in.readInt();
+        final ImmutableList.Builder<Message> messages = ImmutableList.builder();
+        for (int i = 0; i < size; i++) {
+            messages.add(readMessage(in, payloads));
+        }
+        return messages.build();
+    }
+
+    static void writeSubscription(@NotNull final DataOutput out, @NotNull final Subscription subscription)
+            throws IOException {
+        writeSubscription(out, subscription, null);
+    }
+
+    /**
+     * @param table the index of each message in the table of messages already written, by ID; or null to write each
+     * message out in full
+     */
+    static void writeSubscription(@NotNull final DataOutput out, @NotNull final Subscription subscription,
+            @Nullable final Map<UUID, Integer> table) throws IOException {
+        writeUuid(out, subscription.id);
+        writeString(out, subscription.name);
+        writeStrings(out, subscription.messageTypes);
+        out.writeInt(subscription.capacity);
+        writeString(out, subscription.overflowPolicy.name());
+        out.writeLong(subscription.overflowCount);
+        final MessageLog messages = subscription.messages;
+        out.writeLong(messages.nextSequence());
+        out.writeInt(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            out.writeLong(messages.sequenceAt(i));
+            if (table == null) {
+                writeMessage(out, messages.get(i));
+            } else {
+                out.writeInt(table.get(messages.get(i).id));
+            }
+        }
+    }
+
+    @NotNull
+    static Subscription readSubscription(@NotNull final DataInput in, @NotNull final PayloadArena payloads)
+            throws IOException {
+        return readSubscription(in, payloads, null);
+    }
+
+    /**
+     * @param table the table of messages already read, which the subscription's messages refer to by index; or null
+     * if they were written out in full
+     */
+    @NotNull
+    static Subscription readSubscription(@NotNull final DataInput in, @NotNull final PayloadArena payloads,
+            @Nullable final Message[] table) throws IOException {
+        final UUID id = readUuid(in);
+        final String name = readString(in);
+        final ImmutableSet<String> messageTypes = readStrings(in);
+        final int capacity = in.readInt();
+        final OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(readString(in));
+        final long overflowCount = in.readLong();
+        final long nextSequence = in.readLong();
+        // Keep the sequence numbers, gaps and all, so cursors held by clients are still valid after a restart
+        final int size = in.readInt();
+        MessageLog messages = MessageLog.empty();
+        for (int i = 0; i < size; i++) {
+            final long sequence = in.readLong();
+            messages = messages.append(table == null ? readMessage(in, payloads) : table[in.readInt()], sequence);
+        }
+        messages = messages.withNextSequence(nextSequence);
+        return new Subscription(id, name, messageTypes, messages, capacity, overflowPolicy, overflowCount);
+    }
+}
@@ -0,0 +1,354 @@
+package me.ccampo.subscriptionservice.persistence;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import me.ccampo.subscriptionservice.exception.MailboxFullException;
+import me.ccampo.subscriptionservice.exception.SubscriptionNotFoundException;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.PayloadArena;
+import me.ccampo.subscriptionservice.model.Subscription;
+import me.ccampo.subscriptionservice.model.resource.SubscriptionUpdateRequest;
+import me.ccampo.subscriptionservice.service.MessageService;
+import me.ccampo.subscriptionservice.service.SubscriptionService;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * A single change to the in-memory state, as written to the write-ahead log. Replaying every event in order, on top of
+ * the latest snapshot, rebuilds the state as it was.
+ * <p>
+ * Deliveries aren't logged individually; a published message is logged once, and replaying it delivers it to the same
+ * subscriptions again, since those are determined entirely by the events before it.
+ *
+ * @author Chris Campo
+ */
+public abstract class JournalEvent {
+
+    private static final byte SUBSCRIPTION_CREATED = 1;
+    private static final byte SUBSCRIPTION_UPDATED = 2;
+    private static final byte MESSAGE_PUBLISHED = 3;
+    private static final byte MESSAGES_ACKNOWLEDGED = 4;
+    private static final byte MESSAGES_PUBLISHED = 5;
+    private static final byte SUBSCRIPTIONS_CREATED = 6;
+    private static final byte SUBSCRIPTIONS_UPDATED = 7;
+    private static final byte SUBSCRIPTION_DELETED = 8;
+
+    // Only the subclasses below
+    private JournalEvent() {
+    }
+
+    @NotNull
+    public static JournalEvent subscriptionCreated(@NotNull final Subscription subscription) {
+        return new SubscriptionCreated(subscription);
+    }
+
+    @NotNull
+    public static JournalEvent subscriptionUpdated(@NotNull final UUID id, @NotNull final Optional<String> name,
+            @NotNull final Optional<ImmutableSet<String>> messageTypes) {
+        return new SubscriptionUpdated(id, name, messageTypes);
+    }
+
+    @NotNull
+    public static JournalEvent subscriptionDeleted(@NotNull final UUID id) {
+        return new SubscriptionDeleted(id);
+    }
+
+    @NotNull
+    public static JournalEvent subscriptionsCreated(@NotNull final ImmutableList<Subscription> subscriptions) {
+        return new SubscriptionsCreated(subscriptions);
+    }
+
+    @NotNull
+    public static JournalEvent subscriptionsUpdated(@NotNull final ImmutableList<SubscriptionUpdateRequest> updates) {
+        return new SubscriptionsUpdated(updates);
+    }
+
+    @NotNull
+    public static JournalEvent messagePublished(@NotNull final Message message) {
+        return new MessagePublished(message);
+    }
+
+    @NotNull
+    public static JournalEvent messagesPublished(@NotNull final ImmutableList<Message> messages) {
+        return new MessagesPublished(messages);
+    }
+
+    @NotNull
+    public static JournalEvent messagesAcknowledged(@NotNull final UUID id, final long upTo) {
+        return new MessagesAcknowledged(id, upTo);
+    }
+
+    abstract void writeTo(@NotNull DataOutput out) throws IOException;
+
+    abstract void replay(@NotNull SubscriptionService subscriptionService, @NotNull MessageService messageService);
+
+    @NotNull
+    static JournalEvent readFrom(@NotNull final DataInput in, @NotNull final PayloadArena payloads) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+            case SUBSCRIPTION_CREATED:
+                return new SubscriptionCreated(JournalCodec.readSubscription(in, payloads));
+            case SUBSCRIPTION_UPDATED:
+                final UUID id = JournalCodec.readUuid(in);
+                final Optional<String> name =
+                        in.readBoolean() ? Optional.of(JournalCodec.readString(in)) : Optional.empty();
+                final Optional<ImmutableSet<String>> types =
+                        in.readBoolean() ? Optional.of(JournalCodec.readStrings(in)) : Optional.empty();
+                return new SubscriptionUpdated(id, name, types);
+            case SUBSCRIPTION_DELETED:
+                return new SubscriptionDeleted(JournalCodec.readUuid(in));
+            case MESSAGE_PUBLISHED:
+                return new MessagePublished(JournalCodec.readMessage(in, payloads));
+            case SUBSCRIPTIONS_CREATED:
+                final int created = in.readInt();
+                final ImmutableList.Builder<Subscription> subscriptions = ImmutableList.builder();
+                for (int i = 0; i < created; i++) {
+                    subscriptions.add(JournalCodec.readSubscription(in, payloads));
+                }
+                return new SubscriptionsCreated(subscriptions.build());
+            case SUBSCRIPTIONS_UPDATED:
+                final int updated = in.readInt();
+                final ImmutableList.Builder<SubscriptionUpdateRequest> updates = ImmutableList.builder();
+                for (int i = 0; i < updated; i++) {
+                    final UUID updatedId = JournalCodec.readUuid(in);
+                    final String updatedName = in.readBoolean() ? JournalCodec.readString(in) : null;
+                    final List<String> updatedTypes = in.readBoolean() ? JournalCodec.readStrings(in).asList() : null;
+                    updates.add(new SubscriptionUpdateRequest(updatedId, updatedName, updatedTypes));
+                }
+                return new SubscriptionsUpdated(updates.build());
+            case MESSAGES_PUBLISHED:
+                return new MessagesPublished(JournalCodec.readMessages(in, payloads));
+            case MESSAGES_ACKNOWLEDGED:
+                return new MessagesAcknowledged(JournalCodec.readUuid(in), in.readLong());
+            default:
+                throw new IOException("Unknown journal event " + tag);
+        }
+    }
+
+    private static final class SubscriptionCreated extends JournalEvent {
+
+        private final Subscription subscription;
+
+        private SubscriptionCreated(@NotNull final Subscription subscription) {
+            this.subscription = Objects.requireNonNull(subscription, "subscription");
+        }
+
+        @Override
+        void writeTo(@NotNull final DataOutput out) throws IOException {
+            out.writeByte(SUBSCRIPTION_CREATED);
+            JournalCodec.writeSubscription(out, subscription);
+        }
+
+        @Override
+        void replay(@NotNull final SubscriptionService subscriptionService,
+                @NotNull final MessageService messageService) {
+            subscriptionService.restoreSubscription(subscription);
+        }
+    }
+
+    private static final class SubscriptionUpdated extends JournalEvent {
+
+        private final UUID id;
+        private final Optional<String> name;
+        private final Optional<ImmutableSet<String>> messageTypes;
+
+        private SubscriptionUpdated(@NotNull final UUID id, @NotNull final Optional<String> name,
+                @NotNull final Optional<ImmutableSet<String>> messageTypes) {
+            this.id = Objects.requireNonNull(id, "id");
+            this.name = Objects.requireNonNull(name, "name");
+            this.messageTypes = Objects.requireNonNull(messageTypes, "messageTypes");
+        }
+
+        @Override
+        void writeTo(@NotNull final DataOutput out) throws IOException {
+            out.writeByte(SUBSCRIPTION_UPDATED);
+            JournalCodec.writeUuid(out, id);
+            out.writeBoolean(name.isPresent());
+            if (name.isPresent()) {
+                JournalCodec.writeString(out, name.get());
+            }
+            out.writeBoolean(messageTypes.isPresent());
+            if (messageTypes.isPresent()) {
+                JournalCodec.writeStrings(out, messageTypes.get());
+            }
+        }
+
+        @Override
+        void replay(@NotNull final SubscriptionService subscriptionService,
+                @NotNull final MessageService messageService) {
+            try {
+                subscriptionService.updateSubscriptionById(id, name, messageTypes);
+            } catch (final SubscriptionNotFoundException e) {
+                // Changes are only logged once they succeed, so this shouldn't happen; if it does anyway, there's
+                // nothing to change, and the rest of the journal still has to be replayed
+            }
+        }
+    }
+
+    private static final class SubscriptionDeleted extends JournalEvent {
+
+        private final UUID id;
+
+        private SubscriptionDeleted(@NotNull final UUID id) {
+            this.id = Objects.requireNonNull(id, "id");
+        }
+
+        @Override
+        void writeTo(@NotNull final DataOutput out) throws IOException {
+            out.writeByte(SUBSCRIPTION_DELETED);
+            JournalCodec.writeUuid(out, id);
+        }
+
+        @Override
+        void replay(@NotNull final SubscriptionService subscriptionService,
+                @NotNull final MessageService messageService) {
+            try {
+                subscriptionService.deleteSubscriptionById(id);
+            } catch (final SubscriptionNotFoundException e) {
+                // Nothing to change; see above
+            }
+        }
+    }
+
+    private static final class SubscriptionsCreated extends JournalEvent {
+
+        private final ImmutableList<Subscription> subscriptions;
+
+        private SubscriptionsCreated(@NotNull final ImmutableList<Subscription> subscriptions) {
+            this.subscriptions = Objects.requireNonNull(subscriptions, "subscriptions");
+        }
+
+        @Override
+        void writeTo(@NotNull final DataOutput out) throws IOException {
+            out.writeByte(SUBSCRIPTIONS_CREATED);
+            out.writeInt(subscriptions.size());
+            for (final Subscription subscription : subscriptions) {
+                JournalCodec.writeSubscription(out, subscription);
+            }
+        }
+
+        @Override
+        void replay(@NotNull final SubscriptionService subscriptionService,
+                @NotNull final MessageService messageService) {
+            subscriptionService.restoreSubscriptions(subscriptions);
+        }
+    }
+
+    private static final class SubscriptionsUpdated extends JournalEvent {
+
+        private final ImmutableList<SubscriptionUpdateRequest> updates;
+
+        private SubscriptionsUpdated(@NotNull final ImmutableList<SubscriptionUpdateRequest> updates) {
+            this.updates = Objects.requireNonNull(updates, "updates");
+        }
+
+        @Override
+        void writeTo(@NotNull final DataOutput out) throws IOException {
+            out.writeByte(SUBSCRIPTIONS_UPDATED);
+            out.writeInt(updates.size());
+            for (final SubscriptionUpdateRequest update : updates) {
+                JournalCodec.writeUuid(out, update.id);
+                out.writeBoolean(update.name != null);
+                if (update.name != null) {
+                    JournalCodec.writeString(out, update.name);
+                }
+                out.writeBoolean(update.messageTypes != null);
+                if (update.messageTypes != null) {
+                    JournalCodec.writeStrings(out, update.messageTypes);
+                }
+            }
+        }
+
+        @Override
+        void replay(@NotNull final SubscriptionService subscriptionService,
+                @NotNull final MessageService messageService) {
+            // Subscriptions that weren't found the first time around won't be found now either
+            subscriptionService.updateSubscriptions(updates);
+        }
+    }
+
+    private static final class MessagePublished extends JournalEvent {
+
+        private final Message message;
+
+        private MessagePublished(@NotNull final Message message) {
+            this.message = Objects.requireNonNull(message, "message");
+        }
+
+        @Override
+        void writeTo(@NotNull final DataOutput out) throws IOException {
+            out.writeByte(MESSAGE_PUBLISHED);
+            JournalCodec.writeMessage(out, message);
+        }
+
+        @Override
+        void replay(@NotNull final SubscriptionService subscriptionService,
+                @NotNull final MessageService messageService) {
+            try {
+                messageService.restoreMessage(message);
+            } catch (final MailboxFullException e) {
+                // Rejected the first time around too; the other subscriptions still got it
+            }
+        }
+    }
+
+    private static final class MessagesPublished extends JournalEvent {
+
+        private final ImmutableList<Message> messages;
+
+        private MessagesPublished(@NotNull final ImmutableList<Message> messages) {
+            this.messages = Objects.requireNonNull(messages, "messages");
+        }
+
+        @Override
+        void writeTo(@NotNull final DataOutput out) throws IOException {
+            out.writeByte(MESSAGES_PUBLISHED);
+            JournalCodec.writeMessages(out, messages);
+        }
+
+        @Override
+        void replay(@NotNull final SubscriptionService subscriptionService,
+                @NotNull final MessageService messageService) {
+            try {
+                messageService.restoreMessages(messages);
+            } catch (final MailboxFullException e) {
+                // Rejected the first time around too; see above
+            }
+        }
+    }
+
+    private static final class MessagesAcknowledged extends JournalEvent {
+
+        private final UUID id;
+        private final long upTo;
+
+        private MessagesAcknowledged(@NotNull final UUID id, final long upTo) {
+            this.id = Objects.requireNonNull(id, "id");
+            this.upTo = upTo;
+        }
+
+        @Override
+        void writeTo(@NotNull final DataOutput out) throws IOException {
+            out.writeByte(MESSAGES_ACKNOWLEDGED);
+            JournalCodec.writeUuid(out, id);
+            out.writeLong(upTo);
+        }
+
+        @Override
+        void replay(@NotNull final SubscriptionService subscriptionService,
+                @NotNull final MessageService messageService) {
+            try {
+                subscriptionService.acknowledgeMessages(id, upTo);
+            } catch (final SubscriptionNotFoundException e) {
+                // Nothing to change; see above
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package me.ccampo.subscriptionservice.persistence;
+
+import com.google.common.collect.ImmutableList;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.PayloadArena;
+import me.ccampo.subscriptionservice.model.Subscription;
+import me.ccampo.subscriptionservice.service.MessageService;
+import me.ccampo.subscriptionservice.service.SubscriptionService;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Recovers the in-memory state from disk on startup, by loading the latest snapshot and replaying the journal after it,
+ * and then periodically takes a new snapshot so the journal can be truncated and recovery stays fast.
+ * <p>
+ * A snapshot writes every distinct message once, in a table, and each mailbox (and the retained messages) as
+ * references into it; so a message delivered to many subscriptions takes up the space of one on disk, and is restored
+ * as a single instance shared by all of them, with its content stored in the {@link PayloadArena} like any other.
+ * <p>
+ * Messages still waiting in the async delivery queue when a snapshot is taken are not part of it, so they may be lost
+ * if the process is restarted before the next snapshot.
+ *
+ * @author Chris Campo
+ */
+@Service
+public class PersistenceManager {
+
+    private static final Logger log = LoggerFactory.getLogger(PersistenceManager.class);
+
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    // Changed along with the format
+    private static final int SNAPSHOT_MAGIC = 0x53534e51;
+
+    private final Journal journal;
+    private final SubscriptionService subscriptionService;
+    private final MessageService messageService;
+    private final PayloadArena payloads;
+    private final long snapshotIntervalMillis;
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public PersistenceManager(@NotNull final Journal journal,
+            @NotNull final SubscriptionService subscriptionService,
+            @NotNull final MessageService messageService,
+            @NotNull final PayloadArena payloads,
+            @Value("${subscription-service.persistence.snapshot-interval-ms:60000}")
+            final long snapshotIntervalMillis) {
+        this.journal = Objects.requireNonNull(journal, "journal");
+        this.subscriptionService = Objects.requireNonNull(subscriptionService, "subscriptionService");
+        this.messageService = Objects.requireNonNull(messageService, "messageService");
+        this.payloads = Objects.requireNonNull(payloads, "payloads");
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!journal.isEnabled()) {
+            return;
+        }
+        final long firstSegment = loadSnapshot();
+        final long nextSegment = journal.replay(firstSegment, payloads,
+                event -> event.replay(subscriptionService, messageService));
+        journal.open(nextSegment);
+        if (snapshotIntervalMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "snapshotter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::snapshotQuietly, snapshotIntervalMillis, snapshotIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes a snapshot of every subscription and every retained message, then deletes the journal segments it
+     * covers. Capturing the state only holds up writers for as long as it takes to copy the references; the snapshot
+     * itself is written afterwards.
+     */
+    public void snapshot() throws IOException {
+        final AtomicReference<ImmutableList<Subscription>> subscriptions = new AtomicReference<>();
+        final AtomicReference<ImmutableList<Message>> messages = new AtomicReference<>();
+        final long firstSegment = journal.checkpoint(() -> {
+            subscriptions.set(subscriptionService.getSubscriptions());
+            messages.set(messageService.getMessages());
+        });
+
+        // Every distinct message, by ID, in the order they're first seen
+        final Map<UUID, Integer> table = new HashMap<>();
+        final List<Message> tableMessages = new ArrayList<>();
+        final Consumer<Message> addToTable = message -> {
+            if (table.putIfAbsent(message.id, tableMessages.size()) == null) {
+                tableMessages.add(message);
+            }
+        };
+        messages.get().forEach(addToTable);
+        subscriptions.get().forEach(subscription -> subscription.messages.forEach(addToTable));
+
+        final Path target = journal.getDirectory().resolve(SNAPSHOT_FILE);
+        final Path temp = journal.getDirectory().resolve(SNAPSHOT_FILE + ".tmp");
+        try (final FileOutputStream file = new FileOutputStream(temp.toFile());
+             final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(firstSegment);
+            JournalCodec.writeMessages(out, tableMessages);
+            out.writeInt(subscriptions.get().size());
+            for (final Subscription subscription : subscriptions.get()) {
+                JournalCodec.writeSubscription(out, subscription, table);
+            }
+            out.writeInt(messages.get().size());
+            for (final Message message : messages.get()) {
+                out.writeInt(table.get(message.id));
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        // Readers only ever see a complete snapshot
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.deleteSegmentsBefore(firstSegment);
+        log.info("Wrote snapshot of {} subscription(s), {} retained message(s) and {} distinct message(s)",
+                subscriptions.get().size(), messages.get().size(), tableMessages.size());
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (final IOException | RuntimeException e) {
+            log.error("Failed to write snapshot", e);
+        }
+    }
+
+    /**
+     * @return the first journal segment to replay on top of the snapshot
+     */
+    private long loadSnapshot() throws IOException {
+        final Path path = journal.getDirectory().resolve(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (final InputStream file = Files.newInputStream(path);
+             final DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot: " + path);
+            }
+            final long firstSegment = in.readLong();
+            final Message[] table = JournalCodec.readMessages(in, payloads).toArray(new Message[0]);
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                subscriptionService.restoreSubscription(JournalCodec.readSubscription(in, payloads, table));
+            }
+            final int retained = in.readInt();
+            final List<Message> messages = new ArrayList<>(retained);
+            for (int i = 0; i < retained; i++) {
+                messages.add(table[in.readInt()]);
+            }
+            messageService.restoreRetainedMessages(messages);
+            log.info("Loaded snapshot of {} subscription(s), {} retained message(s) and {} distinct message(s)",
+                    count, retained, table.length);
+            return firstSegment;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package me.ccampo.subscriptionservice.service;
+
+import com.google.common.collect.ImmutableList;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.MessagePage;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Array;
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * A thread safe FIFO queue of messages, backed by a ring buffer, which only retains the most recent messages.
+ * <p>
+ * Whenever a message is offered, the oldest messages are evicted (in O(1) each) until the queue is back within its
+ * limits: at most {@code maxCount} messages, at most {@code maxBytes} of (approximate) message size, and no message
+ * older than {@code maxAgeMillis}. Expired messages are also evicted before every read. A byte or age limit of zero or
+ * less means that limit is disabled. Offering a message never fails; a single message larger than {@code maxBytes}
+ * is still retained, on its own.
+ * <p>
+ * Every message is numbered with a sequence number, starting at 1, which can be used as a cursor to page through the
+ * queue with {@link #page(long, int)}.
+ *
+ * @author Chris Campo
+ */
+public final class BoundedMessageQueue extends AbstractQueue<Message> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int maxCount;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final LongSupplier clock;
+
+    // The ring buffer; grows by doubling up to maxCount, so it doesn't reserve the whole limit up front
+    private Message[] messages;
+    private long[] timestamps;
+    private int head;
+    private int size;
+    private long bytes;
+    // The sequence number of the message at `head`
+    private long headSequence = 1;
+
+    private long evictedByCount;
+    private long evictedByBytes;
+    private long evictedByAge;
+
+    // Primarily used for testing
+    BoundedMessageQueue(final int maxCount, final long maxBytes, final long maxAgeMillis,
+            @NotNull final LongSupplier clock) {
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("maxCount must be positive");
+        }
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.clock = Objects.requireNonNull(clock, "clock");
+        final int capacity = Math.min(INITIAL_CAPACITY, maxCount);
+        this.messages = new Message[capacity];
+        this.timestamps = new long[capacity];
+    }
+
+    public BoundedMessageQueue(final int maxCount, final long maxBytes, final long maxAgeMillis) {
+        this(maxCount, maxBytes, maxAgeMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * Approximates the retained size of a message: its type as UTF-16, its content (on or off the heap), plus a rough
+     * allowance for the object headers and the UUID.
+     */
+    static long sizeOf(@NotNull final Message message) {
+        return 64L + 2L * message.type.length() + message.content.retainedSize();
+    }
+
+    @Override
+    public synchronized boolean offer(@NotNull final Message message) {
+        Objects.requireNonNull(message, "message");
+        final long now = clock.getAsLong();
+        evictExpired(now);
+        final long messageBytes = sizeOf(message);
+        while (size > 0 && maxBytes > 0 && bytes + messageBytes > maxBytes) {
+            removeHead();
+            evictedByBytes++;
+        }
+        if (size == maxCount) {
+            removeHead();
+            evictedByCount++;
+        }
+        if (size == messages.length) {
+            grow();
+        }
+        final int tail = (head + size) % messages.length;
+        messages[tail] = message;
+        timestamps[tail] = now;
+        size++;
+        bytes += messageBytes;
+        return true;
+    }
+
+    @Override
+    public synchronized Message poll() {
+        evictExpired(clock.getAsLong());
+        return size == 0 ? null : removeHead();
+    }
+
+    @Override
+    public synchronized Message peek() {
+        evictExpired(clock.getAsLong());
+        return size == 0 ? null : messages[head];
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @NotNull
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T[] toArray(@NotNull final T[] array) {
+        evictExpired(clock.getAsLong());
+        final T[] result = array.length >= size
+                ? array
+                : (T[]) Array.newInstance(array.getClass().getComponentType(), size);
+        // At most two contiguous runs: head -> end of the buffer, then start of the buffer -> tail
+        final int first = Math.min(size, messages.length - head);
+        System.arraycopy(messages, head, result, 0, first);
+        System.arraycopy(messages, 0, result, first, size - first);
+        if (result.length > size) {
+            result[size] = null;
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public synchronized Object[] toArray() {
+        return toArray(new Message[0]);
+    }
+
+    /**
+     * Returns up to {@code limit} messages whose sequence numbers come after {@code after}, in O(limit).
+     */
+    @NotNull
+    public synchronized MessagePage page(final long after, final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        evictExpired(clock.getAsLong());
+        // Compared before subtracting, so that no cursor (e.g. Long.MAX_VALUE) can overflow back to the start
+        final int from = after < headSequence ? 0 : (int) Math.min(size, after - headSequence + 1);
+        final int to = (int) Math.min(size, (long) from + limit);
+        final ImmutableList.Builder<Message> page = ImmutableList.builder();
+        final long[] sequences = new long[to - from];
+        for (int i = from; i < to; i++) {
+            page.add(messages[(head + i) % messages.length]);
+            sequences[i - from] = headSequence + i;
+        }
+        return new MessagePage(page.build(), sequences, Math.max(after, headSequence + to - 1));
+    }
+
+    /**
+     * Iterates over a snapshot of the queue; it never reflects later changes, and does not support removal.
+     */
+    @NotNull
+    @Override
+    public Iterator<Message> iterator() {
+        return Arrays.asList(toArray(new Message[0])).iterator();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getEvictedByCount() {
+        return evictedByCount;
+    }
+
+    public synchronized long getEvictedByBytes() {
+        return evictedByBytes;
+    }
+
+    public synchronized long getEvictedByAge() {
+        return evictedByAge;
+    }
+
+    private void evictExpired(final long now) {
+        if (maxAgeMillis <= 0) {
+            return;
+        }
+        while (size > 0 && now - timestamps[head] > maxAgeMillis) {
+            removeHead();
+            evictedByAge++;
+        }
+    }
+
+    private Message removeHead() {
+        final Message message = messages[head];
+        // Clear the slot so the evicted message can be garbage collected
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        headSequence++;
+        size--;
+        bytes -= sizeOf(message);
+        return message;
+    }
+
+    private void grow() {
+        final int capacity = (int) Math.min((long) messages.length * 2, maxCount);
+        final Message[] grownMessages = new Message[capacity];
+        final long[] grownTimestamps = new long[capacity];
+        final int first = messages.length - head;
+        System.arraycopy(messages, head, grownMessages, 0, first);
+        System.arraycopy(messages, 0, grownMessages, first, size - first);
+        System.arraycopy(timestamps, head, grownTimestamps, 0, first);
+        System.arraycopy(timestamps, 0, grownTimestamps, first, size - first);
+        messages = grownMessages;
+        timestamps = grownTimestamps;
+        head = 0;
+    }
+}
@@ -0,0 +1,199 @@
+package me.ccampo.subscriptionservice.service;
+
+import me.ccampo.subscriptionservice.exception.BatchTooLargeException;
+import me.ccampo.subscriptionservice.exception.MailboxFullException;
+import me.ccampo.subscriptionservice.exception.MessageQueueFullException;
+import me.ccampo.subscriptionservice.model.Message;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers messages to their supporting subscriptions, either synchronously on the calling thread (the default), or
+ * asynchronously through a bounded queue which is drained in batches by a pool of dispatcher threads.
+ *
+ * @author Chris Campo
+ */
+@Service
+public class MessageDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageDispatcher.class);
+
+    private final SubscriptionService subscriptionService;
+    private final boolean async;
+    private final int dispatcherThreads;
+    private final int batchSize;
+    private final int queueCapacity;
+    private final BlockingQueue<Message> queue;
+    // Held by producers, so that a batch can check for room and then enqueue without another producer getting in
+    // between. The dispatcher threads only ever make more room.
+    private final Object enqueueLock = new Object();
+    // Counted rather than logged, since a full mailbox rejecting messages isn't an error
+    private final LongAdder rejectedDeliveries = new LongAdder();
+    private ExecutorService executor;
+
+    @Autowired
+    public MessageDispatcher(@NotNull final SubscriptionService subscriptionService,
+            @Value("${subscription-service.async-delivery.enabled:false}") final boolean async,
+            @Value("${subscription-service.async-delivery.queue-capacity:65536}") final int queueCapacity,
+            @Value("${subscription-service.async-delivery.dispatcher-threads:1}") final int dispatcherThreads,
+            @Value("${subscription-service.async-delivery.batch-size:256}") final int batchSize) {
+        this.subscriptionService = Objects.requireNonNull(subscriptionService, "subscriptionService");
+        this.async = async;
+        this.dispatcherThreads = dispatcherThreads;
+        this.batchSize = batchSize;
+        this.queueCapacity = async ? queueCapacity : 0;
+        // An array backed queue is a fixed size ring buffer, so enqueueing never allocates
+        this.queue = new ArrayBlockingQueue<>(async ? queueCapacity : 1);
+    }
+
+    // Synchronous delivery only
+    public MessageDispatcher(@NotNull final SubscriptionService subscriptionService) {
+        this(subscriptionService, false, 1, 1, 1);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!async) {
+            return;
+        }
+        log.info("Starting {} message dispatcher thread(s)", dispatcherThreads);
+        executor = Executors.newFixedThreadPool(dispatcherThreads);
+        for (int i = 0; i < dispatcherThreads; i++) {
+            executor.execute(this::dispatchLoop);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        if (!queue.isEmpty()) {
+            log.warn("Shutting down with {} undelivered message(s)", queue.size());
+        }
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Delivers the message to every supporting subscription. In async mode, this only enqueues the message.
+     *
+     * @throws MessageQueueFullException if in async mode and the queue is full
+     */
+    public void dispatch(@NotNull final Message message) throws MessageQueueFullException {
+        if (!async) {
+            subscriptionService.sendMessageToSupportingSubscriptions(message);
+            return;
+        }
+        // Never block the caller; push back on the producer instead
+        synchronized (enqueueLock) {
+            if (!queue.offer(message)) {
+                throw new MessageQueueFullException("Message queue is full (capacity " + getQueueCapacity() + ")");
+            }
+        }
+    }
+
+    /**
+     * Delivers a batch of messages to every supporting subscription, in order. In async mode, this only enqueues them;
+     * either the whole batch is enqueued, or none of it is.
+     *
+     * @throws BatchTooLargeException if in async mode and the batch is larger than the whole queue, so it would never
+     * fit however long the caller waited
+     * @throws MessageQueueFullException if in async mode and the queue doesn't have room for the whole batch
+     * @throws MailboxFullException if not in async mode and any subscription rejected any of the messages
+     */
+    public void dispatchAll(@NotNull final List<Message> batch)
+            throws BatchTooLargeException, MessageQueueFullException, MailboxFullException {
+        if (!async) {
+            subscriptionService.sendMessagesToSupportingSubscriptions(batch);
+            return;
+        }
+        if (batch.size() > queueCapacity) {
+            throw new BatchTooLargeException("A batch of " + batch.size() + " message(s) can never fit in the message "
+                    + "queue (capacity " + queueCapacity + ")");
+        }
+        synchronized (enqueueLock) {
+            if (queue.remainingCapacity() < batch.size()) {
+                throw new MessageQueueFullException("Message queue doesn't have room for " + batch.size()
+                        + " message(s) (capacity " + getQueueCapacity() + ")");
+            }
+            batch.forEach(queue::offer);
+        }
+    }
+
+    /**
+     * Delivers a batch of messages to every supporting subscription on the calling thread, even in async mode.
+     *
+     * @throws MailboxFullException if any subscription rejected any of the messages
+     */
+    public void deliverAllNow(@NotNull final List<Message> batch) throws MailboxFullException {
+        subscriptionService.sendMessagesToSupportingSubscriptions(batch);
+    }
+
+    /**
+     * Delivers the message to every supporting subscription on the calling thread, even in async mode.
+     *
+     * @throws MailboxFullException if any of those subscriptions rejected the message
+     */
+    public void deliverNow(@NotNull final Message message) throws MailboxFullException {
+        subscriptionService.sendMessageToSupportingSubscriptions(message);
+    }
+
+    public int getQueueDepth() {
+        return async ? queue.size() : 0;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return the number of subscriptions which rejected a message delivered from the queue, summed over every batch
+     */
+    public long getRejectedDeliveries() {
+        return rejectedDeliveries.sum();
+    }
+
+    private void dispatchLoop() {
+        final List<Message> batch = new ArrayList<>(batchSize);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Block for the first message, then grab whatever else is already waiting
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                try {
+                    subscriptionService.sendMessagesToSupportingSubscriptions(batch);
+                } catch (final MailboxFullException e) {
+                    // Expected under load with the REJECT overflow policy; every other delivery still happened
+                    rejectedDeliveries.add(e.rejectedIds.size());
+                    log.debug("{} delivery(s) rejected by full subscription(s)", e.rejectedIds.size());
+                } catch (final RuntimeException e) {
+                    log.error("Failed to deliver a batch of {} message(s)", batch.size(), e);
+                }
+                batch.clear();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
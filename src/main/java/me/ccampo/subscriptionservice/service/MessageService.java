@@ -1,14 +1,29 @@
 package me.ccampo.subscriptionservice.service;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import me.ccampo.subscriptionservice.exception.BatchTooLargeException;
+import me.ccampo.subscriptionservice.exception.MailboxFullException;
+import me.ccampo.subscriptionservice.exception.MessageQueueFullException;
+import me.ccampo.subscriptionservice.metrics.MetricsRegistry;
+import me.ccampo.subscriptionservice.model.IdGenerator;
 import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.MessagePage;
+import me.ccampo.subscriptionservice.model.PayloadArena;
+import me.ccampo.subscriptionservice.model.resource.MessageRequest;
+import me.ccampo.subscriptionservice.persistence.Journal;
+import me.ccampo.subscriptionservice.persistence.JournalEvent;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
 import java.util.Objects;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.UUID;
+
+import static java.util.stream.Collectors.collectingAndThen;
+import static java.util.stream.Collectors.toList;
 
 /**
  * @author Chris Campo
@@ -16,41 +31,197 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 @Service
 public class MessageService {
 
-    private final Queue<Message> messages;
-    private final SubscriptionService subscriptionService;
+    private final BoundedMessageQueue messages;
+    private final MessageDispatcher dispatcher;
+    private final Journal journal;
+    private final MetricsRegistry metrics;
+    private final PayloadArena payloads;
+    private final IdGenerator messageIds;
 
     // Primarily used for testing
-    protected MessageService(@NotNull final Queue<Message> messages,
-            @NotNull final SubscriptionService subscriptionService) {
+    protected MessageService(@NotNull final BoundedMessageQueue messages,
+            @NotNull final MessageDispatcher dispatcher,
+            @NotNull final Journal journal,
+            @NotNull final MetricsRegistry metrics,
+            @NotNull final PayloadArena payloads,
+            @NotNull final IdGenerator messageIds) {
         this.messages = Objects.requireNonNull(messages, "messages");
-        this.subscriptionService = Objects.requireNonNull(subscriptionService, "subscriptionService");
+        this.dispatcher = Objects.requireNonNull(dispatcher, "dispatcher");
+        this.journal = Objects.requireNonNull(journal, "journal");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        this.payloads = Objects.requireNonNull(payloads, "payloads");
+        this.messageIds = Objects.requireNonNull(messageIds, "messageIds");
+        metrics.gauge("retained_messages", "Number of messages retained for GET /messages", messages::size);
+        metrics.gauge("pending_deliveries", "Number of messages waiting in the async delivery queue",
+                dispatcher::getQueueDepth);
+        metrics.counter("async_deliveries_rejected_total", "Async deliveries rejected by a full subscription mailbox",
+                dispatcher::getRejectedDeliveries);
+        metrics.gauge("payload_slab_bytes_allocated", "Bytes of off-heap payload slabs ever allocated, including freed",
+                payloads::getAllocatedBytes);
+        metrics.gauge("payload_slab_bytes_in_use", "Bytes of off-heap payload slabs which may hold reachable content",
+                payloads::getSlabBytes);
+        metrics.gauge("payload_slab_bytes_free", "Bytes of off-heap payload slabs waiting to be reused",
+                payloads::getFreeBytes);
+    }
+
+    // Primarily used for testing
+    protected MessageService(@NotNull final BoundedMessageQueue messages,
+            @NotNull final MessageDispatcher dispatcher,
+            @NotNull final Journal journal) {
+        this(messages, dispatcher, journal, new MetricsRegistry(), PayloadArena.onHeap(), IdGenerator.timeOrdered());
+    }
+
+    // Primarily used for testing
+    protected MessageService(@NotNull final BoundedMessageQueue messages,
+            @NotNull final SubscriptionService subscriptionService) {
+        this(messages, new MessageDispatcher(subscriptionService), Journal.disabled());
     }
 
     @Autowired
-    public MessageService(@NotNull final SubscriptionService subscriptionService) {
-        this(new ConcurrentLinkedQueue<>(), subscriptionService);
+    public MessageService(@NotNull final MessageDispatcher dispatcher,
+            @NotNull final Journal journal,
+            @NotNull final MetricsRegistry metrics,
+            @NotNull final PayloadArena payloads,
+            @Value("${subscription-service.message-retention.max-count:100000}") final int maxCount,
+            @Value("${subscription-service.message-retention.max-bytes:67108864}") final long maxBytes,
+            @Value("${subscription-service.message-retention.max-age-ms:0}") final long maxAgeMillis,
+            @Value("${subscription-service.message-ids:time-ordered}") final String messageIds) {
+        this(new BoundedMessageQueue(maxCount, maxBytes, maxAgeMillis), dispatcher, journal, metrics, payloads,
+                IdGenerator.parse(messageIds));
+    }
+
+    /**
+     * Creates a message and sends it to every supporting subscription. If async delivery is enabled, the message is
+     * only queued for delivery when this returns.
+     * <p>
+     * If delivery is synchronous, any subscriptions which rejected the message because their mailboxes were full are
+     * returned along with it. They don't fail the publish, since every other subscription already has the message, and
+     * publishing it again would deliver it to all of them twice.
+     *
+     * @throws MessageQueueFullException if async delivery is enabled and the delivery queue is full
+     */
+    @NotNull
+    public PublishResult<Message> createMessage(@NotNull final String type, @NotNull final String content)
+            throws MessageQueueFullException {
+        final long start = System.nanoTime();
+        final Message message = new Message(messageIds.next(), type, payloads.store(content));
+        final List<UUID> rejectedIds = journal.record(JournalEvent.messagePublished(message), () -> {
+            try {
+                // A full delivery queue rejects before storing (or journaling) anything, so a message which was never
+                // delivered isn't listed either
+                dispatcher.dispatch(message);
+            } catch (final MailboxFullException e) {
+                // ...but this message was still delivered to every other subscription
+                messages.offer(message);
+                return e.rejectedIds;
+            }
+            messages.offer(message);
+            return ImmutableList.of();
+        });
+        metrics.recordPublish(type, System.nanoTime() - start);
+        return new PublishResult<>(message, rejectedIds);
     }
 
+    /**
+     * Creates a batch of messages and sends them to every supporting subscription, in order. The whole batch is
+     * journaled as a single event, the supporting subscriptions are looked up once per type, and each subscription's
+     * mailbox is updated once. If async delivery is enabled, the messages are only queued for delivery when this
+     * returns.
+     * <p>
+     * As above, subscriptions which rejected any of the messages are returned along with them.
+     *
+     * @throws BatchTooLargeException if async delivery is enabled and the batch is larger than the whole delivery
+     * queue; none of it is created
+     * @throws MessageQueueFullException if async delivery is enabled and the delivery queue doesn't have room for the
+     * whole batch; none of it is created
+     */
     @NotNull
-    public Message createMessage(@NotNull final String type, @NotNull final String content) {
-        final Message message = new Message(type, content);
+    public PublishResult<ImmutableList<Message>> createMessages(@NotNull final List<MessageRequest> requests)
+            throws BatchTooLargeException, MessageQueueFullException {
+        if (requests.isEmpty()) {
+            return new PublishResult<>(ImmutableList.of(), ImmutableList.of());
+        }
+        final long start = System.nanoTime();
+        final ImmutableList<Message> batch = requests.stream()
+                .map(request -> new Message(messageIds.next(), request.type, payloads.store(request.content)))
+                .collect(collectingAndThen(toList(), ImmutableList::copyOf));
+        final List<UUID> rejectedIds = journal.record(JournalEvent.messagesPublished(batch), () -> {
+            try {
+                dispatcher.dispatchAll(batch);
+            } catch (final MailboxFullException e) {
+                batch.forEach(messages::offer);
+                return e.rejectedIds;
+            }
+            batch.forEach(messages::offer);
+            return ImmutableList.of();
+        });
+        // Each message is timed as its share of the batch, so the histogram stays comparable with single publishes
+        final long nanosPerMessage = (System.nanoTime() - start) / batch.size();
+        batch.forEach(message -> metrics.recordPublish(message.type, nanosPerMessage));
+        return new PublishResult<>(batch, rejectedIds);
+    }
+
+    /**
+     * Stores existing messages and delivers them synchronously, without journaling them, e.g. when replaying the
+     * journal.
+     *
+     * @throws MailboxFullException if any subscription rejected any of the messages
+     */
+    public void restoreMessages(@NotNull final List<Message> batch) throws MailboxFullException {
+        batch.forEach(messages::offer);
+        dispatcher.deliverAllNow(batch);
+    }
+
+    /**
+     * Stores an existing message and delivers it synchronously, without journaling it, e.g. when replaying the journal.
+     *
+     * @throws MailboxFullException if any supporting subscription rejected the message
+     */
+    public void restoreMessage(@NotNull final Message message) throws MailboxFullException {
         messages.offer(message);
-        subscriptionService.sendMessageToSupportingSubscriptions(message);
-        return message;
+        dispatcher.deliverNow(message);
+    }
+
+    /**
+     * Stores existing messages without delivering them, e.g. when recovering them from a snapshot.
+     */
+    public void restoreRetainedMessages(@NotNull final List<Message> retained) {
+        retained.forEach(messages::offer);
+    }
+
+    public boolean isAsyncDelivery() {
+        return dispatcher.isAsync();
+    }
+
+    public int getPendingDeliveryCount() {
+        return dispatcher.getQueueDepth();
+    }
+
+    public int getPendingDeliveryCapacity() {
+        return dispatcher.getQueueCapacity();
     }
 
     /*
-     * Note: this is weakly consistent in concurrent environments. We're only
-     * guaranteed to get the collection of messages as they exist at the time
-     * of the `toArray` call. If any elements are added (or removed) during
-     * the processing of `toArray` by another thread, they will not be
-     * reflected in this output.
-     *
-     * It's nothing to worry about in most cases, but worth noting just for
-     * completeness.
+     * Note: only the most recent messages are retained, so this is not
+     * necessarily every message ever created. See `BoundedMessageQueue`.
      */
     @NotNull
     public ImmutableList<Message> getMessages() {
         return ImmutableList.copyOf(messages.toArray(new Message[0]));
     }
+
+    @NotNull
+    public MessagePage getMessages(final long after, final int limit) {
+        return messages.page(after, limit);
+    }
+
+    @NotNull
+    public ImmutableMap<String, Long> getRetentionStats() {
+        return ImmutableMap.of(
+                "retained", (long) messages.size(),
+                "retainedBytes", messages.getBytes(),
+                "evictedByCount", messages.getEvictedByCount(),
+                "evictedByBytes", messages.getEvictedByBytes(),
+                "evictedByAge", messages.getEvictedByAge());
+    }
 }
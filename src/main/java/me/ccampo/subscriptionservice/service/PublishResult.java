@@ -0,0 +1,25 @@
+package me.ccampo.subscriptionservice.service;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * What was published (a message, or a batch of them), along with the IDs of any subscriptions whose full mailboxes
+ * rejected it. A rejection doesn't undo the publish; every other supporting subscription still got the message.
+ *
+ * @author Chris Campo
+ */
+public class PublishResult<T> {
+
+    public final T published;
+    public final ImmutableList<UUID> rejectedIds;
+
+    public PublishResult(@NotNull final T published, @NotNull final List<UUID> rejectedIds) {
+        this.published = Objects.requireNonNull(published, "published");
+        this.rejectedIds = ImmutableList.copyOf(rejectedIds);
+    }
+}
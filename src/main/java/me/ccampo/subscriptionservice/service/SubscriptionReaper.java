@@ -0,0 +1,92 @@
+package me.ccampo.subscriptionservice.service;
+
+import me.ccampo.subscriptionservice.metrics.MetricsRegistry;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically deletes the subscriptions which nobody has read (fetched, streamed, long polled or acknowledged) for
+ * longer than the idle TTL, so that abandoned subscriptions stop receiving messages and using memory. It runs on its
+ * own thread, and deletes one subscription at a time; see {@link SubscriptionService#expireIdleSubscriptions(long)}.
+ * <p>
+ * When each subscription was last read isn't persisted, so after a restart, every subscription's idle time starts over.
+ *
+ * @author Chris Campo
+ */
+@Service
+public class SubscriptionReaper {
+
+    private static final Logger log = LoggerFactory.getLogger(SubscriptionReaper.class);
+
+    private final SubscriptionService subscriptionService;
+    private final long idleTtlMillis;
+    private final long intervalMillis;
+    private final AtomicLong expired = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public SubscriptionReaper(@NotNull final SubscriptionService subscriptionService,
+            @NotNull final MetricsRegistry metrics,
+            @Value("${subscription-service.expiry.idle-ttl-ms:0}") final long idleTtlMillis,
+            @Value("${subscription-service.expiry.reap-interval-ms:60000}") final long intervalMillis) {
+        this.subscriptionService = Objects.requireNonNull(subscriptionService, "subscriptionService");
+        this.idleTtlMillis = idleTtlMillis;
+        this.intervalMillis = intervalMillis;
+        metrics.counter("subscriptions_expired_total", "Subscriptions deleted for being idle", expired::get);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (idleTtlMillis <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "subscription-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::reapQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Deletes every subscription which has been idle for longer than the TTL, right now
+     *
+     * @return the number of subscriptions deleted
+     */
+    public int reap() {
+        final int count = subscriptionService.expireIdleSubscriptions(System.currentTimeMillis() - idleTtlMillis);
+        expired.addAndGet(count);
+        if (count > 0) {
+            log.info("Deleted {} idle subscription(s)", count);
+        }
+        return count;
+    }
+
+    private void reapQuietly() {
+        try {
+            reap();
+        } catch (final RuntimeException e) {
+            // Keep the schedule going; the next run will try again
+            log.error("Failed to delete idle subscriptions", e);
+        }
+    }
+}
@@ -2,20 +2,46 @@ package me.ccampo.subscriptionservice.service;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import me.ccampo.subscriptionservice.exception.MailboxFullException;
 import me.ccampo.subscriptionservice.exception.SubscriptionNotFoundException;
+import me.ccampo.subscriptionservice.metrics.HotPathLog;
+import me.ccampo.subscriptionservice.metrics.MetricsRegistry;
 import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.MessageTypes;
+import me.ccampo.subscriptionservice.model.OverflowPolicy;
 import me.ccampo.subscriptionservice.model.Subscription;
-import org.jetbrains.annotations.Contract;
+import me.ccampo.subscriptionservice.model.TypeMatcher;
+import me.ccampo.subscriptionservice.model.resource.SubscriptionRequest;
+import me.ccampo.subscriptionservice.model.resource.SubscriptionUpdateRequest;
+import me.ccampo.subscriptionservice.persistence.Journal;
+import me.ccampo.subscriptionservice.persistence.JournalEvent;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.collectingAndThen;
 import static java.util.stream.Collectors.toList;
@@ -28,81 +54,561 @@ public class SubscriptionService {
 
     private static final Logger log = LoggerFactory.getLogger(SubscriptionService.class);
 
-    private final Map<UUID, Subscription> subscriptions;
+    // Subscriptions are partitioned across the shards by ID; each shard has its own store and index, so a message can
+    // be delivered to all of them in parallel
+    private final SubscriptionShard[] shards;
 
+    // Fans out across the shards; null if there's only one
+    private final ForkJoinPool fanOutPool;
+
+    // Below this many supporting subscriptions, a message is delivered to each shard in turn on the calling thread,
+    // since handing the work off would cost more than it saves
+    private final int parallelFanOutThreshold;
+
+    // Run on the delivering thread after each message is delivered to the subscription, so they must be quick
+    private final Map<UUID, Set<Runnable>> deliveryListenersById = new ConcurrentHashMap<>();
+
+    // The types of every stored subscription. Only registered when a version with new types is stored, outside of the
+    // atomic update storing it, and only released once that version has been replaced or removed; see store() and
+    // release().
+    private final MessageTypes typeRegistry = new MessageTypes();
+
+    // Mailbox limits for subscriptions which don't specify their own
+    private final int defaultCapacity;
+    private final OverflowPolicy defaultOverflowPolicy;
+
+    private final Journal journal;
+    private final MetricsRegistry metrics;
+    private final HotPathLog hotPathLog;
+
+    @Autowired
+    public SubscriptionService(@Value("${subscription-service.mailbox.capacity:10000}") final int defaultCapacity,
+            @Value("${subscription-service.mailbox.overflow-policy:DROP_OLDEST}")
+            @NotNull final OverflowPolicy defaultOverflowPolicy,
+            @NotNull final Journal journal,
+            @NotNull final MetricsRegistry metrics,
+            @NotNull final HotPathLog hotPathLog,
+            @Value("${subscription-service.store.shards:1}") final int shardCount,
+            @Value("${subscription-service.store.parallel-fan-out-threshold:256}") final int parallelFanOutThreshold) {
+        this(newShardStores(shardCount), false, defaultCapacity, defaultOverflowPolicy, journal, metrics, hotPathLog,
+                parallelFanOutThreshold, System::currentTimeMillis);
+    }
+
+    // Primarily used for testing; mailboxes are unbounded by default
     public SubscriptionService() {
-        subscriptions = new ConcurrentHashMap<>();
+        this(new ConcurrentHashMap<>());
     }
 
     // Primarily used for testing
     protected SubscriptionService(@NotNull final Map<UUID, Subscription> subscriptions) {
-        this.subscriptions = Objects.requireNonNull(subscriptions, "subscriptions");
+        this(subscriptions, Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST);
+    }
+
+    // Primarily used for testing
+    protected SubscriptionService(@NotNull final Map<UUID, Subscription> subscriptions, final int defaultCapacity,
+            @NotNull final OverflowPolicy defaultOverflowPolicy) {
+        this(subscriptions, defaultCapacity, defaultOverflowPolicy, Journal.disabled());
+    }
+
+    // Primarily used for testing
+    protected SubscriptionService(@NotNull final Map<UUID, Subscription> subscriptions, final int defaultCapacity,
+            @NotNull final OverflowPolicy defaultOverflowPolicy, @NotNull final Journal journal) {
+        this(subscriptions, defaultCapacity, defaultOverflowPolicy, journal, new MetricsRegistry());
+    }
+
+    // Primarily used for testing; a single shard backed by the given map
+    protected SubscriptionService(@NotNull final Map<UUID, Subscription> subscriptions, final int defaultCapacity,
+            @NotNull final OverflowPolicy defaultOverflowPolicy, @NotNull final Journal journal,
+            @NotNull final MetricsRegistry metrics) {
+        this(ImmutableList.of(subscriptions), true, defaultCapacity, defaultOverflowPolicy, journal, metrics,
+                HotPathLog.disabled(), Integer.MAX_VALUE, System::currentTimeMillis);
+    }
+
+    // Primarily used for testing; reads are timed with the given clock, in epoch milliseconds
+    protected SubscriptionService(@NotNull final Map<UUID, Subscription> subscriptions,
+            @NotNull final LongSupplier clock) {
+        this(ImmutableList.of(subscriptions), true, Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST, Journal.disabled(),
+                new MetricsRegistry(), HotPathLog.disabled(), Integer.MAX_VALUE, clock);
+    }
+
+    // Primarily used for testing
+    protected SubscriptionService(final int shardCount, final int defaultCapacity,
+            @NotNull final OverflowPolicy defaultOverflowPolicy, final int parallelFanOutThreshold) {
+        this(newShardStores(shardCount), false, defaultCapacity, defaultOverflowPolicy, Journal.disabled(),
+                new MetricsRegistry(), HotPathLog.disabled(), parallelFanOutThreshold, System::currentTimeMillis);
+    }
+
+    private SubscriptionService(@NotNull final List<Map<UUID, Subscription>> shardStores, final boolean injected,
+            final int defaultCapacity, @NotNull final OverflowPolicy defaultOverflowPolicy,
+            @NotNull final Journal journal, @NotNull final MetricsRegistry metrics,
+            @NotNull final HotPathLog hotPathLog, final int parallelFanOutThreshold,
+            @NotNull final LongSupplier clock) {
+        this.shards = shardStores.stream()
+                .map(store -> new SubscriptionShard(store, deliveryListenersById, clock, injected))
+                .toArray(SubscriptionShard[]::new);
+        this.fanOutPool = shards.length > 1
+                ? new ForkJoinPool(Math.min(shards.length, Runtime.getRuntime().availableProcessors()))
+                : null;
+        this.parallelFanOutThreshold = parallelFanOutThreshold;
+        this.defaultCapacity = defaultCapacity;
+        this.defaultOverflowPolicy = Objects.requireNonNull(defaultOverflowPolicy, "defaultOverflowPolicy");
+        this.journal = Objects.requireNonNull(journal, "journal");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        this.hotPathLog = Objects.requireNonNull(hotPathLog, "hotPathLog");
+        metrics.gauge("subscriptions", "Number of subscriptions",
+                () -> Arrays.stream(shards).mapToLong(shard -> shard.subscriptions.size()).sum());
+        // Walks every subscription, but only when scraped
+        metrics.gauge("stored_messages", "Number of messages stored across every subscription's mailbox",
+                () -> streamSubscriptions().mapToLong(subscription -> subscription.messages.size()).sum());
+    }
+
+    @NotNull
+    private static List<Map<UUID, Subscription>> newShardStores(final int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1, but was " + shardCount);
+        }
+        return Stream.<Map<UUID, Subscription>>generate(ConcurrentHashMap::new)
+                .limit(shardCount)
+                .collect(toList());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (fanOutPool != null) {
+            fanOutPool.shutdown();
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
     }
 
     @NotNull
     public Subscription createSubscription(@NotNull final String name,
             @NotNull final ImmutableSet<String> messageTypes) {
-        log.info("Creating subscription with name = {} and messageTypes = {}", name, messageTypes);
-        final Subscription subscription = new Subscription(name, messageTypes);
-        subscriptions.put(subscription.id, subscription);
-        return subscription;
+        return createSubscription(name, messageTypes, Optional.empty(), Optional.empty());
+    }
+
+    @NotNull
+    public Subscription createSubscription(@NotNull final String name,
+            @NotNull final ImmutableSet<String> messageTypes,
+            @NotNull final Optional<Integer> capacity,
+            @NotNull final Optional<OverflowPolicy> overflowPolicy) {
+        log.info("Creating subscription with name = {}, messageTypes = {}, capacity = {} and overflowPolicy = {}",
+                name, messageTypes, capacity, overflowPolicy);
+        final Subscription subscription = new Subscription(name, messageTypes, capacity.orElse(defaultCapacity),
+                overflowPolicy.orElse(defaultOverflowPolicy));
+        return journal.record(JournalEvent.subscriptionCreated(subscription), () -> store(subscription));
+    }
+
+    /**
+     * Creates a batch of subscriptions. Every subscription is built (and validated) before any of them is stored, so
+     * either the whole batch is created or none of it is. The batch is journaled as a single event, and the index is
+     * updated in one pass, once per message type rather than once per subscription.
+     */
+    @NotNull
+    public ImmutableList<Subscription> createSubscriptions(@NotNull final List<SubscriptionRequest> requests) {
+        log.info("Creating {} subscription(s)", requests.size());
+        final ImmutableList<Subscription> batch = requests.stream()
+                .map(request -> new Subscription(request.name, request.messageTypes,
+                        Optional.ofNullable(request.capacity).orElse(defaultCapacity),
+                        Optional.ofNullable(request.overflowPolicy).map(OverflowPolicy::parse)
+                                .orElse(defaultOverflowPolicy)))
+                .collect(collectingAndThen(toList(), ImmutableList::copyOf));
+        if (batch.isEmpty()) {
+            return batch;
+        }
+        return journal.record(JournalEvent.subscriptionsCreated(batch), () -> storeAll(batch));
+    }
+
+    /**
+     * Updates a batch of subscriptions, in order, exactly as {@link #updateSubscriptionById} would; but the whole batch
+     * is journaled as a single event. A missing subscription doesn't stop the rest of the batch.
+     *
+     * @return the updated subscription for each request, in order, or empty if it wasn't found
+     */
+    @NotNull
+    public ImmutableList<Optional<Subscription>> updateSubscriptions(
+            @NotNull final List<SubscriptionUpdateRequest> requests) {
+        log.info("Updating {} subscription(s)", requests.size());
+        if (requests.isEmpty()) {
+            return ImmutableList.of();
+        }
+        return journal.record(JournalEvent.subscriptionsUpdated(ImmutableList.copyOf(requests)),
+                () -> applyUpdates(requests));
+    }
+
+    @NotNull
+    private ImmutableList<Optional<Subscription>> applyUpdates(
+            @NotNull final List<SubscriptionUpdateRequest> requests) {
+        final ImmutableList.Builder<Optional<Subscription>> results = ImmutableList.builder();
+        for (final SubscriptionUpdateRequest request : requests) {
+            Optional<Subscription> result;
+            try {
+                result = Optional.of(applyUpdate(request.id, Optional.ofNullable(request.name),
+                        Optional.ofNullable(request.messageTypes)));
+            } catch (final SubscriptionNotFoundException e) {
+                result = Optional.empty();
+            }
+            results.add(result);
+        }
+        return results.build();
+    }
+
+    /**
+     * Puts an existing subscription back as is, e.g. when recovering it from disk.
+     */
+    public void restoreSubscription(@NotNull final Subscription subscription) {
+        store(subscription);
+    }
+
+    /**
+     * Puts existing subscriptions back as they are, indexing them in one pass per shard.
+     */
+    public void restoreSubscriptions(@NotNull final List<Subscription> batch) {
+        storeAll(batch);
+    }
+
+    /**
+     * Stores the subscription, with its types registered, replacing any version already stored
+     *
+     * @return the version stored
+     */
+    @NotNull
+    private Subscription store(@NotNull final Subscription subscription) {
+        final SubscriptionShard shard = shardFor(subscription.id);
+        final Subscription bound = subscription.boundTo(typeRegistry);
+        release(shard.subscriptions.put(bound.id, bound), bound);
+        shard.index(bound.id, bound.messageTypes);
+        shard.startTracking(bound.id);
+        return bound;
+    }
+
+    /**
+     * The same as {@link #store(Subscription)} for each one, but indexing them in one pass per shard
+     *
+     * @return the versions stored, in order
+     */
+    @NotNull
+    private ImmutableList<Subscription> storeAll(@NotNull final List<Subscription> batch) {
+        final ImmutableList.Builder<Subscription> stored = ImmutableList.builder();
+        final Map<SubscriptionShard, Map<String, List<UUID>>> idsByTypeByShard = new HashMap<>();
+        for (final Subscription unbound : batch) {
+            final SubscriptionShard shard = shardFor(unbound.id);
+            final Subscription subscription = unbound.boundTo(typeRegistry);
+            release(shard.subscriptions.put(subscription.id, subscription), subscription);
+            stored.add(subscription);
+            shard.startTracking(subscription.id);
+            final Map<String, List<UUID>> idsByType = idsByTypeByShard.computeIfAbsent(shard, key -> new HashMap<>());
+            subscription.messageTypes.forEach(type ->
+                    idsByType.computeIfAbsent(type, key -> new ArrayList<>()).add(subscription.id));
+        }
+        idsByTypeByShard.forEach(SubscriptionShard::indexAll);
+        return stored.build();
+    }
+
+    /**
+     * Releases the types of a version of a subscription which is no longer stored, unless the version replacing it
+     * (null if it was removed) shares them. Always called once the atomic update replacing it is done, never inside
+     * it; and exactly once for each version stored, since only the update which replaced it got hold of it.
+     */
+    private void release(@Nullable final Subscription replaced, @Nullable final Subscription replacement) {
+        if (replaced != null) {
+            replaced.releaseMessageTypes(replacement);
+        }
     }
 
     @NotNull
     public Subscription getSubscriptionById(@NotNull final UUID id) throws SubscriptionNotFoundException {
-        if (!subscriptionExists(id)) {
-            log.info("Subscription with ID {} was not found", id);
+        final SubscriptionShard shard = shardFor(id);
+        final Subscription subscription = shard.subscriptions.get(id);
+        if (subscription == null) {
+            log.debug("Subscription with ID {} was not found", id);
             throw new SubscriptionNotFoundException("Subscription with ID " + id + " was not found");
         }
-        return subscriptions.get(id);
+        shard.markRead(id);
+        return subscription;
     }
 
     public boolean subscriptionExists(@NotNull final UUID id) {
-        return subscriptions.containsKey(id);
+        return shardFor(id).subscriptions.containsKey(id);
     }
 
     @NotNull
     public Subscription updateSubscriptionById(@NotNull final UUID id, @NotNull final Optional<String> name,
             @NotNull final Optional<ImmutableSet<String>> messageTypes) throws SubscriptionNotFoundException {
-        final Subscription current = getSubscriptionById(id);
-        // Here we remove any messages whose types are no longer supported by this subscription.
-        // This is a complete judgement call; we could have just as easily left them alone.
-        final ImmutableList<Message> filteredMessages = messageTypes
-                .map(types -> filterMessages(current.messages, types))
-                .orElse(current.messages);
-        final Subscription updated =
-                new Subscription(id, name.orElse(current.name), messageTypes.orElse(current.messageTypes),
-                        filteredMessages);
-        subscriptions.put(id, updated);
+        return journal.record(JournalEvent.subscriptionUpdated(id, name, messageTypes),
+                () -> applyUpdate(id, name, messageTypes));
+    }
+
+    @NotNull
+    private Subscription applyUpdate(@NotNull final UUID id, @NotNull final Optional<String> name,
+            @NotNull final Optional<ImmutableSet<String>> messageTypes) throws SubscriptionNotFoundException {
+        // The whole read -> rebuild -> write happens atomically for this subscription, so a concurrent delivery can
+        // neither be overwritten by this update nor be lost in between. Other subscriptions are not blocked.
+        final SubscriptionShard shard = shardFor(id);
+        // Registered up front, so that the registry is never locked while the subscription is
+        final Optional<TypeMatcher> matcher = messageTypes.map(types -> TypeMatcher.of(types).bind(typeRegistry));
+        final AtomicReference<Subscription> replaced = new AtomicReference<>();
+        final Subscription updated = shard.subscriptions.computeIfPresent(id, (key, current) -> {
+            // Here we remove any messages whose types are no longer supported by this subscription.
+            // This is a complete judgement call; we could have just as easily left them alone.
+            final Subscription renamed = name.map(current::withName).orElse(current);
+            final Subscription result = matcher.map(renamed::withMessageTypes).orElse(renamed);
+            messageTypes.ifPresent(types -> {
+                shard.index(id, Sets.difference(types, current.messageTypes));
+                shard.unindex(id, Sets.difference(current.messageTypes, types));
+            });
+            replaced.set(current);
+            return result;
+        });
+        if (updated == null) {
+            matcher.ifPresent(TypeMatcher::release);
+            log.debug("Subscription with ID {} was not found", id);
+            throw new SubscriptionNotFoundException("Subscription with ID " + id + " was not found");
+        }
+        release(replaced.get(), updated);
         return updated;
     }
 
+    /**
+     * Removes every message up to and including the given sequence number from the subscription's mailbox, once the
+     * consumer has processed them.
+     */
     @NotNull
-    @Contract(pure = true)
-    protected static ImmutableList<Message> filterMessages(@NotNull final ImmutableList<Message> messages,
-            @NotNull final ImmutableSet<String> messageTypes) {
-        return messages.stream()
-                .filter(msg -> messageTypes.contains(msg.type))
-                .collect(collectingAndThen(toList(), ImmutableList::copyOf));
+    public Subscription acknowledgeMessages(@NotNull final UUID id, final long upTo)
+            throws SubscriptionNotFoundException {
+        return journal.record(JournalEvent.messagesAcknowledged(id, upTo), () -> {
+            final SubscriptionShard shard = shardFor(id);
+            final Subscription updated = shard.subscriptions.computeIfPresent(id,
+                    (key, current) -> current.withAcknowledged(upTo));
+            if (updated == null) {
+                log.debug("Subscription with ID {} was not found", id);
+                throw new SubscriptionNotFoundException("Subscription with ID " + id + " was not found");
+            }
+            shard.markRead(id);
+            return updated;
+        });
+    }
+
+    /**
+     * Deletes a subscription, along with its mailbox. It stops receiving messages straight away, and its open streams
+     * and waiting long polls are woken up, so they can find out it's gone.
+     *
+     * @return the subscription as it was when it was deleted
+     */
+    @NotNull
+    public Subscription deleteSubscriptionById(@NotNull final UUID id) throws SubscriptionNotFoundException {
+        return journal.record(JournalEvent.subscriptionDeleted(id), () -> applyDelete(id, () -> true));
+    }
+
+    /**
+     * Deletes the subscription, as long as {@code stillWanted} is true when checked atomically with the removal.
+     * Otherwise, nothing is changed (or journaled), and {@link StillInUseException} is thrown.
+     */
+    @NotNull
+    private Subscription applyDelete(@NotNull final UUID id, @NotNull final BooleanSupplier stillWanted)
+            throws SubscriptionNotFoundException {
+        final SubscriptionShard shard = shardFor(id);
+        final AtomicReference<Subscription> deleted = new AtomicReference<>();
+        // Unindexed atomically with the removal, like updates, so a concurrent update can't index it again
+        shard.subscriptions.computeIfPresent(id, (key, current) -> {
+            if (!stillWanted.getAsBoolean()) {
+                throw new StillInUseException();
+            }
+            shard.unindex(id, current.messageTypes);
+            deleted.set(current);
+            return null;
+        });
+        if (deleted.get() == null) {
+            log.debug("Subscription with ID {} was not found", id);
+            throw new SubscriptionNotFoundException("Subscription with ID " + id + " was not found");
+        }
+        release(deleted.get(), null);
+        shard.lastReadMillis.remove(id);
+        shard.notifyListeners(id);
+        return deleted.get();
+    }
+
+    /**
+     * Deletes every subscription which hasn't been read since the given time, exactly as if
+     * {@link #deleteSubscriptionById} had been called for each one, except those with an open stream or a waiting long
+     * poll. They're deleted one at a time, so that this never holds up publishers (or the journal) for longer than a
+     * single delete. Idleness is checked again atomically with each removal, so a subscription which was read, or had a
+     * stream opened, since it was found to be idle is kept. A read racing with the removal itself may still see the
+     * subscription one last time.
+     *
+     * @return the number of subscriptions deleted
+     */
+    public int expireIdleSubscriptions(final long idleSinceMillis) {
+        int expired = 0;
+        for (final SubscriptionShard shard : shards) {
+            for (final UUID id : shard.lastReadMillis.keySet()) {
+                if (!shard.isIdle(id, idleSinceMillis)) {
+                    continue;
+                }
+                try {
+                    journal.record(JournalEvent.subscriptionDeleted(id),
+                            () -> applyDelete(id, () -> shard.isIdle(id, idleSinceMillis)));
+                    expired++;
+                } catch (final SubscriptionNotFoundException | StillInUseException e) {
+                    // Deleted, or used again, in the meantime
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Delivers the message to every subscription which supports its type. With more than one shard, and enough
+     * supporting subscriptions, each shard's share is delivered in parallel; either way, this only returns once the
+     * message has been delivered everywhere.
+     *
+     * @throws MailboxFullException if any of those subscriptions rejected the message because its mailbox was full
+     * (using the {@code REJECT} overflow policy). The message is still delivered to every other subscription.
+     */
+    public void sendMessageToSupportingSubscriptions(@NotNull final Message message) throws MailboxFullException {
+        final long start = System.nanoTime();
+        final Targets[] targets = targetsFor(message.type);
+        final int fanOut = fanOutOf(targets);
+        final List<UUID> rejectedIds = deliverToShards(fanOut, shard -> shards[shard].deliver(message, targets[shard]));
+        metrics.recordFanOut(fanOut);
+        hotPathLog.delivered(message, fanOut, rejectedIds.size(), System.nanoTime() - start);
+        if (!rejectedIds.isEmpty()) {
+            throw new MailboxFullException("Message " + message.id + " was rejected by full subscription(s) "
+                    + rejectedIds, rejectedIds);
+        }
+    }
+
+    /**
+     * Delivers a batch of messages to every subscription which supports their types. The supporting subscriptions are
+     * only looked up once per type, and each subscription's mailbox is only updated once for the whole batch. Every
+     * subscription receives its messages in batch order.
+     *
+     * @throws MailboxFullException if any subscription rejected any of the messages because its mailbox was full
+     * (using the {@code REJECT} overflow policy). Every other delivery still happens.
+     */
+    public void sendMessagesToSupportingSubscriptions(@NotNull final List<Message> batch) throws MailboxFullException {
+        final long start = System.nanoTime();
+        final Map<String, Targets[]> targetsByType = new HashMap<>();
+        int totalFanOut = 0;
+        for (final Message message : batch) {
+            final int fanOut = fanOutOf(targetsByType.computeIfAbsent(message.type, this::targetsFor));
+            metrics.recordFanOut(fanOut);
+            totalFanOut += fanOut;
+        }
+        final List<UUID> rejectedIds = deliverToShards(totalFanOut,
+                shard -> shards[shard].deliverAll(batch, type -> targetsByType.get(type)[shard]));
+        hotPathLog.deliveredBatch(batch.size(), totalFanOut, rejectedIds.size(), System.nanoTime() - start);
+        if (!rejectedIds.isEmpty()) {
+            throw new MailboxFullException("A batch of " + batch.size() + " message(s) was partially rejected by full "
+                    + "subscription(s) " + rejectedIds, rejectedIds);
+        }
     }
 
-    public void sendMessageToSupportingSubscriptions(@NotNull final Message message) {
-        for (final Map.Entry<UUID, Subscription> entry : subscriptions.entrySet()) {
-            final Subscription current = entry.getValue();
-            if (current.supportsType(message.type)) {
-                log.info("Sending message to subscription {}", current.id);
-                final ImmutableList<Message> messages = ImmutableList.<Message>builder()
-                        .addAll(current.messages)
-                        .add(message)
-                        .build();
-                final Subscription updated = new Subscription(current.id, current.name, current.messageTypes, messages);
-                entry.setValue(updated);
+    /**
+     * Runs a delivery against every shard (by its index), in parallel if there's enough of it to be worth it.
+     *
+     * @return the IDs of the subscriptions which rejected any of it, across every shard
+     */
+    @NotNull
+    private List<UUID> deliverToShards(final int fanOut, @NotNull final IntFunction<List<UUID>> delivery) {
+        if (shards.length == 1) {
+            return delivery.apply(0);
+        }
+        final List<UUID> rejectedIds = new ArrayList<>(0);
+        if (fanOut < parallelFanOutThreshold) {
+            for (int shard = 0; shard < shards.length; shard++) {
+                rejectedIds.addAll(delivery.apply(shard));
             }
+            return rejectedIds;
+        }
+        final List<ForkJoinTask<List<UUID>>> tasks = new ArrayList<>(shards.length - 1);
+        for (int shard = 1; shard < shards.length; shard++) {
+            final int index = shard;
+            tasks.add(fanOutPool.submit(() -> delivery.apply(index)));
+        }
+        // Rather than just waiting, the calling thread takes the first shard itself
+        rejectedIds.addAll(delivery.apply(0));
+        tasks.forEach(task -> rejectedIds.addAll(task.join()));
+        return rejectedIds;
+    }
+
+    private int fanOutOf(@NotNull final Targets[] targets) {
+        int fanOut = 0;
+        for (final Targets shardTargets : targets) {
+            fanOut += shardTargets.size();
         }
+        return fanOut;
+    }
+
+    /**
+     * @return the subscriptions supporting the type in each shard, by shard index
+     */
+    @NotNull
+    private Targets[] targetsFor(@NotNull final String type) {
+        final Targets[] targets = new Targets[shards.length];
+        for (int shard = 0; shard < shards.length; shard++) {
+            targets[shard] = shards[shard].targetsFor(type);
+        }
+        return targets;
+    }
+
+    /**
+     * Registers a listener to be run whenever a message is delivered to the given subscription. It's run on the
+     * delivering thread, so it should only hand the work off elsewhere.
+     */
+    public void addDeliveryListener(@NotNull final UUID id, @NotNull final Runnable listener) {
+        Objects.requireNonNull(listener, "listener");
+        deliveryListenersById.compute(id, (key, listeners) -> {
+            final Set<Runnable> result = listeners == null ? ConcurrentHashMap.newKeySet() : listeners;
+            result.add(listener);
+            return result;
+        });
+    }
+
+    public void removeDeliveryListener(@NotNull final UUID id, @NotNull final Runnable listener) {
+        deliveryListenersById.computeIfPresent(id, (key, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
     }
 
     @NotNull
     public ImmutableList<Subscription> getSubscriptions() {
-        return ImmutableList.copyOf(subscriptions.values());
+        final ImmutableList.Builder<Subscription> result = ImmutableList.builder();
+        for (final SubscriptionShard shard : shards) {
+            result.addAll(shard.subscriptions.values());
+        }
+        return result.build();
+    }
+
+    /**
+     * Streams the subscriptions straight from the store, without copying them first. Like iterating over any
+     * concurrent map, this is weakly consistent: subscriptions created or updated while streaming may or may not be
+     * included.
+     */
+    @NotNull
+    public Stream<Subscription> streamSubscriptions() {
+        return Arrays.stream(shards).flatMap(shard -> shard.subscriptions.values().stream());
+    }
+
+    // Primarily used for testing
+    @NotNull
+    MessageTypes getTypeRegistry() {
+        return typeRegistry;
+    }
+
+    @NotNull
+    private SubscriptionShard shardFor(@NotNull final UUID id) {
+        return shards[(id.hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
+
+    // Aborts a conditional delete from inside the atomic removal, so that nothing is journaled either
+    private static final class StillInUseException extends RuntimeException {
+
+        private StillInUseException() {
+            super("Subscription is still in use", null, false, false);
+        }
     }
 }
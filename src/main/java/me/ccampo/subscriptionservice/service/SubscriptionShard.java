@@ -0,0 +1,245 @@
+package me.ccampo.subscriptionservice.service;
+
+import com.google.common.collect.ImmutableList;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.OverflowPolicy;
+import me.ccampo.subscriptionservice.model.Subscription;
+import me.ccampo.subscriptionservice.model.TypePattern;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * One partition of the subscription store: the subscriptions whose IDs hash to it, and its own index of their types.
+ * Shards share nothing with each other, so a message can be delivered to every shard in parallel.
+ *
+ * @author Chris Campo
+ */
+final class SubscriptionShard {
+
+    final Map<UUID, Subscription> subscriptions;
+
+    // When each subscription was last read by a consumer, in epoch milliseconds, for expiring idle subscriptions. Only
+    // ever updated in place, so reading a subscription doesn't allocate.
+    final Map<UUID, AtomicLong> lastReadMillis = new ConcurrentHashMap<>();
+
+    // Inverted index of message type -> IDs of the subscriptions supporting that type, so that fan-out only has to
+    // visit the subscriptions that actually match a message instead of every subscription in the shard.
+    private final Map<String, Set<UUID>> subscriptionIdsByType = new ConcurrentHashMap<>();
+
+    // The same, for the types which are patterns
+    private final TypePatternTrie subscriptionIdsByPattern = new TypePatternTrie();
+
+    // Shared by every shard; see SubscriptionService
+    private final Map<UUID, Set<Runnable>> deliveryListenersById;
+
+    // The current time in epoch milliseconds, for lastReadMillis
+    private final LongSupplier clock;
+
+    // Whether the map was handed in by the caller (i.e. a test), who may put subscriptions straight into it afterwards
+    private final boolean injected;
+
+    SubscriptionShard(@NotNull final Map<UUID, Subscription> subscriptions,
+            @NotNull final Map<UUID, Set<Runnable>> deliveryListenersById, @NotNull final LongSupplier clock,
+            final boolean injected) {
+        this.subscriptions = Objects.requireNonNull(subscriptions, "subscriptions");
+        this.deliveryListenersById = Objects.requireNonNull(deliveryListenersById, "deliveryListenersById");
+        this.clock = Objects.requireNonNull(clock, "clock");
+        this.injected = injected;
+        adoptUntracked();
+    }
+
+    /**
+     * Indexes and starts tracking every subscription which was put into the map without going through the service,
+     * i.e. the ones already in an injected map, or put into it since. Only ever has anything to do for an injected
+     * map, and only checks it when it holds more subscriptions than are tracked, so it costs nothing otherwise.
+     */
+    private void adoptUntracked() {
+        if (!injected || subscriptions.size() <= lastReadMillis.size()) {
+            return;
+        }
+        subscriptions.values().forEach(subscription -> {
+            if (lastReadMillis.putIfAbsent(subscription.id, new AtomicLong(clock.getAsLong())) == null) {
+                index(subscription.id, subscription.messageTypes);
+            }
+        });
+    }
+
+    /**
+     * Starts tracking when the subscription was last read, as if it was just read
+     */
+    void startTracking(@NotNull final UUID id) {
+        lastReadMillis.put(id, new AtomicLong(clock.getAsLong()));
+    }
+
+    void markRead(@NotNull final UUID id) {
+        final AtomicLong lastRead = lastReadMillis.get(id);
+        if (lastRead != null) {
+            lastRead.lazySet(clock.getAsLong());
+        }
+    }
+
+    /**
+     * @return whether the subscription hasn't been read since the given time, and has no open stream or waiting long
+     * poll
+     */
+    boolean isIdle(@NotNull final UUID id, final long idleSinceMillis) {
+        final AtomicLong lastRead = lastReadMillis.get(id);
+        return lastRead != null && lastRead.get() < idleSinceMillis && !deliveryListenersById.containsKey(id);
+    }
+
+    /**
+     * Looks up every subscription in this shard which supports the type, once each: first those which support it as
+     * is, straight from the index, then those which only match it with a pattern. Only the latter are collected, and
+     * only when there are any patterns at all; duplicates among them are dropped in place, without a set.
+     */
+    @NotNull
+    Targets targetsFor(@NotNull final String type) {
+        adoptUntracked();
+        final Set<UUID> exact = subscriptionIdsByType.get(type);
+        if (subscriptionIdsByPattern.isEmpty()) {
+            return exact != null ? new Targets(exact, ImmutableList.of()) : Targets.NONE;
+        }
+        final List<UUID> matched = new ArrayList<>(0);
+        subscriptionIdsByPattern.match(type, matched);
+        if (exact != null && !matched.isEmpty()) {
+            matched.removeIf(exact::contains);
+        }
+        if (matched.size() > 1) {
+            matched.sort(null);
+            int distinct = 1;
+            for (int i = 1; i < matched.size(); i++) {
+                if (!matched.get(i).equals(matched.get(distinct - 1))) {
+                    matched.set(distinct++, matched.get(i));
+                }
+            }
+            matched.subList(distinct, matched.size()).clear();
+        }
+        return exact == null && matched.isEmpty() ? Targets.NONE : new Targets(exact, matched);
+    }
+
+    /**
+     * Delivers the message to the given subscriptions in this shard, which support its type
+     *
+     * @return the IDs of the subscriptions which rejected it because their mailboxes were full
+     */
+    @NotNull
+    List<UUID> deliver(@NotNull final Message message, @NotNull final Targets targets) {
+        if (targets == Targets.NONE) {
+            return ImmutableList.of();
+        }
+        final List<UUID> rejectedIds = new ArrayList<>(0);
+        targets.forEach(id -> {
+            // Deliver atomically, so concurrent publishes (or updates) to the same subscription can't drop messages.
+            // The index may briefly be stale while a subscription's types are being updated; double check here.
+            subscriptions.computeIfPresent(id, (key, current) -> {
+                if (!current.supportsType(message)) {
+                    return current;
+                }
+                if (current.isFull() && current.overflowPolicy == OverflowPolicy.REJECT) {
+                    rejectedIds.add(id);
+                }
+                return current.withMessage(message);
+            });
+            notifyListeners(id);
+        });
+        return rejectedIds;
+    }
+
+    /**
+     * Delivers a batch of messages to the subscriptions in this shard which support their types (as looked up for
+     * each type), updating each mailbox once, in batch order.
+     *
+     * @return the IDs of the subscriptions which rejected any of them because their mailboxes were full
+     */
+    @NotNull
+    List<UUID> deliverAll(@NotNull final List<Message> batch, @NotNull final Function<String, Targets> targetsByType) {
+        // Insertion ordered, so that the batch is delivered in order
+        final Map<UUID, List<Message>> messagesById = new LinkedHashMap<>();
+        for (final Message message : batch) {
+            targetsByType.apply(message.type)
+                    .forEach(id -> messagesById.computeIfAbsent(id, key -> new ArrayList<>()).add(message));
+        }
+        final List<UUID> rejectedIds = new ArrayList<>(0);
+        messagesById.forEach((id, messages) -> {
+            subscriptions.computeIfPresent(id, (key, current) -> {
+                // As above, the index may briefly be stale
+                final List<Message> supported = messages.stream()
+                        .filter(message -> current.supportsType(message))
+                        .collect(toList());
+                final Subscription updated = current.withMessages(supported);
+                if (current.overflowPolicy == OverflowPolicy.REJECT && updated.overflowCount > current.overflowCount) {
+                    rejectedIds.add(id);
+                }
+                return updated;
+            });
+            notifyListeners(id);
+        });
+        return rejectedIds;
+    }
+
+    void index(@NotNull final UUID id, @NotNull final Set<String> messageTypes) {
+        messageTypes.forEach(type -> {
+            if (TypePattern.isPattern(type)) {
+                subscriptionIdsByPattern.add(type, id);
+                return;
+            }
+            subscriptionIdsByType.compute(type, (key, ids) -> {
+                final Set<UUID> result = ids == null ? ConcurrentHashMap.newKeySet() : ids;
+                result.add(id);
+                return result;
+            });
+        });
+    }
+
+    /**
+     * Indexes many subscriptions in one pass, updating each type's entry once
+     */
+    void indexAll(@NotNull final Map<String, List<UUID>> idsByType) {
+        idsByType.forEach((type, ids) -> {
+            if (TypePattern.isPattern(type)) {
+                ids.forEach(id -> subscriptionIdsByPattern.add(type, id));
+                return;
+            }
+            subscriptionIdsByType.compute(type, (key, existing) -> {
+                final Set<UUID> result = existing == null ? ConcurrentHashMap.newKeySet() : existing;
+                result.addAll(ids);
+                return result;
+            });
+        });
+    }
+
+    void unindex(@NotNull final UUID id, @NotNull final Set<String> messageTypes) {
+        // Drop the type entirely once its last subscription is gone, so the index doesn't grow without bound
+        messageTypes.forEach(type -> {
+            if (TypePattern.isPattern(type)) {
+                subscriptionIdsByPattern.remove(type, id);
+                return;
+            }
+            subscriptionIdsByType.computeIfPresent(type, (key, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        });
+    }
+
+    void notifyListeners(@NotNull final UUID id) {
+        final Set<Runnable> listeners = deliveryListenersById.get(id);
+        if (listeners != null) {
+            listeners.forEach(Runnable::run);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package me.ccampo.subscriptionservice.service;
+
+import me.ccampo.subscriptionservice.exception.SubscriptionNotFoundException;
+import me.ccampo.subscriptionservice.metrics.MetricsRegistry;
+import me.ccampo.subscriptionservice.model.MessagePage;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes the messages delivered to a subscription to its consumers as Server-Sent Events, as soon as they're
+ * delivered.
+ * <p>
+ * Delivering a message only signals the streams of its subscriptions; the messages themselves are read from the
+ * subscription's mailbox and written to the stream on a separate pool of threads, so a slow consumer never holds up
+ * publishing. Signals arriving while a stream is already being written to are coalesced, so a burst of messages goes
+ * out in as few writes as possible. Each event's ID is the message's sequence number, so a consumer can reconnect with
+ * it (as {@code Last-Event-ID}, or {@code since}) and carry on where it left off.
+ *
+ * @author Chris Campo
+ */
+@Service
+public class SubscriptionStreamService {
+
+    private static final Logger log = LoggerFactory.getLogger(SubscriptionStreamService.class);
+
+    static final String MESSAGE_EVENT = "message";
+    private static final int BATCH_SIZE = 1000;
+
+    private final SubscriptionService subscriptionService;
+    private final long timeoutMillis;
+    private final ExecutorService executor;
+    private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public SubscriptionStreamService(@NotNull final SubscriptionService subscriptionService,
+            @NotNull final MetricsRegistry metrics,
+            @Value("${subscription-service.streaming.timeout-ms:1800000}") final long timeoutMillis,
+            @Value("${subscription-service.streaming.threads:4}") final int threads) {
+        this.subscriptionService = Objects.requireNonNull(subscriptionService, "subscriptionService");
+        this.timeoutMillis = timeoutMillis;
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "subscription-stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.gauge("open_streams", "Number of open subscription streams", streams::size);
+    }
+
+    /**
+     * Opens a stream of the messages delivered to a subscription, starting with those already in its mailbox whose
+     * sequence numbers come after {@code since}.
+     *
+     * @throws SubscriptionNotFoundException if the subscription doesn't exist
+     */
+    @NotNull
+    public SseEmitter open(@NotNull final UUID id, final long since) throws SubscriptionNotFoundException {
+        // Fail fast, before the response is committed to being a stream
+        subscriptionService.getSubscriptionById(id);
+        final Stream stream = new Stream(id, since, new SseEmitter(timeoutMillis));
+        stream.emitter.onCompletion(stream::close);
+        stream.emitter.onTimeout(stream::close);
+        streams.add(stream);
+        subscriptionService.addDeliveryListener(id, stream.listener);
+        // Catch up on whatever is already in the mailbox
+        stream.signal();
+        return stream.emitter;
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+        streams.forEach(stream -> {
+            stream.close();
+            stream.emitter.complete();
+        });
+    }
+
+    private final class Stream {
+
+        private final UUID id;
+        private final SseEmitter emitter;
+        // The same instance has to be passed to remove it again
+        private final Runnable listener = this::signal;
+        // Number of signals not yet handled; only whoever takes it from zero schedules a flush
+        private final AtomicInteger pending = new AtomicInteger();
+        // Only touched by the flush in progress
+        private long cursor;
+
+        private Stream(@NotNull final UUID id, final long since, @NotNull final SseEmitter emitter) {
+            this.id = Objects.requireNonNull(id, "id");
+            this.cursor = since;
+            this.emitter = Objects.requireNonNull(emitter, "emitter");
+        }
+
+        private void signal() {
+            if (pending.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::drain);
+                } catch (final RejectedExecutionException e) {
+                    // Shutting down
+                    close();
+                }
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                if (!flush()) {
+                    return;
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * @return false if the stream is finished
+         */
+        private boolean flush() {
+            try {
+                MessagePage page;
+                do {
+                    page = subscriptionService.getSubscriptionById(id).messages.page(cursor, BATCH_SIZE);
+                    for (int i = 0; i < page.messages.size(); i++) {
+                        emitter.send(SseEmitter.event()
+                                .id(String.valueOf(page.sequenceAt(i)))
+                                .name(MESSAGE_EVENT)
+                                .data(page.messages.get(i), MediaType.APPLICATION_JSON));
+                    }
+                    cursor = page.nextCursor;
+                } while (page.messages.size() == BATCH_SIZE);
+                return true;
+            } catch (final SubscriptionNotFoundException e) {
+                close();
+                emitter.complete();
+                return false;
+            } catch (final IOException | IllegalStateException e) {
+                // The consumer went away (or the stream already completed)
+                log.debug("Closing stream of subscription {}", id, e);
+                close();
+                return false;
+            }
+        }
+
+        private void close() {
+            if (streams.remove(this)) {
+                subscriptionService.removeDeliveryListener(id, listener);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package me.ccampo.subscriptionservice.service;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * The IDs of the subscriptions in one shard which support a message type, looked up once and then both counted (to
+ * decide how to fan out) and delivered to: those which support the type as is, straight from the shard's index, and
+ * those which only match it with a pattern, without any duplicates between or within them.
+ *
+ * @author Chris Campo
+ */
+final class Targets {
+
+    static final Targets NONE = new Targets(null, ImmutableList.of());
+
+    // The index's own set, so it may still change (e.g. a subscription being deleted); deliveries double check anyway
+    @Nullable
+    private final Set<UUID> exact;
+    private final List<UUID> patternOnly;
+
+    Targets(@Nullable final Set<UUID> exact, @NotNull final List<UUID> patternOnly) {
+        this.exact = exact;
+        this.patternOnly = patternOnly;
+    }
+
+    int size() {
+        return (exact != null ? exact.size() : 0) + patternOnly.size();
+    }
+
+    void forEach(@NotNull final Consumer<UUID> action) {
+        if (exact != null) {
+            exact.forEach(action);
+        }
+        patternOnly.forEach(action);
+    }
+}
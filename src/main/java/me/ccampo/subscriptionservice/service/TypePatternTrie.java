@@ -0,0 +1,94 @@
+package me.ccampo.subscriptionservice.service;
+
+import me.ccampo.subscriptionservice.model.TypePattern;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes subscriptions by the {@link TypePattern}s they support, as a trie of pattern segments, so finding every
+ * subscription whose patterns match a type costs O(segments in the type) (plus some backtracking for each {@code #}),
+ * rather than trying every pattern of every subscription.
+ * <p>
+ * Lookups are lock free, and may run concurrently with changes; changes are serialized, so that empty branches can
+ * be pruned safely.
+ *
+ * @author Chris Campo
+ */
+final class TypePatternTrie {
+
+    private final Node root = new Node();
+
+    boolean isEmpty() {
+        return root.children.isEmpty();
+    }
+
+    synchronized void add(@NotNull final String pattern, @NotNull final UUID id) {
+        Node node = root;
+        for (final String segment : TypePattern.split(pattern)) {
+            node = node.children.computeIfAbsent(segment, key -> new Node());
+        }
+        node.ids.add(id);
+    }
+
+    synchronized void remove(@NotNull final String pattern, @NotNull final UUID id) {
+        remove(root, TypePattern.split(pattern), 0, id);
+    }
+
+    /**
+     * Adds the IDs of every subscription with a pattern matching the type to {@code result}. An ID may be added more
+     * than once, if more than one of its patterns match, or one matches in more than one way.
+     */
+    void match(@NotNull final String type, @NotNull final Collection<UUID> result) {
+        match(root, TypePattern.split(type), 0, result);
+    }
+
+    private static void match(@NotNull final Node node, @NotNull final String[] segments, final int index,
+            @NotNull final Collection<UUID> result) {
+        final Node any = node.children.get(TypePattern.ANY);
+        if (any != null) {
+            // Try having it match none of the remaining segments, then one more at a time
+            for (int next = index; next <= segments.length; next++) {
+                match(any, segments, next, result);
+            }
+        }
+        if (index == segments.length) {
+            result.addAll(node.ids);
+            return;
+        }
+        final Node exact = node.children.get(segments[index]);
+        if (exact != null) {
+            match(exact, segments, index + 1, result);
+        }
+        final Node one = node.children.get(TypePattern.ONE);
+        if (one != null) {
+            match(one, segments, index + 1, result);
+        }
+    }
+
+    /**
+     * @return whether the node is now empty, and can be pruned
+     */
+    private static boolean remove(@NotNull final Node node, @NotNull final String[] segments, final int index,
+            @NotNull final UUID id) {
+        if (index == segments.length) {
+            node.ids.remove(id);
+        } else {
+            final Node child = node.children.get(segments[index]);
+            if (child != null && remove(child, segments, index + 1, id)) {
+                node.children.remove(segments[index]);
+            }
+        }
+        return node.ids.isEmpty() && node.children.isEmpty();
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        private final Set<UUID> ids = ConcurrentHashMap.newKeySet();
+    }
+}
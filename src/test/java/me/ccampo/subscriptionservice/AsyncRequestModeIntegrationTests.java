@@ -0,0 +1,126 @@
+package me.ccampo.subscriptionservice;
+
+import me.ccampo.subscriptionservice.WebIntegrationTests.TestMessage;
+import me.ccampo.subscriptionservice.WebIntegrationTests.TestSubscriptionResource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+/**
+ * The same API, with requests handed off to workers and long polls waiting without a thread.
+ *
+ * @author Chris Campo
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {"subscription-service.requests.mode=async", "server.tomcat.max-threads=4"})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class AsyncRequestModeIntegrationTests {
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Test
+    public void testMessageIsCreatedAndReceived() {
+        final TestSubscriptionResource sub = createSubscription("type1");
+
+        final MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("type", "type1");
+        params.add("content", "hello world");
+        final ResponseEntity<TestMessage> response = restTemplate.postForEntity("/messages", params, TestMessage.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+
+        final TestSubscriptionResource retrieved =
+                restTemplate.getForObject("/subscriptions/" + sub.id, TestSubscriptionResource.class);
+        assertThat(retrieved.messages).extracting("content").containsExactly("hello world");
+    }
+
+    @Test
+    public void testMissingSubscriptionIsNotFound() {
+        final ResponseEntity<TestSubscriptionResource> response = restTemplate.getForEntity(
+                "/subscriptions/" + UUID.randomUUID() + "?waitMs=10000", TestSubscriptionResource.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    @Test
+    public void testMoreLongPollsThanServerThreadsDoNotBlockPublishing() throws Exception {
+        final TestSubscriptionResource sub = createSubscription("type1");
+
+        // With only 4 Tomcat threads, these would hold every one of them in blocking mode
+        final ExecutorService consumers = Executors.newFixedThreadPool(16);
+        final List<Future<TestSubscriptionResource>> polls = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            polls.add(consumers.submit(() -> restTemplate.getForObject(
+                    "/subscriptions/" + sub.id + "?waitMs=30000", TestSubscriptionResource.class)));
+        }
+        Thread.sleep(500);
+
+        final MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("type", "type1");
+        params.add("content", "hello");
+        final ResponseEntity<TestMessage> response = restTemplate.postForEntity("/messages", params, TestMessage.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+
+        for (final Future<TestSubscriptionResource> poll : polls) {
+            assertThat(poll.get(10, TimeUnit.SECONDS).messages).extracting("content").containsExactly("hello");
+        }
+        consumers.shutdown();
+    }
+
+    @Test
+    public void testSubscriptionIsCreatedUpdatedAndDeleted() {
+        final MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("name", "foo");
+        params.add("messageTypes", "type1");
+        final ResponseEntity<TestSubscriptionResource> created =
+                restTemplate.postForEntity("/subscriptions", params, TestSubscriptionResource.class);
+        assertThat(created.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        // Built from the request, before it was handed off
+        assertThat(created.getHeaders().getLocation().getPath()).isEqualTo("/subscriptions/" + created.getBody().id);
+
+        final MultiValueMap<String, String> update = new LinkedMultiValueMap<>();
+        update.add("name", "bar");
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        final ResponseEntity<TestSubscriptionResource> updated = restTemplate.exchange(
+                "/subscriptions/" + created.getBody().id, HttpMethod.PUT,
+                new HttpEntity<MultiValueMap>(update, headers), TestSubscriptionResource.class);
+        assertThat(updated.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(updated.getBody().name).isEqualTo("bar");
+
+        final ResponseEntity<Void> deleted = restTemplate.exchange("/subscriptions/" + created.getBody().id,
+                HttpMethod.DELETE, null, Void.class);
+        assertThat(deleted.getStatusCode()).isEqualTo(HttpStatus.NO_CONTENT);
+        assertThat(restTemplate.getForEntity("/subscriptions/" + created.getBody().id, String.class).getStatusCode())
+                .isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    private TestSubscriptionResource createSubscription(final String messageTypes) {
+        final MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("name", "foo");
+        params.add("messageTypes", messageTypes);
+        return restTemplate.postForObject("/subscriptions", params, TestSubscriptionResource.class);
+    }
+}
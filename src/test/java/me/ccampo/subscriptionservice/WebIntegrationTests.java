@@ -12,9 +12,17 @@ import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.entry;
 import static org.assertj.core.api.Java6Assertions.assertThat;
@@ -47,6 +55,13 @@ public class WebIntegrationTests {
         public List<String> messageTypes;
         public List<TestMessage> messages;
         public Map<String, Long> messageCountsByType;
+        public long nextCursor;
+    }
+
+    public static class TestBatchResult {
+        public UUID id;
+        public int status;
+        public String error;
     }
 
     @Test
@@ -201,6 +216,32 @@ public class WebIntegrationTests {
         assertThat(response.getBody().content).isEqualTo("hello world");
     }
 
+    @Test
+    public void testMessageRejectedByAFullSubscriptionIsStillCreated() {
+        final MultiValueMap<String, String> p1 = new LinkedMultiValueMap<>();
+        p1.add("name", "full");
+        p1.add("messageTypes", "type1");
+        p1.add("capacity", "1");
+        p1.add("overflowPolicy", "reject");
+        final TestSubscriptionResource full =
+                restTemplate.postForObject("/subscriptions", p1, TestSubscriptionResource.class);
+
+        final MultiValueMap<String, String> p2 = new LinkedMultiValueMap<>();
+        p2.add("type", "type1");
+        p2.add("content", "first");
+        assertThat(restTemplate.postForEntity("/messages", p2, TestMessage.class).getHeaders())
+                .doesNotContainKey("X-Rejected-By");
+
+        final MultiValueMap<String, String> p3 = new LinkedMultiValueMap<>();
+        p3.add("type", "type1");
+        p3.add("content", "second");
+        final ResponseEntity<TestMessage> response = restTemplate.postForEntity("/messages", p3, TestMessage.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(response.getBody().content).isEqualTo("second");
+        assertThat(response.getHeaders().getFirst("X-Rejected-Count")).isEqualTo("1");
+        assertThat(response.getHeaders().getFirst("X-Rejected-By")).isEqualTo(full.id.toString());
+    }
+
     @Test
     public void testMessageIsCreatedAndReceivedByRelevantSubscriptions() {
         final MultiValueMap<String, String> p1 = new LinkedMultiValueMap<>();
@@ -242,4 +283,249 @@ public class WebIntegrationTests {
         assertThat(sub4.messages).hasSize(2);
         assertThat(sub4.messages).usingFieldByFieldElementComparator().containsExactlyInAnyOrder(msg1, msg2);
     }
+
+    @Test
+    public void testSubscriptionMessagesArePaged() {
+        final MultiValueMap<String, String> p1 = new LinkedMultiValueMap<>();
+        p1.add("name", "foo");
+        p1.add("messageTypes", "type1");
+        final TestSubscriptionResource sub =
+                restTemplate.postForObject("/subscriptions", p1, TestSubscriptionResource.class);
+
+        for (final String content : new String[]{"a", "b", "c"}) {
+            final MultiValueMap<String, String> p2 = new LinkedMultiValueMap<>();
+            p2.add("type", "type1");
+            p2.add("content", content);
+            restTemplate.postForObject("/messages", p2, TestMessage.class);
+        }
+
+        final TestSubscriptionResource page1 = restTemplate.getForObject(
+                "/subscriptions/" + sub.id + "?limit=2", TestSubscriptionResource.class);
+        assertThat(page1.messages).extracting("content").containsExactly("a", "b");
+
+        final TestSubscriptionResource page2 = restTemplate.getForObject(
+                "/subscriptions/" + sub.id + "?limit=2&after=" + page1.nextCursor, TestSubscriptionResource.class);
+        assertThat(page2.messages).extracting("content").containsExactly("c");
+
+        final TestSubscriptionResource metadata = restTemplate.getForObject(
+                "/subscriptions/" + sub.id + "?view=metadata", TestSubscriptionResource.class);
+        assertThat(metadata.messages).isNull();
+        assertThat(metadata.messageCountsByType).containsOnly(entry("type1", 3L));
+
+        final ResponseEntity<String> negative =
+                restTemplate.getForEntity("/subscriptions/" + sub.id + "?limit=-1", String.class);
+        assertThat(negative.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    public void testLongPollWaitsForADelivery() throws Exception {
+        final MultiValueMap<String, String> p1 = new LinkedMultiValueMap<>();
+        p1.add("name", "foo");
+        p1.add("messageTypes", "type1");
+        final TestSubscriptionResource sub =
+                restTemplate.postForObject("/subscriptions", p1, TestSubscriptionResource.class);
+
+        // Nothing is delivered, so it waits the whole time
+        final TestSubscriptionResource empty = restTemplate.getForObject(
+                "/subscriptions/" + sub.id + "?waitMs=100", TestSubscriptionResource.class);
+        assertThat(empty.messages).isEmpty();
+
+        final Thread publisher = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (final InterruptedException e) {
+                return;
+            }
+            final MultiValueMap<String, String> p2 = new LinkedMultiValueMap<>();
+            p2.add("type", "type1");
+            p2.add("content", "hello");
+            restTemplate.postForObject("/messages", p2, TestMessage.class);
+        });
+        publisher.start();
+        final long start = System.nanoTime();
+        final TestSubscriptionResource polled = restTemplate.getForObject(
+                "/subscriptions/" + sub.id + "?waitMs=30000", TestSubscriptionResource.class);
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(30));
+        assertThat(polled.messages).extracting("content").containsExactly("hello");
+        publisher.join();
+    }
+
+    @Test
+    public void testSubscriptionsAreStreamedAsNdjson() {
+        for (final String name : new String[]{"foo", "bar", "baz"}) {
+            final MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+            params.add("name", name);
+            params.add("messageTypes", "type1");
+            restTemplate.postForObject("/subscriptions", params, TestSubscriptionResource.class);
+        }
+
+        final ResponseEntity<String> response =
+                restTemplate.getForEntity("/subscriptions?format=ndjson&view=metadata", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getHeaders().getContentType().toString()).startsWith("application/x-ndjson");
+        final String[] lines = response.getBody().split("\n");
+        assertThat(lines).hasSize(3);
+        for (final String line : lines) {
+            assertThat(line).startsWith("{").doesNotContain("\"messages\"");
+        }
+    }
+
+    @Test
+    public void testMetricsAreScraped() {
+        final MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("name", "foo");
+        params.add("messageTypes", "type1");
+        restTemplate.postForObject("/subscriptions", params, TestSubscriptionResource.class);
+        final MultiValueMap<String, String> msgParams = new LinkedMultiValueMap<>();
+        msgParams.add("type", "type1");
+        msgParams.add("content", "a");
+        restTemplate.postForObject("/messages", msgParams, TestMessage.class);
+
+        final ResponseEntity<String> response = restTemplate.getForEntity("/metrics", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getHeaders().getContentType().toString()).startsWith("text/plain");
+        assertThat(response.getBody())
+                .contains("subscription_service_subscriptions 1\n")
+                .contains("subscription_service_stored_messages 1\n")
+                .contains("subscription_service_messages_published_total{type=\"type1\"} 1\n")
+                .contains("subscription_service_fan_out_width_count 1\n")
+                .contains("# TYPE subscription_service_http_request_latency_seconds histogram\n");
+    }
+
+    @Test
+    public void testMessagesArePushedToSubscriptionStreams() throws Exception {
+        final MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("name", "foo");
+        params.add("messageTypes", "type1");
+        final TestSubscriptionResource sub =
+                restTemplate.postForObject("/subscriptions", params, TestSubscriptionResource.class);
+        final MultiValueMap<String, String> msgParams = new LinkedMultiValueMap<>();
+        msgParams.add("type", "type1");
+        msgParams.add("content", "before");
+        restTemplate.postForObject("/messages", msgParams, TestMessage.class);
+
+        final HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://localhost:" + port + "/subscriptions/" + sub.id + "/stream").openConnection();
+        connection.setRequestProperty("Accept", "text/event-stream");
+        connection.setReadTimeout(10000);
+        try (final BufferedReader reader =
+                     new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            assertThat(connection.getContentType()).startsWith("text/event-stream");
+            // The message already in the mailbox comes first...
+            assertThat(readEvent(reader)).contains("id:1").contains("event:message").contains("\"before\"");
+
+            // ...then new messages as they're delivered
+            msgParams.set("content", "after");
+            restTemplate.postForObject("/messages", msgParams, TestMessage.class);
+            assertThat(readEvent(reader)).contains("id:2").contains("\"after\"");
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String readEvent(final BufferedReader reader) throws IOException {
+        final StringBuilder event = new StringBuilder();
+        for (String line = reader.readLine(); line != null && !line.isEmpty(); line = reader.readLine()) {
+            event.append(line).append('\n');
+        }
+        return event.toString();
+    }
+
+    @Test
+    public void testAcknowledgedMessagesAreRemoved() {
+        final MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("name", "foo");
+        params.add("messageTypes", "type1");
+        final TestSubscriptionResource sub =
+                restTemplate.postForObject("/subscriptions", params, TestSubscriptionResource.class);
+        for (final String content : new String[]{"a", "b", "c"}) {
+            final MultiValueMap<String, String> msgParams = new LinkedMultiValueMap<>();
+            msgParams.add("type", "type1");
+            msgParams.add("content", content);
+            restTemplate.postForObject("/messages", msgParams, TestMessage.class);
+        }
+
+        final ResponseEntity<TestSubscriptionResource> ack = restTemplate.postForEntity(
+                "/subscriptions/" + sub.id + "/ack?upTo=2", null, TestSubscriptionResource.class);
+        assertThat(ack.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(ack.getBody().messageCountsByType).containsOnly(entry("type1", 1L));
+
+        final TestSubscriptionResource result =
+                restTemplate.getForObject("/subscriptions/" + sub.id, TestSubscriptionResource.class);
+        assertThat(result.messages).extracting("content").containsExactly("c");
+    }
+
+    @Test
+    public void testMessagesAreCreatedInBatches() {
+        final MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("name", "foo");
+        params.add("messageTypes", "type1,type2");
+        final TestSubscriptionResource sub =
+                restTemplate.postForObject("/subscriptions", params, TestSubscriptionResource.class);
+
+        final HttpHeaders jsonHeaders = new HttpHeaders();
+        jsonHeaders.setContentType(MediaType.APPLICATION_JSON);
+        final ResponseEntity<TestMessage[]> json = restTemplate.postForEntity("/messages/batch",
+                new HttpEntity<>("[{\"type\":\"type1\",\"content\":\"a\"},{\"type\":\"type3\",\"content\":\"b\"}]",
+                        jsonHeaders), TestMessage[].class);
+        assertThat(json.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(json.getBody()).extracting("content").containsExactly("a", "b");
+
+        final HttpHeaders ndjsonHeaders = new HttpHeaders();
+        ndjsonHeaders.setContentType(MediaType.parseMediaType("application/x-ndjson"));
+        final ResponseEntity<TestMessage[]> ndjson = restTemplate.postForEntity("/messages/batch",
+                new HttpEntity<>("{\"type\":\"type2\",\"content\":\"c\"}\n{\"type\":\"type1\",\"content\":\"d\"}\n",
+                        ndjsonHeaders), TestMessage[].class);
+        assertThat(ndjson.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(ndjson.getBody()).extracting("content").containsExactly("c", "d");
+
+        final TestSubscriptionResource result =
+                restTemplate.getForObject("/subscriptions/" + sub.id, TestSubscriptionResource.class);
+        assertThat(result.messages).extracting("content").containsExactly("a", "c", "d");
+    }
+
+    @Test
+    public void testOversizedBatchIsRejected() {
+        // One more than subscription-service.requests.max-batch-size
+        final List<String> messages = Collections.nCopies(10001, "{\"type\":\"type1\",\"content\":\"a\"}");
+
+        final HttpHeaders jsonHeaders = new HttpHeaders();
+        jsonHeaders.setContentType(MediaType.APPLICATION_JSON);
+        final ResponseEntity<String> json = restTemplate.postForEntity("/messages/batch",
+                new HttpEntity<>("[" + String.join(",", messages) + "]", jsonHeaders), String.class);
+        assertThat(json.getStatusCode()).isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE);
+
+        final HttpHeaders ndjsonHeaders = new HttpHeaders();
+        ndjsonHeaders.setContentType(MediaType.parseMediaType("application/x-ndjson"));
+        final ResponseEntity<String> ndjson = restTemplate.postForEntity("/messages/batch",
+                new HttpEntity<>(String.join("\n", messages), ndjsonHeaders), String.class);
+        assertThat(ndjson.getStatusCode()).isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE);
+
+        final ResponseEntity<TestMessage[]> all = restTemplate.getForEntity("/messages", TestMessage[].class);
+        assertThat(all.getBody()).isEmpty();
+    }
+
+    @Test
+    public void testSubscriptionsAreCreatedAndUpdatedInBatches() {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        final ResponseEntity<TestBatchResult[]> created = restTemplate.postForEntity("/subscriptions/batch",
+                new HttpEntity<>("[{\"name\":\"foo\",\"messageTypes\":[\"type1\"]},"
+                        + "{\"name\":\"bar\",\"messageTypes\":[\"type1\"],\"capacity\":5}]", headers),
+                TestBatchResult[].class);
+        assertThat(created.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(created.getBody()).hasSize(2).extracting("status").containsOnly(201);
+
+        final UUID missing = UUID.randomUUID();
+        final ResponseEntity<TestBatchResult[]> updated = restTemplate.exchange("/subscriptions/batch",
+                HttpMethod.PUT, new HttpEntity<>("[{\"id\":\"" + created.getBody()[0].id + "\",\"name\":\"baz\"},"
+                        + "{\"id\":\"" + missing + "\",\"name\":\"qux\"}]", headers), TestBatchResult[].class);
+        assertThat(updated.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(updated.getBody()).extracting("status").containsExactly(200, 404);
+        assertThat(updated.getBody()[1].id).isEqualTo(missing);
+
+        final TestSubscriptionResource result = restTemplate.getForObject(
+                "/subscriptions/" + created.getBody()[0].id, TestSubscriptionResource.class);
+        assertThat(result.name).isEqualTo("baz");
+    }
 }
@@ -0,0 +1,81 @@
+package me.ccampo.subscriptionservice.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Chris Campo
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void histogramBucketsAreCumulative() {
+        final Histogram histogram = new Histogram(1, 10, 100);
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(5);
+        histogram.record(100);
+        histogram.record(1000);
+        assertThat(histogram.getCumulativeCount(0)).isEqualTo(2);
+        assertThat(histogram.getCumulativeCount(1)).isEqualTo(3);
+        assertThat(histogram.getCumulativeCount(2)).isEqualTo(4);
+        assertThat(histogram.getCount()).isEqualTo(5);
+        assertThat(histogram.getSum()).isEqualTo(1106);
+    }
+
+    @Test
+    public void publishesAreCountedByTypeAndTimed() {
+        final MetricsRegistry metrics = new MetricsRegistry();
+        metrics.recordPublish("t1", TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.recordPublish("t1", TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.recordPublish("t2", TimeUnit.MILLISECONDS.toNanos(2));
+        final String scrape = metrics.scrape();
+        assertThat(scrape).contains("# TYPE subscription_service_messages_published_total counter\n");
+        assertThat(scrape).contains("subscription_service_messages_published_total{type=\"t1\"} 2\n");
+        assertThat(scrape).contains("subscription_service_messages_published_total{type=\"t2\"} 1\n");
+        assertThat(scrape).contains("subscription_service_publish_latency_seconds_bucket{le=\"0.001\"} 0\n");
+        assertThat(scrape).contains("subscription_service_publish_latency_seconds_bucket{le=\"0.005\"} 3\n");
+        assertThat(scrape).contains("subscription_service_publish_latency_seconds_bucket{le=\"+Inf\"} 3\n");
+        assertThat(scrape).contains("subscription_service_publish_latency_seconds_sum 0.006\n");
+        assertThat(scrape).contains("subscription_service_publish_latency_seconds_count 3\n");
+    }
+
+    @Test
+    public void messageTypesBeyondTheLimitAreCountedTogether() {
+        final MetricsRegistry metrics = new MetricsRegistry(2);
+        metrics.recordPublish("t1", 0);
+        metrics.recordPublish("t2", 0);
+        metrics.recordPublish("t3", 0);
+        metrics.recordPublish("t4", 0);
+        metrics.recordPublish("t1", 0);
+        final String scrape = metrics.scrape();
+        assertThat(scrape).contains("subscription_service_messages_published_total{type=\"t1\"} 2\n");
+        assertThat(scrape).contains("subscription_service_messages_published_total{type=\"t2\"} 1\n");
+        assertThat(scrape).contains("subscription_service_messages_published_total{type=\"_other\"} 2\n");
+        assertThat(scrape).doesNotContain("type=\"t3\"");
+    }
+
+    @Test
+    public void gaugesAndRequestsAreScraped() {
+        final MetricsRegistry metrics = new MetricsRegistry();
+        metrics.gauge("subscriptions", "Number of subscriptions", () -> 42);
+        metrics.counter("subscriptions_expired_total", "Subscriptions deleted for being idle", () -> 7);
+        metrics.recordFanOut(3);
+        metrics.recordRequest("MessageController.createMessage", TimeUnit.MICROSECONDS.toNanos(20));
+        final String scrape = metrics.scrape();
+        assertThat(scrape).contains("# HELP subscription_service_subscriptions Number of subscriptions\n"
+                + "# TYPE subscription_service_subscriptions gauge\n"
+                + "subscription_service_subscriptions 42\n");
+        assertThat(scrape).contains("# TYPE subscription_service_subscriptions_expired_total counter\n"
+                + "subscription_service_subscriptions_expired_total 7\n");
+        assertThat(scrape).contains("subscription_service_fan_out_width_bucket{le=\"2\"} 0\n");
+        assertThat(scrape).contains("subscription_service_fan_out_width_bucket{le=\"5\"} 1\n");
+        assertThat(scrape).contains("subscription_service_http_request_latency_seconds_bucket"
+                + "{handler=\"MessageController.createMessage\",le=\"5.0E-5\"} 1\n");
+        assertThat(scrape).contains("subscription_service_http_request_latency_seconds_count"
+                + "{handler=\"MessageController.createMessage\"} 1\n");
+    }
+}
@@ -0,0 +1,98 @@
+package me.ccampo.subscriptionservice.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Chris Campo
+ */
+public class IdGeneratorTest {
+
+    @Test
+    public void timeOrderedIdsAreVersion7() {
+        final UUID id = new TimeOrderedIdGenerator(() -> 0x0123_4567_89ABL).next();
+        assertThat(id.version()).isEqualTo(7);
+        assertThat(id.variant()).isEqualTo(2);
+        assertThat(id.getMostSignificantBits() >>> 16).isEqualTo(0x0123_4567_89ABL);
+    }
+
+    @Test
+    public void timeOrderedIdsIncreaseWithinAMillisecondAndWhenTheClockGoesBack() {
+        final AtomicLong clock = new AtomicLong(1000);
+        final IdGenerator generator = new TimeOrderedIdGenerator(clock::get);
+        final List<UUID> ids = new ArrayList<>();
+        // More than the counter can hold in one millisecond
+        for (int i = 0; i < 5000; i++) {
+            ids.add(generator.next());
+        }
+        clock.set(999);
+        ids.add(generator.next());
+        clock.set(2000);
+        ids.add(generator.next());
+        for (int i = 1; i < ids.size(); i++) {
+            assertThat(ids.get(i)).isGreaterThan(ids.get(i - 1));
+        }
+        assertThat(ids.get(ids.size() - 1).getMostSignificantBits() >>> 16).isEqualTo(2000);
+    }
+
+    @Test
+    public void timeOrderedIdsIncreaseOnEachThreadAndAreUniqueAcrossThem() throws Exception {
+        final IdGenerator generator = new TimeOrderedIdGenerator(() -> 1000);
+        final Callable<List<UUID>> generate = () -> {
+            final List<UUID> ids = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                ids.add(generator.next());
+            }
+            return ids;
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<List<UUID>> first = executor.submit(generate);
+            final Future<List<UUID>> second = executor.submit(generate);
+            final Set<UUID> all = new HashSet<>();
+            for (final List<UUID> ids : Arrays.asList(first.get(), second.get())) {
+                for (int i = 1; i < ids.size(); i++) {
+                    assertThat(ids.get(i)).isGreaterThan(ids.get(i - 1));
+                }
+                all.addAll(ids);
+            }
+            assertThat(all).hasSize(2000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void messagesGetTimeOrderedIdsByDefault() {
+        final Message first = new Message("type1", "a");
+        final Message second = new Message("type1", "b");
+        assertThat(first.id.version()).isEqualTo(7);
+        assertThat(second.id).isGreaterThan(first.id);
+    }
+
+    @Test
+    public void generatorsAreParsedLeniently() {
+        assertThat(IdGenerator.parse("TIME_ORDERED")).isSameAs(IdGenerator.timeOrdered());
+        assertThat(IdGenerator.parse(" time-ordered ")).isSameAs(IdGenerator.timeOrdered());
+        assertThat(IdGenerator.parse("random").next().version()).isEqualTo(4);
+        try {
+            IdGenerator.parse("sequential");
+            throw new AssertionError("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            assertThat(e).hasMessageContaining("sequential");
+        }
+    }
+}
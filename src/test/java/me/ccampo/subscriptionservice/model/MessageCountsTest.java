@@ -0,0 +1,45 @@
+package me.ccampo.subscriptionservice.model;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+/**
+ * @author Chris Campo
+ */
+public class MessageCountsTest {
+
+    @Test
+    public void subscribedTypesStartAtZeroInOrder() {
+        final MessageCounts counts = MessageCounts.of(ImmutableSet.of("b", "a", "c.*"));
+        assertThat(counts).containsExactly(entry("b", 0L), entry("a", 0L), entry("c.*", 0L));
+    }
+
+    @Test
+    public void countsAreAdjustedWithoutChangingPreviousVersions() {
+        final Message msg1 = new Message("a", "1");
+        final Message msg2 = new Message("c.d", "2");
+        final MessageCounts empty = MessageCounts.of(ImmutableSet.of("a", "c.*"));
+        final MessageCounts added = empty.plus(ImmutableList.of(msg1, msg2, msg1), ImmutableList.of());
+        assertThat(added).containsExactly(entry("a", 2L), entry("c.*", 0L), entry("c.d", 1L));
+        assertThat(added.get("c.d")).isEqualTo(1L);
+
+        final MessageCounts removed = added.plus(ImmutableList.of(), ImmutableList.of(msg1, msg2));
+        assertThat(removed).containsExactly(entry("a", 1L), entry("c.*", 0L), entry("c.d", 0L));
+        // Versions sharing the same slots never see types counted after them
+        assertThat(empty).hasSize(2).doesNotContainKey("c.d");
+        assertThat(empty.get("c.d")).isNull();
+        assertThat(added.plus(ImmutableList.of(), ImmutableList.of())).isSameAs(added);
+    }
+
+    @Test
+    public void initialCountsFollowTheSubscribedTypes() {
+        final MessageCounts counts = MessageCounts.of(ImmutableSet.of("a", "b"), ImmutableMap.of("x", 3L, "b", 2L));
+        assertThat(counts).containsExactly(entry("a", 0L), entry("b", 2L), entry("x", 3L));
+        assertThat(counts).isEqualTo(ImmutableMap.of("a", 0L, "b", 2L, "x", 3L));
+    }
+}
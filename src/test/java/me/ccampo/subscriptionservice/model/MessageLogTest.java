@@ -0,0 +1,230 @@
+package me.ccampo.subscriptionservice.model;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Chris Campo
+ */
+public class MessageLogTest {
+
+    @Test
+    public void emptyLogHasNoMessages() {
+        assertThat(MessageLog.empty()).isEmpty();
+    }
+
+    @Test
+    public void appendedMessagesAreKeptInOrderAcrossChunks() {
+        final List<Message> expected = new ArrayList<>();
+        MessageLog log = MessageLog.empty();
+        for (int i = 0; i < 1000; i++) {
+            final Message message = new Message("t1", String.valueOf(i));
+            expected.add(message);
+            log = log.append(message);
+        }
+        assertThat(log).hasSize(1000).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void previousVersionsAreUnaffectedByAppends() {
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        final MessageLog log1 = MessageLog.empty().append(msg1);
+        final MessageLog log2 = log1.append(msg2);
+        assertThat(log1).containsExactly(msg1);
+        assertThat(log2).containsExactly(msg1, msg2);
+    }
+
+    @Test
+    public void appendingToAnOlderVersionBranchesTheLog() {
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        final Message msg3 = new Message("t1", "c");
+        final MessageLog base = MessageLog.empty().append(msg1);
+        final MessageLog branch1 = base.append(msg2);
+        final MessageLog branch2 = base.append(msg3);
+        assertThat(base).containsExactly(msg1);
+        assertThat(branch1).containsExactly(msg1, msg2);
+        assertThat(branch2).containsExactly(msg1, msg3);
+    }
+
+    @Test
+    public void copyOfKeepsOrder() {
+        final ImmutableList<Message> messages = ImmutableList.of(new Message("t1", "a"), new Message("t2", "b"));
+        assertThat(MessageLog.copyOf(messages)).containsExactlyElementsOf(messages);
+    }
+
+    @Test
+    public void dropOldestRemovesFromTheFront() {
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        final Message msg3 = new Message("t1", "c");
+        final MessageLog log = MessageLog.empty().append(msg1).append(msg2);
+        final MessageLog dropped = log.dropOldest(1).append(msg3);
+        assertThat(log).containsExactly(msg1, msg2);
+        assertThat(dropped).containsExactly(msg2, msg3);
+        assertThat(log.dropOldest(5)).isEmpty();
+    }
+
+    @Test
+    public void dropOldestKeepsOrderAcrossChunksAndRebases() {
+        final List<Message> expected = new ArrayList<>();
+        MessageLog log = MessageLog.empty();
+        final List<MessageLog> snapshots = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            final Message message = new Message("t1", String.valueOf(i));
+            expected.add(message);
+            log = log.append(message);
+            if (log.size() > 100) {
+                log = log.dropOldest(1);
+                expected.remove(0);
+            }
+            if (i % 1000 == 0) {
+                snapshots.add(log);
+            }
+        }
+        assertThat(log).hasSize(100).containsExactlyElementsOf(expected);
+        // Snapshots taken before a rebase are still intact, and can still be branched
+        final MessageLog first = snapshots.get(0);
+        assertThat(first).hasSize(1);
+        assertThat(first.get(0).content.toString()).isEqualTo("0");
+        assertThat(first.append(new Message("t1", "x"))).hasSize(2);
+    }
+
+    @Test
+    public void pagesFollowSequenceNumbersAcrossDrops() {
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        final Message msg3 = new Message("t1", "c");
+        final MessageLog log = MessageLog.empty().append(msg1).append(msg2).append(msg3).dropOldest(1);
+
+        final MessagePage first = log.page(0, 1);
+        assertThat(first.messages).containsExactly(msg2);
+        assertThat(first.nextCursor).isEqualTo(2);
+
+        final MessagePage second = log.page(first.nextCursor, 10);
+        assertThat(second.messages).containsExactly(msg3);
+        assertThat(second.nextCursor).isEqualTo(3);
+
+        final MessagePage empty = log.page(second.nextCursor, 10);
+        assertThat(empty.messages).isEmpty();
+        assertThat(empty.nextCursor).isEqualTo(3);
+    }
+
+    @Test
+    public void sequenceNumbersCanSkipAhead() {
+        final MessageLog log = MessageLog.empty().append(new Message("t1", "a")).append(new Message("t2", "b"));
+        final Message msg = new Message("t1", "c");
+        final MessageLog rebuilt = MessageLog.empty().withNextSequence(log.nextSequence()).append(msg);
+        assertThat(rebuilt.sequenceAt(0)).isEqualTo(3);
+        assertThat(rebuilt.page(2, 10).messages).containsExactly(msg);
+    }
+
+    @Test
+    public void filteredMessagesKeepTheirSequenceNumbers() {
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t2", "b");
+        final Message msg3 = new Message("t1", "c");
+        final MessageLog log = MessageLog.empty().append(msg1).append(msg2).append(msg3)
+                .filter(message -> message.type.equals("t1"));
+        assertThat(log).containsExactly(msg1, msg3);
+        assertThat(log.sequenceAt(0)).isEqualTo(1);
+        assertThat(log.sequenceAt(1)).isEqualTo(3);
+        assertThat(log.nextSequence()).isEqualTo(4);
+
+        final MessagePage first = log.page(0, 1);
+        assertThat(first.messages).containsExactly(msg1);
+        assertThat(first.nextCursor).isEqualTo(1);
+        // The gap is skipped over, rather than counted as a message
+        final MessagePage second = log.page(first.nextCursor, 1);
+        assertThat(second.messages).containsExactly(msg3);
+        assertThat(second.sequenceAt(0)).isEqualTo(3);
+        assertThat(second.nextCursor).isEqualTo(3);
+        assertThat(log.page(2, 10).messages).containsExactly(msg3);
+        assertThat(log.dropThrough(2)).containsExactly(msg3);
+    }
+
+    @Test
+    public void hiddenMessagesAreLeftOutOnceTheLogIsRead() {
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t2", "b");
+        final Message msg3 = new Message("t1", "c");
+        final Message msg4 = new Message("t2", "d");
+        final Message msg5 = new Message("t3", "e");
+        final MessageLog log = MessageLog.empty().append(msg1).append(msg2).append(msg3);
+        final MessageLog hidden = log.hiding(message -> message.type.equals("t1"), 1);
+        assertThat(hidden.size()).isEqualTo(2);
+        // Messages appended afterwards are kept, whatever their type
+        final MessageLog appended = hidden.append(msg4).append(msg5);
+        assertThat(appended.size()).isEqualTo(4);
+        final MessageLog hiddenAgain = appended.hiding(message -> !message.type.equals("t3"), 1);
+
+        assertThat(log).containsExactly(msg1, msg2, msg3);
+        assertThat(hidden).containsExactly(msg1, msg3);
+        assertThat(appended).containsExactly(msg1, msg3, msg4, msg5);
+        assertThat(hiddenAgain).containsExactly(msg1, msg3, msg4);
+        assertThat(hiddenAgain.sequenceAt(2)).isEqualTo(4);
+        assertThat(hiddenAgain.nextSequence()).isEqualTo(6);
+        assertThat(hiddenAgain.page(1, 10).messages).containsExactly(msg3, msg4);
+        assertThat(hidden.append(msg5)).containsExactly(msg1, msg3, msg5);
+        // Trimming skips over the hidden messages too
+        assertThat(appended.hiding(message -> !message.type.equals("t3"), 1).dropOldest(2)).containsExactly(msg4);
+        assertThat(appended.hiding(message -> !message.type.equals("t1"), 2).dropThrough(2)).containsExactly(msg4,
+                msg5);
+    }
+
+    @Test
+    public void hiddenMessagesAreLeftOutAtOnceWhenTheyOutnumberTheRest() {
+        final Message msg1 = new Message("t1", "a");
+        final MessageLog log = MessageLog.empty().append(msg1).append(new Message("t2", "b"))
+                .append(new Message("t2", "c"));
+        final MessageLog hidden = log.hiding(message -> message.type.equals("t1"), 2);
+        assertThat(hidden.size()).isEqualTo(1);
+        assertThat(hidden.dropOldest(1)).isEmpty();
+        assertThat(hidden).containsExactly(msg1);
+        try {
+            log.hiding(message -> true, 4);
+            throw new AssertionError("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("hide");
+        }
+    }
+
+    @Test
+    public void pageAfterTheLastPossibleCursorIsEmpty() {
+        final MessageLog log = MessageLog.empty().append(new Message("t1", "a"));
+        final MessagePage page = log.page(Long.MAX_VALUE, 10);
+        assertThat(page.messages).isEmpty();
+        assertThat(page.nextCursor).isEqualTo(Long.MAX_VALUE);
+        assertThat(log.page(0, Integer.MAX_VALUE).messages).hasSize(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLimitIsRejected() {
+        MessageLog.empty().page(0, -1);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void logCannotBeModifiedDirectly() {
+        MessageLog.empty().add(new Message("t1", "a"));
+    }
+
+    @Test
+    public void dropThroughRemovesBySequenceNumber() {
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        final Message msg3 = new Message("t1", "c");
+        final MessageLog log = MessageLog.empty().append(msg1).append(msg2).append(msg3);
+        assertThat(log.dropThrough(0)).containsExactly(msg1, msg2, msg3);
+        assertThat(log.dropThrough(2)).containsExactly(msg3);
+        // Sequence numbers are kept, so acknowledging again up to the same point is a no-op
+        assertThat(log.dropThrough(2).dropThrough(2)).containsExactly(msg3);
+        assertThat(log.dropThrough(2).nextSequence()).isEqualTo(4);
+        assertThat(log.dropThrough(100)).isEmpty();
+    }
+}
@@ -0,0 +1,100 @@
+package me.ccampo.subscriptionservice.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Chris Campo
+ */
+public class PayloadArenaTest {
+
+    private final PayloadArena arena = new PayloadArena(true, 64);
+
+    @Test
+    public void contentIsStoredOffHeapAcrossSlabs() {
+        final Payload first = arena.store("hello, w\u00f6rld \u2713");
+        final Payload second = arena.store("this one is too long to fit after the first message");
+        final Payload third = arena.store("");
+        assertThat(first.toString()).isEqualTo("hello, w\u00f6rld \u2713");
+        assertThat(second.toString()).isEqualTo("this one is too long to fit after the first message");
+        assertThat(third.toString()).isEmpty();
+        // Plus the handle
+        assertThat(first.retainedSize())
+                .isGreaterThan("hello, w\u00f6rld \u2713".getBytes(StandardCharsets.UTF_8).length);
+        assertThat(arena.getAllocatedBytes()).isGreaterThanOrEqualTo(128);
+    }
+
+    @Test
+    public void contentLargerThanASlabGetsItsOwn() {
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append(i);
+        }
+        assertThat(arena.store(content.toString()).toString()).isEqualTo(content.toString());
+    }
+
+    @Test
+    public void offHeapContentIsSerializedLikeHeapContent() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final String content = "quote \" backslash \\ newline \n \u00fcn\u00efc\u00f6d\u00e9";
+        final Payload offHeap = arena.store(content);
+        final Payload onHeap = Payload.of(content);
+        // To bytes, the UTF-8 is written as is; to a string, it has to be decoded first
+        assertThat(mapper.writeValueAsBytes(offHeap)).isEqualTo(mapper.writeValueAsBytes(onHeap));
+        assertThat(mapper.writeValueAsString(offHeap)).isEqualTo(mapper.writeValueAsString(onHeap));
+        assertThat(mapper.readValue(mapper.writeValueAsBytes(offHeap), String.class)).isEqualTo(content);
+    }
+
+    @Test
+    public void offHeapContentIsWrittenLikeHeapContent() throws Exception {
+        final ByteArrayOutputStream offHeap = new ByteArrayOutputStream();
+        final ByteArrayOutputStream onHeap = new ByteArrayOutputStream();
+        arena.store("\u00fcn\u00efc\u00f6d\u00e9").writeTo(new DataOutputStream(offHeap));
+        Payload.of("\u00fcn\u00efc\u00f6d\u00e9").writeTo(new DataOutputStream(onHeap));
+        assertThat(offHeap.toByteArray()).isEqualTo(onHeap.toByteArray());
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(offHeap.toByteArray()));
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        assertThat(new String(bytes, StandardCharsets.UTF_8)).isEqualTo("\u00fcn\u00efc\u00f6d\u00e9");
+    }
+
+    @Test
+    public void payloadsAreEqualByContent() {
+        assertThat(arena.store("a")).isEqualTo(Payload.of("a")).isNotEqualTo(arena.store("b"));
+        assertThat(arena.store("a").hashCode()).isEqualTo(Payload.of("a").hashCode());
+    }
+
+    @Test
+    public void unpairedSurrogatesAreKeptOnTheHeap() {
+        assertThat(arena.store("\ud800").toString()).isEqualTo("\ud800");
+    }
+
+    @Test
+    public void heapArenaKeepsContentAsIs() {
+        final Payload payload = PayloadArena.onHeap().store("abc");
+        assertThat(payload.toString()).isEqualTo("abc");
+        assertThat(payload.retainedSize()).isEqualTo(6);
+    }
+
+    @Test
+    public void slabsInUseAreCounted() {
+        final Payload first = arena.store("0123456789");
+        arena.store("abc");
+        // Both are in the same slab
+        assertThat(arena.getSlabBytes()).isEqualTo(64);
+        arena.store("this one is too long to fit after the first two messages");
+        assertThat(arena.getSlabBytes()).isEqualTo(128);
+        assertThat(arena.getFreeBytes()).isZero();
+        // Still readable by anyone holding on to it, however long after it was stored
+        assertThat(first.toString()).isEqualTo("0123456789");
+    }
+}
@@ -6,6 +6,9 @@ import org.junit.Test;
 
 import java.util.*;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
 /**
  * @author Chris Campo
  */
@@ -23,4 +26,125 @@ public class SubscriptionTest {
         @SuppressWarnings("unused")
         final Subscription subscription = new Subscription(id, name, types, messages);
     }
+
+    @Test
+    public void withMessageDropsOldestWhenFull() {
+        final Message msg1 = new Message("type1", "a");
+        final Message msg2 = new Message("type1", "b");
+        final Message msg3 = new Message("type1", "c");
+        final Subscription subscription = new Subscription("name", ImmutableSet.of("type1"), 2,
+                OverflowPolicy.DROP_OLDEST);
+        final Subscription result = subscription.withMessage(msg1).withMessage(msg2).withMessage(msg3);
+        assertThat(result.messages).containsExactly(msg2, msg3);
+        assertThat(result.overflowCount).isEqualTo(1);
+    }
+
+    @Test
+    public void withMessageDropsNewestWhenFull() {
+        final Message msg1 = new Message("type1", "a");
+        final Message msg2 = new Message("type1", "b");
+        final Subscription subscription = new Subscription("name", ImmutableSet.of("type1"), 1,
+                OverflowPolicy.DROP_NEWEST);
+        final Subscription result = subscription.withMessage(msg1).withMessage(msg2);
+        assertThat(result.messages).containsExactly(msg1);
+        assertThat(result.overflowCount).isEqualTo(1);
+    }
+
+    @Test
+    public void messageCountsAreKeptUpToDate() {
+        final Subscription subscription =
+                new Subscription("name", ImmutableSet.of("type1", "type2", "type3"), 2, OverflowPolicy.DROP_OLDEST);
+        assertThat(subscription.messageCountsByType)
+                .containsOnly(entry("type1", 0L), entry("type2", 0L), entry("type3", 0L));
+
+        final Subscription result = subscription
+                .withMessage(new Message("type1", "a"))
+                .withMessage(new Message("type2", "b"))
+                .withMessage(new Message("type2", "c"));
+        // The first message was dropped to make room for the last one
+        assertThat(result.messageCountsByType)
+                .containsOnly(entry("type1", 0L), entry("type2", 2L), entry("type3", 0L));
+    }
+
+    @Test
+    public void changingTypesOnlyFiltersMessagesWhenSomeAreDropped() {
+        final Message msg1 = new Message("type1", "a");
+        final Message msg2 = new Message("type2", "b");
+        final Message msg3 = new Message("type1", "c");
+        final Subscription subscription = new Subscription("name", ImmutableSet.of("type1", "type2", "type3"))
+                .withMessages(ImmutableList.of(msg1, msg2, msg3));
+
+        // Nothing of type3 was ever delivered, so the messages are shared as they are
+        final Subscription kept = subscription.withMessageTypes(ImmutableSet.of("type1", "type2", "type4"));
+        assertThat(kept.messages).isSameAs(subscription.messages);
+        assertThat(kept.messageCountsByType)
+                .containsOnly(entry("type1", 2L), entry("type2", 1L), entry("type4", 0L));
+
+        final Subscription emptied = subscription.withMessageTypes(ImmutableSet.of("type3"));
+        assertThat(emptied.messages).isEmpty();
+        assertThat(emptied.messages.nextSequence()).isEqualTo(4);
+        assertThat(emptied.messageCountsByType).containsOnly(entry("type3", 0L));
+
+        final Subscription filtered = subscription.withMessageTypes(ImmutableSet.of("type1"));
+        assertThat(filtered.messages).containsExactly(msg1, msg3);
+        // The kept messages keep their sequence numbers, so cursors handed out before the change still line up
+        assertThat(filtered.messages.sequenceAt(1)).isEqualTo(3);
+        assertThat(filtered.messages.nextSequence()).isEqualTo(4);
+        assertThat(filtered.messageCountsByType).containsOnly(entry("type1", 2L));
+        assertThat(filtered.supportsType(msg2)).isFalse();
+        assertThat(filtered.withName("other").messages).isSameAs(filtered.messages);
+    }
+
+    @Test
+    public void overflowPolicyIsParsedLeniently() {
+        assertThat(OverflowPolicy.parse("drop-oldest")).isEqualTo(OverflowPolicy.DROP_OLDEST);
+        assertThat(OverflowPolicy.parse("REJECT")).isEqualTo(OverflowPolicy.REJECT);
+    }
+
+    @Test
+    public void acknowledgedMessagesAreRemoved() {
+        final Message msg1 = new Message("type1", "a");
+        final Message msg2 = new Message("type2", "b");
+        final Message msg3 = new Message("type1", "c");
+        final Subscription subscription = new Subscription("name", ImmutableSet.of("type1", "type2"))
+                .withMessage(msg1)
+                .withMessage(msg2)
+                .withMessage(msg3);
+
+        final Subscription result = subscription.withAcknowledged(2);
+        assertThat(result.messages).containsExactly(msg3);
+        assertThat(result.messageCountsByType).containsOnly(entry("type1", 1L), entry("type2", 0L));
+        assertThat(result.withAcknowledged(2)).isSameAs(result);
+        assertThat(subscription.messages).containsExactly(msg1, msg2, msg3);
+    }
+
+    @Test
+    public void batchIsAppendedLikeSingleMessages() {
+        final Message msg1 = new Message("type1", "a");
+        final Message msg2 = new Message("type2", "b");
+        final Message msg3 = new Message("type1", "c");
+        final Message msg4 = new Message("type2", "d");
+        final Subscription subscription = new Subscription("name", ImmutableSet.of("type1", "type2"), 3,
+                OverflowPolicy.DROP_OLDEST).withMessage(msg1);
+
+        final Subscription result = subscription.withMessages(ImmutableList.of(msg2, msg3, msg4));
+        final Subscription expected = subscription.withMessage(msg2).withMessage(msg3).withMessage(msg4);
+        assertThat(result.messages).containsExactly(msg2, msg3, msg4).containsExactlyElementsOf(expected.messages);
+        assertThat(result.messageCountsByType).isEqualTo(expected.messageCountsByType);
+        assertThat(result.overflowCount).isEqualTo(1);
+        assertThat(result.messages.nextSequence()).isEqualTo(5);
+    }
+
+    @Test
+    public void batchBeyondCapacityIsRejected() {
+        final Subscription subscription =
+                new Subscription("name", ImmutableSet.of("type1"), 2, OverflowPolicy.REJECT);
+        final Message msg1 = new Message("type1", "a");
+        final Message msg2 = new Message("type1", "b");
+        final Subscription result =
+                subscription.withMessages(ImmutableList.of(msg1, msg2, new Message("type1", "c")));
+        assertThat(result.messages).containsExactly(msg1, msg2);
+        assertThat(result.overflowCount).isEqualTo(1);
+        assertThat(result.messageCountsByType).containsOnly(entry("type1", 2L));
+    }
 }
@@ -0,0 +1,53 @@
+package me.ccampo.subscriptionservice.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Chris Campo
+ */
+public class TypePatternTest {
+
+    @Test
+    public void onlyWholeWildcardSegmentsMakeAPattern() {
+        assertThat(TypePattern.isPattern("orders.*")).isTrue();
+        assertThat(TypePattern.isPattern("#")).isTrue();
+        assertThat(TypePattern.isPattern("orders.#.created")).isTrue();
+        assertThat(TypePattern.isPattern("orders")).isFalse();
+        assertThat(TypePattern.isPattern("ord*.created")).isFalse();
+    }
+
+    @Test
+    public void starMatchesExactlyOneSegment() {
+        final TypePattern pattern = TypePattern.compile("orders.*");
+        assertThat(pattern.matches("orders.created")).isTrue();
+        assertThat(pattern.matches("orders.")).isTrue();
+        assertThat(pattern.matches("orders")).isFalse();
+        assertThat(pattern.matches("orders.eu.created")).isFalse();
+        assertThat(pattern.matches("payments.created")).isFalse();
+        assertThat(TypePattern.compile("*.created").matches("orders.created")).isTrue();
+    }
+
+    @Test
+    public void hashMatchesAnyNumberOfSegments() {
+        final TypePattern pattern = TypePattern.compile("orders.#");
+        assertThat(pattern.matches("orders")).isTrue();
+        assertThat(pattern.matches("orders.created")).isTrue();
+        assertThat(pattern.matches("orders.eu.created")).isTrue();
+        assertThat(pattern.matches("ordersx.created")).isFalse();
+
+        final TypePattern middle = TypePattern.compile("orders.#.created");
+        assertThat(middle.matches("orders.created")).isTrue();
+        assertThat(middle.matches("orders.eu.de.created")).isTrue();
+        assertThat(middle.matches("orders.eu.deleted")).isFalse();
+        assertThat(TypePattern.compile("#").matches("anything.at.all")).isTrue();
+    }
+
+    @Test
+    public void plainSegmentsMatchExactly() {
+        assertThat(TypePattern.compile("orders.*.created").matches("orders.eu.created")).isTrue();
+        assertThat(TypePattern.compile("orders.*.created").matches("orders.eu.createdx")).isFalse();
+        assertThat(TypePattern.compile("orders.*.created").matches("orders.eu.create")).isFalse();
+    }
+}
@@ -0,0 +1,102 @@
+package me.ccampo.subscriptionservice.model;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Chris Campo
+ */
+public class TypeSetTest {
+
+    private final MessageTypes registry = new MessageTypes();
+
+    @Test
+    public void containsOnlyTheGivenTypes() {
+        final TypeSet set = TypeSet.of(ImmutableSet.of("a", "b"), registry);
+        assertThat(set.contains(registry.find("a"))).isTrue();
+        assertThat(set.contains(registry.find("b"))).isTrue();
+        assertThat(set.contains(registry.register("c"))).isFalse();
+        assertThat(set.contains(MessageTypes.UNKNOWN)).isFalse();
+        assertThat(TypeSet.of(ImmutableSet.of(), registry).contains(registry.find("a"))).isFalse();
+    }
+
+    @Test
+    public void typesBeyondTheFirstWordAreContained() {
+        final List<String> types = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            types.add("many-" + i);
+        }
+        final TypeSet set = TypeSet.of(types, registry);
+        types.forEach(type -> assertThat(set.contains(registry.find(type))).isTrue());
+        assertThat(set.contains(registry.register("many-200"))).isFalse();
+    }
+
+    @Test
+    public void typesAreOnlyRegisteredBySubscriptionsBoundToTheRegistry() {
+        final Message message = new Message("late", "a");
+        final Subscription subscription = new Subscription("foo", ImmutableSet.of("late"));
+        assertThat(message.typeId(registry)).isEqualTo(MessageTypes.UNKNOWN);
+        // Unbound, it still matches by name
+        assertThat(subscription.supportsType(message)).isTrue();
+
+        final Subscription bound = subscription.boundTo(registry);
+        assertThat(bound.boundTo(registry)).isSameAs(bound);
+        assertThat(message.typeId(registry)).isEqualTo(registry.find("late"));
+        assertThat(bound.supportsType(message)).isTrue();
+        assertThat(bound.supportsType(new Message("other", "a"))).isFalse();
+        assertThat(new MessageTypes().find("late")).isEqualTo(MessageTypes.UNKNOWN);
+
+        bound.releaseMessageTypes(null);
+        assertThat(registry.find("late")).isEqualTo(MessageTypes.UNKNOWN);
+    }
+
+    @Test
+    public void typesFarAboveTheRestAreContained() {
+        final List<TypeSet> others = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            others.add(TypeSet.of(ImmutableSet.of("filler-" + i), registry));
+        }
+        final TypeSet set = TypeSet.of(ImmutableSet.of("sparse-a", "sparse-b"), registry);
+        assertThat(set.contains(registry.find("sparse-a"))).isTrue();
+        assertThat(set.contains(registry.find("sparse-b"))).isTrue();
+        assertThat(set.contains(registry.find("filler-0"))).isFalse();
+        assertThat(set.contains(registry.find("filler-299"))).isFalse();
+        assertThat(set.contains(MessageTypes.UNKNOWN)).isFalse();
+    }
+
+    @Test
+    public void releasedTypesAreForgottenAndTheirIdsReused() {
+        final TypeSet first = TypeSet.of(ImmutableSet.of("released"), registry);
+        final TypeSet second = TypeSet.of(ImmutableSet.of("released"), registry);
+        final Message message = new Message("released", "a");
+        final int id = message.typeId(registry);
+        first.release();
+        // Only the first time
+        first.release();
+        assertThat(registry.find("released")).isEqualTo(id);
+
+        second.release();
+        assertThat(registry.find("released")).isEqualTo(MessageTypes.UNKNOWN);
+        assertThat(message.typeId(registry)).isEqualTo(MessageTypes.UNKNOWN);
+        final TypeSet reused = TypeSet.of(ImmutableSet.of("reused"), registry);
+        assertThat(registry.find("reused")).isEqualTo(id);
+        assertThat(message.typeId(registry)).isEqualTo(MessageTypes.UNKNOWN);
+        assertThat(reused.contains(message.typeId(registry))).isFalse();
+    }
+
+    @Test
+    public void unregisteredTypesCannotBeReleased() {
+        try {
+            registry.release(registry.register("once"));
+            registry.release(registry.find("once"));
+            throw new AssertionError("Expected IllegalStateException");
+        } catch (final IllegalStateException e) {
+            assertThat(e.getMessage()).contains("not registered");
+        }
+    }
+}
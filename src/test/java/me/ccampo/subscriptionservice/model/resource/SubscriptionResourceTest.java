@@ -65,4 +65,28 @@ public class SubscriptionResourceTest {
         assertThat(res1.messageCountsByType).containsOnly(entry("type1", 3L), entry("type2", 2L), entry("type3", 1L));
         assertThat(res2.messageCountsByType).containsOnly(entry("type4", 1L));
     }
+
+    @Test
+    public void fromSubscriptionWithPage() {
+        final Message msg1 = new Message("type1", "a");
+        final Message msg2 = new Message("type1", "b");
+        final Subscription subscription =
+                new Subscription(UUID.randomUUID(), "foo", ImmutableSet.of("type1"), ImmutableList.of(msg1, msg2));
+        final SubscriptionResource resource = SubscriptionResource.fromSubscription(subscription, 1, 10);
+
+        assertThat(resource.messages).containsExactly(msg2);
+        assertThat(resource.nextCursor).isEqualTo(2);
+        assertThat(resource.messageCountsByType).containsOnly(entry("type1", 2L));
+    }
+
+    @Test
+    public void metadataOf() {
+        final Subscription subscription = new Subscription(UUID.randomUUID(), "foo", ImmutableSet.of("type1"),
+                ImmutableList.of(new Message("type1", "a")));
+        final SubscriptionResource resource = SubscriptionResource.metadataOf(subscription);
+
+        assertThat(resource.messages).isNull();
+        assertThat(resource.nextCursor).isEqualTo(1);
+        assertThat(resource.messageCountsByType).containsOnly(entry("type1", 1L));
+    }
 }
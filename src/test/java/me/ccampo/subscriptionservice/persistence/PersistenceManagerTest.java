@@ -0,0 +1,259 @@
+package me.ccampo.subscriptionservice.persistence;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Uninterruptibles;
+import me.ccampo.subscriptionservice.exception.SubscriptionNotFoundException;
+import me.ccampo.subscriptionservice.metrics.HotPathLog;
+import me.ccampo.subscriptionservice.metrics.MetricsRegistry;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.OverflowPolicy;
+import me.ccampo.subscriptionservice.model.PayloadArena;
+import me.ccampo.subscriptionservice.model.Subscription;
+import me.ccampo.subscriptionservice.model.resource.MessageRequest;
+import me.ccampo.subscriptionservice.model.resource.SubscriptionRequest;
+import me.ccampo.subscriptionservice.model.resource.SubscriptionUpdateRequest;
+import me.ccampo.subscriptionservice.service.MessageDispatcher;
+import me.ccampo.subscriptionservice.service.MessageService;
+import me.ccampo.subscriptionservice.service.SubscriptionService;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Chris Campo
+ */
+public class PersistenceManagerTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Journal journal;
+    private SubscriptionService subscriptionService;
+    private MessageService messageService;
+    private PayloadArena payloads;
+    private PersistenceManager persistenceManager;
+
+    private void start() throws Exception {
+        // Small segments, so that the journal rolls over a few times
+        journal = new Journal(true, folder.getRoot().getPath(), 4096);
+        final MetricsRegistry metrics = new MetricsRegistry();
+        subscriptionService = new SubscriptionService(100, OverflowPolicy.DROP_OLDEST, journal, metrics,
+                HotPathLog.disabled(), 4, 1);
+        payloads = new PayloadArena(true, 4096);
+        messageService = new MessageService(new MessageDispatcher(subscriptionService), journal, metrics, payloads,
+                1000, 0, 0, "time-ordered");
+        persistenceManager = new PersistenceManager(journal, subscriptionService, messageService, payloads, 0);
+        persistenceManager.start();
+    }
+
+    private void restart() throws Exception {
+        journal.close();
+        subscriptionService.stop();
+        start();
+    }
+
+    @Test
+    public void stateIsRecoveredFromTheJournal() throws Exception {
+        start();
+        final Subscription sub = subscriptionService.createSubscription("foo", ImmutableSet.of("t1", "t2"));
+        for (int i = 0; i < 100; i++) {
+            messageService.createMessage(i % 2 == 0 ? "t1" : "t2", "message " + i);
+        }
+        subscriptionService.updateSubscriptionById(sub.id, Optional.of("bar"), Optional.of(ImmutableSet.of("t1")));
+        subscriptionService.acknowledgeMessages(sub.id, 10);
+        final Subscription expected = subscriptionService.getSubscriptionById(sub.id);
+
+        restart();
+
+        final Subscription result = subscriptionService.getSubscriptionById(sub.id);
+        assertThat(result.name).isEqualTo("bar");
+        assertThat(result.messageTypes).containsOnly("t1");
+        assertThat(result.messages).usingFieldByFieldElementComparator().containsExactlyElementsOf(expected.messages);
+        assertThat(result.messages.nextSequence()).isEqualTo(expected.messages.nextSequence());
+        assertThat(messageService.getMessages()).hasSize(100);
+    }
+
+    @Test
+    public void stateIsRecoveredFromASnapshotAndTheJournalAfterIt() throws Exception {
+        start();
+        final Subscription sub = subscriptionService.createSubscription("foo", ImmutableSet.of("t1"));
+        messageService.createMessage("t1", "a");
+        persistenceManager.snapshot();
+        messageService.createMessage("t1", "b");
+
+        restart();
+
+        assertThat(subscriptionService.getSubscriptionById(sub.id).messages)
+                .extracting(message -> message.content.toString()).containsExactly("a", "b");
+        assertThat(messageService.getMessages())
+                .extracting(message -> message.content.toString()).containsExactly("a", "b");
+    }
+
+    @Test
+    public void messagesInASnapshotAreSharedAndKeptOffHeap() throws Exception {
+        start();
+        final Subscription first = subscriptionService.createSubscription("foo", ImmutableSet.of("t1"));
+        final Subscription second = subscriptionService.createSubscription("bar", ImmutableSet.of("t1"));
+        messageService.createMessage("t1", "a");
+        persistenceManager.snapshot();
+
+        restart();
+
+        final Message message = subscriptionService.getSubscriptionById(first.id).messages.get(0);
+        assertThat(message.content.toString()).isEqualTo("a");
+        assertThat(subscriptionService.getSubscriptionById(second.id).messages.get(0)).isSameAs(message);
+        assertThat(messageService.getMessages()).containsExactly(message);
+        assertThat(payloads.getAllocatedBytes()).isPositive();
+    }
+
+    @Test
+    public void eventsAfterARestartAreKept() throws Exception {
+        start();
+        final Subscription sub = subscriptionService.createSubscription("foo", ImmutableSet.of("t1"));
+        messageService.createMessage("t1", "a");
+        restart();
+        messageService.createMessage("t1", "b");
+        restart();
+
+        assertThat(subscriptionService.getSubscriptionById(sub.id).messages)
+                .extracting(message -> message.content.toString()).containsExactly("a", "b");
+    }
+
+    @Test
+    public void batchesAreRecoveredFromTheJournal() throws Exception {
+        start();
+        final ImmutableList<Subscription> subs = subscriptionService.createSubscriptions(ImmutableList.of(
+                new SubscriptionRequest("foo", ImmutableList.of("t1"), null, null),
+                new SubscriptionRequest("bar", ImmutableList.of("t1"), null, null)));
+        subscriptionService.updateSubscriptions(ImmutableList.of(
+                new SubscriptionUpdateRequest(subs.get(1).id, "baz", ImmutableList.of("t1", "t2"))));
+        messageService.createMessages(ImmutableList.of(new MessageRequest("t1", "a"), new MessageRequest("t2", "b")));
+
+        restart();
+
+        assertThat(subscriptionService.getSubscriptionById(subs.get(0).id).messages)
+                .extracting(message -> message.content.toString()).containsExactly("a");
+        final Subscription updated = subscriptionService.getSubscriptionById(subs.get(1).id);
+        assertThat(updated.name).isEqualTo("baz");
+        assertThat(updated.messages).extracting(message -> message.content.toString()).containsExactly("a", "b");
+    }
+
+    @Test
+    public void deletedSubscriptionsStayDeleted() throws Exception {
+        start();
+        final Subscription deleted = subscriptionService.createSubscription("foo", ImmutableSet.of("t1"));
+        final Subscription kept = subscriptionService.createSubscription("bar", ImmutableSet.of("t1"));
+        subscriptionService.deleteSubscriptionById(deleted.id);
+        messageService.createMessage("t1", "a");
+
+        restart();
+
+        assertThat(subscriptionService.subscriptionExists(deleted.id)).isFalse();
+        assertThat(subscriptionService.getSubscriptionById(kept.id).messages)
+                .extracting(message -> message.content.toString()).containsExactly("a");
+    }
+
+    @Test
+    public void changesAreLoggedInTheOrderTheyAreApplied() throws Exception {
+        start();
+        final Subscription sub = subscriptionService.createSubscription("foo", ImmutableSet.of("t1"));
+        final CountDownLatch applying = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread slow = new Thread(() -> journal.record(JournalEvent.messagesAcknowledged(sub.id, 0), () -> {
+            applying.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+            return sub;
+        }));
+        slow.start();
+        assertThat(applying.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // Can't be applied until the slow change has been applied and logged before it
+        final CompletableFuture<Subscription> other = CompletableFuture.supplyAsync(
+                () -> subscriptionService.createSubscription("bar", ImmutableSet.of("t1")));
+        try {
+            other.get(200, TimeUnit.MILLISECONDS);
+            throw new AssertionError("Expected TimeoutException");
+        } catch (final TimeoutException e) {
+            assertThat(other.isDone()).isFalse();
+        }
+
+        release.countDown();
+        slow.join();
+        assertThat(other.get(5, TimeUnit.SECONDS).name).isEqualTo("bar");
+    }
+
+    @Test
+    public void concurrentChangesAreReplayedToTheSameState() throws Exception {
+        start();
+        final List<UUID> ids = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ids.add(subscriptionService.createSubscription("sub-" + i, ImmutableSet.of("t1", "t2")).id);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<?>> writers = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            final int seed = thread;
+            writers.add(executor.submit(() -> {
+                final Random random = new Random(seed);
+                for (int i = 0; i < 200; i++) {
+                    final UUID id = ids.get(random.nextInt(ids.size()));
+                    try {
+                        switch (random.nextInt(6)) {
+                            case 0:
+                                ids.add(subscriptionService.createSubscription("new", ImmutableSet.of("t1")).id);
+                                break;
+                            case 1:
+                                subscriptionService.updateSubscriptionById(id, Optional.of("updated-" + i),
+                                        Optional.of(random.nextBoolean() ? ImmutableSet.of("t1") : ImmutableSet.of(
+                                                "t1", "t2")));
+                                break;
+                            case 2:
+                                subscriptionService.deleteSubscriptionById(id);
+                                break;
+                            default:
+                                messageService.createMessage(random.nextBoolean() ? "t1" : "t2", "message " + i);
+                        }
+                    } catch (final SubscriptionNotFoundException e) {
+                        // Deleted by another thread; never logged
+                    }
+                }
+            }));
+        }
+        for (final Future<?> writer : writers) {
+            writer.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        final ImmutableList<Subscription> expected = subscriptionService.getSubscriptions();
+
+        restart();
+
+        assertThat(subscriptionService.getSubscriptions()).hasSameSizeAs(expected);
+        for (final Subscription subscription : expected) {
+            final Subscription result = subscriptionService.getSubscriptionById(subscription.id);
+            assertThat(result.name).isEqualTo(subscription.name);
+            assertThat(result.messageTypes).isEqualTo(subscription.messageTypes);
+            assertThat(result.messages).extracting(message -> message.id)
+                    .containsExactlyElementsOf(subscription.messages.stream().map(message -> message.id)
+                            .collect(toList()));
+            assertThat(result.messages.nextSequence()).isEqualTo(subscription.messages.nextSequence());
+        }
+    }
+}
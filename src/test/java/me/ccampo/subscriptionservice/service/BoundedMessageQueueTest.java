@@ -0,0 +1,97 @@
+package me.ccampo.subscriptionservice.service;
+
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.MessagePage;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Chris Campo
+ */
+public class BoundedMessageQueueTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void oldestMessagesAreEvictedByCount() {
+        final BoundedMessageQueue queue = new BoundedMessageQueue(3, 0, 0, now::get);
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        final Message msg3 = new Message("t1", "c");
+        final Message msg4 = new Message("t1", "d");
+        queue.offer(msg1);
+        queue.offer(msg2);
+        queue.offer(msg3);
+        queue.offer(msg4);
+        assertThat(queue.toArray(new Message[0])).containsExactly(msg2, msg3, msg4);
+        assertThat(queue.getEvictedByCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void orderIsKeptWhileTheBufferWrapsAndGrows() {
+        final BoundedMessageQueue queue = new BoundedMessageQueue(1000, 0, 0, now::get);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(new Message("t1", String.valueOf(i)));
+        }
+        for (int i = 0; i < 5; i++) {
+            queue.poll();
+        }
+        for (int i = 10; i < 100; i++) {
+            queue.offer(new Message("t1", String.valueOf(i)));
+        }
+        final Message[] result = queue.toArray(new Message[0]);
+        assertThat(result).hasSize(95);
+        for (int i = 0; i < result.length; i++) {
+            assertThat(result[i].content.toString()).isEqualTo(String.valueOf(i + 5));
+        }
+    }
+
+    @Test
+    public void oldestMessagesAreEvictedByBytes() {
+        final Message msg1 = new Message("t1", "a");
+        final long maxBytes = 2 * BoundedMessageQueue.sizeOf(msg1);
+        final BoundedMessageQueue queue = new BoundedMessageQueue(100, maxBytes, 0, now::get);
+        final Message msg2 = new Message("t1", "b");
+        final Message msg3 = new Message("t1", "c");
+        queue.offer(msg1);
+        queue.offer(msg2);
+        queue.offer(msg3);
+        assertThat(queue).containsExactly(msg2, msg3);
+        assertThat(queue.getBytes()).isEqualTo(maxBytes);
+        assertThat(queue.getEvictedByBytes()).isEqualTo(1);
+    }
+
+    @Test
+    public void pagesFollowSequenceNumbersAcrossEvictions() {
+        final BoundedMessageQueue queue = new BoundedMessageQueue(2, 0, 0, now::get);
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        final Message msg3 = new Message("t1", "c");
+        queue.offer(msg1);
+        queue.offer(msg2);
+        queue.offer(msg3);
+
+        final MessagePage first = queue.page(0, 1);
+        assertThat(first.messages).containsExactly(msg2);
+        assertThat(first.nextCursor).isEqualTo(2);
+        assertThat(queue.page(first.nextCursor, 10).messages).containsExactly(msg3);
+        assertThat(queue.page(first.nextCursor, 10).sequenceAt(0)).isEqualTo(3);
+        assertThat(queue.page(Long.MAX_VALUE, 10).messages).isEmpty();
+    }
+
+    @Test
+    public void expiredMessagesAreEvictedByAge() {
+        final BoundedMessageQueue queue = new BoundedMessageQueue(100, 0, 1000, now::get);
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        queue.offer(msg1);
+        now.set(500);
+        queue.offer(msg2);
+        now.set(1200);
+        assertThat(queue.toArray(new Message[0])).containsExactly(msg2);
+        assertThat(queue.getEvictedByAge()).isEqualTo(1);
+    }
+}
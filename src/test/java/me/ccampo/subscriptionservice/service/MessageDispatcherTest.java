@@ -0,0 +1,138 @@
+package me.ccampo.subscriptionservice.service;
+
+import com.google.common.collect.ImmutableList;
+import me.ccampo.subscriptionservice.exception.BatchTooLargeException;
+import me.ccampo.subscriptionservice.exception.MailboxFullException;
+import me.ccampo.subscriptionservice.exception.MessageQueueFullException;
+import me.ccampo.subscriptionservice.model.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * @author Chris Campo
+ */
+public class MessageDispatcherTest {
+
+    private MessageDispatcher dispatcher;
+
+    @Mock
+    private SubscriptionService subscriptionService;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void synchronousDispatchDeliversImmediately() {
+        dispatcher = new MessageDispatcher(subscriptionService);
+        final Message message = new Message("t1", "a");
+        dispatcher.dispatch(message);
+        verify(subscriptionService).sendMessageToSupportingSubscriptions(message);
+        assertThat(dispatcher.isAsync()).isFalse();
+        assertThat(dispatcher.getQueueDepth()).isZero();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void asyncDispatchDeliversInBackground() throws InterruptedException {
+        dispatcher = new MessageDispatcher(subscriptionService, true, 16, 2, 4);
+        dispatcher.start();
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t2", "b");
+        final BlockingQueue<Message> delivered = new LinkedBlockingQueue<>();
+        // The dispatcher reuses its batch list, so copy the messages out while it's still being delivered
+        doAnswer(invocation -> delivered.addAll((List<Message>) invocation.getArguments()[0]))
+                .when(subscriptionService).sendMessagesToSupportingSubscriptions(anyListOf(Message.class));
+        dispatcher.dispatch(msg1);
+        dispatcher.dispatch(msg2);
+        assertThat(Arrays.asList(delivered.poll(5, TimeUnit.SECONDS), delivered.poll(5, TimeUnit.SECONDS)))
+                .containsOnly(msg1, msg2);
+        verify(subscriptionService, never()).sendMessageToSupportingSubscriptions(any(Message.class));
+    }
+
+    @Test
+    public void asyncDeliveriesRejectedByFullMailboxesAreCounted() throws InterruptedException {
+        dispatcher = new MessageDispatcher(subscriptionService, true, 16, 1, 4);
+        dispatcher.start();
+        doThrow(new MailboxFullException("full", ImmutableList.of(UUID.randomUUID(), UUID.randomUUID())))
+                .when(subscriptionService).sendMessagesToSupportingSubscriptions(anyListOf(Message.class));
+        dispatcher.dispatch(new Message("t1", "a"));
+        verify(subscriptionService, timeout(5000)).sendMessagesToSupportingSubscriptions(anyListOf(Message.class));
+        // Counted just after the delivery returns
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getRejectedDeliveries() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(dispatcher.getRejectedDeliveries()).isEqualTo(2);
+    }
+
+    @Test
+    public void asyncDispatchRejectsWhenQueueIsFull() {
+        // Not started, so nothing drains the queue
+        dispatcher = new MessageDispatcher(subscriptionService, true, 2, 1, 1);
+        dispatcher.dispatch(new Message("t1", "a"));
+        dispatcher.dispatch(new Message("t1", "b"));
+        assertThat(dispatcher.getQueueDepth()).isEqualTo(2);
+        assertThat(dispatcher.getQueueCapacity()).isEqualTo(2);
+        try {
+            dispatcher.dispatch(new Message("t1", "c"));
+            throw new AssertionError("Expected MessageQueueFullException");
+        } catch (final MessageQueueFullException e) {
+            verifyZeroInteractions(subscriptionService);
+        }
+    }
+
+    @Test
+    public void asyncBatchIsEnqueuedWhollyOrNotAtAll() {
+        // Not started, so nothing drains the queue
+        dispatcher = new MessageDispatcher(subscriptionService, true, 3, 1, 1);
+        dispatcher.dispatchAll(ImmutableList.of(new Message("t1", "a"), new Message("t1", "b")));
+        assertThat(dispatcher.getQueueDepth()).isEqualTo(2);
+        try {
+            dispatcher.dispatchAll(ImmutableList.of(new Message("t1", "c"), new Message("t1", "d")));
+            throw new AssertionError("Expected MessageQueueFullException");
+        } catch (final MessageQueueFullException e) {
+            assertThat(dispatcher.getQueueDepth()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void asyncBatchLargerThanTheQueueIsNeverEnqueued() {
+        dispatcher = new MessageDispatcher(subscriptionService, true, 2, 1, 1);
+        try {
+            dispatcher.dispatchAll(ImmutableList.of(new Message("t1", "a"), new Message("t1", "b"),
+                    new Message("t1", "c")));
+            throw new AssertionError("Expected BatchTooLargeException");
+        } catch (final BatchTooLargeException e) {
+            assertThat(dispatcher.getQueueDepth()).isEqualTo(0);
+        }
+    }
+}
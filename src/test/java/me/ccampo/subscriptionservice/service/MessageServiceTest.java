@@ -1,16 +1,19 @@
 package me.ccampo.subscriptionservice.service;
 
 import com.google.common.collect.ImmutableList;
+import me.ccampo.subscriptionservice.exception.MailboxFullException;
 import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.resource.MessageRequest;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.verify;
 
 /**
@@ -20,7 +23,7 @@ public class MessageServiceTest {
 
     private MessageService service;
 
-    private Queue<Message> queue;
+    private BoundedMessageQueue queue;
 
     @Mock
     private SubscriptionService subscriptionService;
@@ -28,7 +31,7 @@ public class MessageServiceTest {
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
-        queue = new LinkedList<>();
+        queue = new BoundedMessageQueue(100, 0, 0);
         service = new MessageService(queue, subscriptionService);
     }
 
@@ -36,10 +39,10 @@ public class MessageServiceTest {
     public void createMessage() {
         final String type = "t1";
         final String content = "a";
-        final Message result = service.createMessage(type, content);
+        final Message result = service.createMessage(type, content).published;
         assertThat(result.id).isNotNull();
         assertThat(result.type).isEqualTo(type);
-        assertThat(result.content).isEqualTo(content);
+        assertThat(result.content.toString()).isEqualTo(content);
         verify(subscriptionService).sendMessageToSupportingSubscriptions(result);
     }
 
@@ -52,4 +55,24 @@ public class MessageServiceTest {
         final ImmutableList<Message> result = service.getMessages();
         assertThat(result).containsExactlyElementsOf(ImmutableList.copyOf(queue.toArray(new Message[0])));
     }
+
+    @Test
+    public void createMessages() {
+        final ImmutableList<Message> result = service.createMessages(
+                ImmutableList.of(new MessageRequest("t1", "a"), new MessageRequest("t2", "b"))).published;
+        assertThat(result).extracting("type").containsExactly("t1", "t2");
+        assertThat(result).extracting(message -> message.content.toString()).containsExactly("a", "b");
+        assertThat(service.getMessages()).containsExactlyElementsOf(result);
+        verify(subscriptionService).sendMessagesToSupportingSubscriptions(result);
+    }
+
+    @Test
+    public void rejectedMessagesAreStillPublished() {
+        final UUID full = UUID.randomUUID();
+        doThrow(new MailboxFullException("rejected", ImmutableList.of(full)))
+                .when(subscriptionService).sendMessageToSupportingSubscriptions(any(Message.class));
+        final PublishResult<Message> result = service.createMessage("t1", "a");
+        assertThat(result.rejectedIds).containsExactly(full);
+        assertThat(service.getMessages()).containsExactly(result.published);
+    }
 }
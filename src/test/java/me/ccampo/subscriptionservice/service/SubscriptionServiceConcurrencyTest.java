@@ -0,0 +1,106 @@
+package me.ccampo.subscriptionservice.service;
+
+import com.google.common.collect.ImmutableSet;
+import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.Subscription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Stress tests for concurrent delivery to, and updates of, the same subscriptions.
+ *
+ * @author Chris Campo
+ */
+public class SubscriptionServiceConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int MESSAGES_PER_THREAD = 2_000;
+
+    private SubscriptionService service;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        service = new SubscriptionService();
+        executor = Executors.newFixedThreadPool(THREADS + 1);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void noMessagesAreLostUnderConcurrentPublishes() throws Exception {
+        final Subscription sub1 = service.createSubscription("foo", ImmutableSet.of("t1"));
+        final Subscription sub2 = service.createSubscription("bar", ImmutableSet.of("t1", "t2"));
+
+        runConcurrently(publishers(i -> new Message(i % 2 == 0 ? "t1" : "t2", String.valueOf(i))));
+
+        final int total = THREADS * MESSAGES_PER_THREAD;
+        assertThat(service.getSubscriptionById(sub1.id).messages).hasSize(total / 2);
+        assertThat(service.getSubscriptionById(sub2.id).messages).hasSize(total);
+    }
+
+    @Test
+    public void noMessagesAreLostWhenUpdatingDuringPublishes() throws Exception {
+        final Subscription sub = service.createSubscription("foo", ImmutableSet.of("t1"));
+
+        final List<Callable<Void>> tasks = publishers(i -> new Message("t1", String.valueOf(i)));
+        tasks.add(() -> {
+            for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                service.updateSubscriptionById(sub.id, Optional.of("name" + i), Optional.empty());
+            }
+            return null;
+        });
+        runConcurrently(tasks);
+
+        final Subscription result = service.getSubscriptionById(sub.id);
+        assertThat(result.name).isEqualTo("name" + (MESSAGES_PER_THREAD - 1));
+        assertThat(result.messages).hasSize(THREADS * MESSAGES_PER_THREAD);
+    }
+
+    private List<Callable<Void>> publishers(final IntFunction<Message> factory) {
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            tasks.add(() -> {
+                for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                    service.sendMessageToSupportingSubscriptions(factory.apply(i));
+                }
+                return null;
+            });
+        }
+        return tasks;
+    }
+
+    private void runConcurrently(final List<Callable<Void>> tasks) throws Exception {
+        // Hold every task at the gate until all of them are ready, to maximize contention
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (final Callable<Void> task : tasks) {
+            futures.add(executor.submit(() -> {
+                gate.await();
+                return task.call();
+            }));
+        }
+        gate.countDown();
+        for (final Future<Void> future : futures) {
+            future.get(1, TimeUnit.MINUTES);
+        }
+    }
+}
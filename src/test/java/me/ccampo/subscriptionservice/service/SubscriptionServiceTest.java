@@ -2,16 +2,29 @@ package me.ccampo.subscriptionservice.service;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import me.ccampo.subscriptionservice.exception.MailboxFullException;
 import me.ccampo.subscriptionservice.exception.SubscriptionNotFoundException;
 import me.ccampo.subscriptionservice.model.Message;
+import me.ccampo.subscriptionservice.model.MessageLog;
+import me.ccampo.subscriptionservice.model.MessageTypes;
+import me.ccampo.subscriptionservice.model.OverflowPolicy;
 import me.ccampo.subscriptionservice.model.Subscription;
+import me.ccampo.subscriptionservice.model.resource.SubscriptionRequest;
+import me.ccampo.subscriptionservice.model.resource.SubscriptionUpdateRequest;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
 
 import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
 
@@ -87,9 +100,11 @@ public class SubscriptionServiceTest {
         final Message msg1 = new Message("t1", "a");
         final Message msg2 = new Message("t2", "b");
         final ImmutableList<Message> messages = ImmutableList.of(msg1, msg2);
-        final ImmutableSet<String> types = ImmutableSet.of("t1");
-        final ImmutableList<Message> result = SubscriptionService.filterMessages(messages, types);
+        final Subscription subscription = new Subscription(UUID.randomUUID(), "foo", ImmutableSet.of("t1", "t2"),
+                messages);
+        final MessageLog result = subscription.withMessageTypes(ImmutableSet.of("t1")).messages;
         assertThat(result).containsOnly(msg1);
+        assertThat(result.sequenceAt(0)).isEqualTo(1);
     }
 
     @Test
@@ -178,6 +193,62 @@ public class SubscriptionServiceTest {
         assertThat(res3.messages).isEmpty();
     }
 
+    @Test
+    public void messageIsSentToExistingSubscriptions() {
+        final UUID id = UUID.randomUUID();
+        final Subscription subscription = new Subscription(id, "foo", ImmutableSet.of("t1"), ImmutableList.of());
+        subscriptions.put(id, subscription);
+        service = new SubscriptionService(subscriptions);
+
+        final Message msg = new Message("t1", "a");
+        service.sendMessageToSupportingSubscriptions(msg);
+
+        assertThat(subscriptions.get(id).messages).containsOnly(msg);
+    }
+
+    @Test
+    public void messageIsSentAccordingToUpdatedMessageTypes() {
+        final Subscription sub = service.createSubscription("foo", ImmutableSet.of("t1", "t2"));
+        service.updateSubscriptionById(sub.id, Optional.empty(), Optional.of(ImmutableSet.of("t2", "t3")));
+
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t2", "b");
+        final Message msg3 = new Message("t3", "c");
+
+        service.sendMessageToSupportingSubscriptions(msg1);
+        service.sendMessageToSupportingSubscriptions(msg2);
+        service.sendMessageToSupportingSubscriptions(msg3);
+
+        assertThat(subscriptions.get(sub.id).messages).containsExactly(msg2, msg3);
+    }
+
+    @Test
+    public void fullSubscriptionRejectsMessageButOthersStillReceiveIt() {
+        final Subscription sub1 = service.createSubscription("foo", ImmutableSet.of("t1"), Optional.of(1),
+                Optional.of(OverflowPolicy.REJECT));
+        final Subscription sub2 = service.createSubscription("bar", ImmutableSet.of("t1"));
+
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        service.sendMessageToSupportingSubscriptions(msg1);
+        try {
+            service.sendMessageToSupportingSubscriptions(msg2);
+            throw new AssertionError("Expected MailboxFullException");
+        } catch (final MailboxFullException e) {
+            assertThat(subscriptions.get(sub1.id).messages).containsExactly(msg1);
+            assertThat(subscriptions.get(sub1.id).overflowCount).isEqualTo(1);
+            assertThat(subscriptions.get(sub2.id).messages).containsExactly(msg1, msg2);
+        }
+    }
+
+    @Test
+    public void subscriptionsUseTheDefaultMailboxLimits() {
+        service = new SubscriptionService(subscriptions, 5, OverflowPolicy.DROP_NEWEST);
+        final Subscription result = service.createSubscription("foo", ImmutableSet.of("t1"));
+        assertThat(result.capacity).isEqualTo(5);
+        assertThat(result.overflowPolicy).isEqualTo(OverflowPolicy.DROP_NEWEST);
+    }
+
     @Test
     public void testGetAllSubscriptions() {
         final UUID id1 = UUID.randomUUID();
@@ -205,4 +276,271 @@ public class SubscriptionServiceTest {
 
         assertThat(result).containsExactlyElementsOf(ImmutableList.copyOf(subscriptions.values()));
     }
+
+    @Test
+    public void deliveryListenersAreRunOnlyForTheirSubscription() {
+        final Subscription sub1 = service.createSubscription("foo", ImmutableSet.of("t1"));
+        final Subscription sub2 = service.createSubscription("bar", ImmutableSet.of("t2"));
+        final AtomicInteger calls = new AtomicInteger();
+        final Runnable listener = calls::incrementAndGet;
+        service.addDeliveryListener(sub1.id, listener);
+
+        service.sendMessageToSupportingSubscriptions(new Message("t1", "a"));
+        service.sendMessageToSupportingSubscriptions(new Message("t2", "b"));
+        assertThat(calls.get()).isEqualTo(1);
+
+        service.removeDeliveryListener(sub1.id, listener);
+        service.sendMessageToSupportingSubscriptions(new Message("t1", "c"));
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(service.getSubscriptionById(sub2.id).messages).hasSize(1);
+    }
+
+    @Test
+    public void acknowledgedMessagesAreRemovedFromTheMailbox() {
+        final Subscription sub = service.createSubscription("foo", ImmutableSet.of("t1"));
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        service.sendMessageToSupportingSubscriptions(msg1);
+        service.sendMessageToSupportingSubscriptions(msg2);
+
+        final Subscription result = service.acknowledgeMessages(sub.id, 1);
+        assertThat(result.messages).containsExactly(msg2);
+        assertThat(service.getSubscriptionById(sub.id).messages).containsExactly(msg2);
+    }
+
+    @Test(expected = SubscriptionNotFoundException.class)
+    public void acknowledgingAMissingSubscriptionThrows() {
+        service.acknowledgeMessages(UUID.randomUUID(), 1);
+    }
+
+    @Test
+    public void batchIsDeliveredInOrderToEverySupportingSubscription() {
+        final Subscription sub1 = service.createSubscription("foo", ImmutableSet.of("t1", "t2"));
+        final Subscription sub2 = service.createSubscription("bar", ImmutableSet.of("t2"));
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t2", "b");
+        final Message msg3 = new Message("t1", "c");
+        final Message msg4 = new Message("t3", "d");
+
+        service.sendMessagesToSupportingSubscriptions(ImmutableList.of(msg1, msg2, msg3, msg4));
+        assertThat(service.getSubscriptionById(sub1.id).messages).containsExactly(msg1, msg2, msg3);
+        assertThat(service.getSubscriptionById(sub2.id).messages).containsExactly(msg2);
+    }
+
+    @Test
+    public void batchRejectedByAFullMailboxIsStillDeliveredElsewhere() {
+        final Subscription full = service.createSubscription("foo", ImmutableSet.of("t1"), Optional.of(1),
+                Optional.of(OverflowPolicy.REJECT));
+        final Subscription other = service.createSubscription("bar", ImmutableSet.of("t1"));
+        final Message msg1 = new Message("t1", "a");
+        final Message msg2 = new Message("t1", "b");
+        try {
+            service.sendMessagesToSupportingSubscriptions(ImmutableList.of(msg1, msg2));
+            throw new AssertionError("Expected MailboxFullException");
+        } catch (final MailboxFullException e) {
+            assertThat(e.getMessage()).contains(full.id.toString());
+        }
+        assertThat(service.getSubscriptionById(full.id).messages).containsExactly(msg1);
+        assertThat(service.getSubscriptionById(other.id).messages).containsExactly(msg1, msg2);
+    }
+
+    @Test
+    public void batchOfSubscriptionsIsCreatedAndIndexed() {
+        final ImmutableList<Subscription> result = service.createSubscriptions(ImmutableList.of(
+                new SubscriptionRequest("foo", ImmutableList.of("t1", "t2"), null, null),
+                new SubscriptionRequest("bar", ImmutableList.of("t2"), 1, "reject")));
+        assertThat(result).extracting("name").containsExactly("foo", "bar");
+        assertThat(result.get(1).capacity).isEqualTo(1);
+        assertThat(result.get(1).overflowPolicy).isEqualTo(OverflowPolicy.REJECT);
+        assertThat(subscriptions).containsOnlyKeys(result.get(0).id, result.get(1).id);
+
+        final Message message = new Message("t2", "a");
+        service.sendMessageToSupportingSubscriptions(message);
+        assertThat(service.getSubscriptionById(result.get(0).id).messages).containsExactly(message);
+        assertThat(service.getSubscriptionById(result.get(1).id).messages).containsExactly(message);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBatchOfSubscriptionsCreatesNothing() {
+        try {
+            service.createSubscriptions(ImmutableList.of(
+                    new SubscriptionRequest("foo", ImmutableList.of("t1"), null, null),
+                    new SubscriptionRequest("bar", ImmutableList.of("t1"), 0, null)));
+        } finally {
+            assertThat(subscriptions).isEmpty();
+        }
+    }
+
+    @Test
+    public void batchOfUpdatesSkipsMissingSubscriptions() {
+        final Subscription sub = service.createSubscription("foo", ImmutableSet.of("t1"));
+        final UUID missing = UUID.randomUUID();
+        final ImmutableList<Optional<Subscription>> result = service.updateSubscriptions(ImmutableList.of(
+                new SubscriptionUpdateRequest(missing, "bar", null),
+                new SubscriptionUpdateRequest(sub.id, "baz", ImmutableList.of("t2"))));
+        assertThat(result.get(0).isPresent()).isFalse();
+        assertThat(result.get(1).get().name).isEqualTo("baz");
+        assertThat(result.get(1).get().messageTypes).containsOnly("t2");
+        assertThat(service.getSubscriptionById(sub.id).name).isEqualTo("baz");
+    }
+
+    @Test
+    public void shardedStoreDeliversAcrossEveryShardInParallel() {
+        // A threshold of one, so that every delivery fans out in parallel
+        final SubscriptionService sharded = new SubscriptionService(4, 1, OverflowPolicy.REJECT, 1);
+        try {
+            final List<Subscription> created = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                created.add(sharded.createSubscription("sub-" + i, ImmutableSet.of(i % 2 == 0 ? "t1" : "t2")));
+            }
+            assertThat(sharded.getShardCount()).isEqualTo(4);
+            assertThat(sharded.getSubscriptions()).hasSize(100);
+
+            final Message first = new Message("t1", "a");
+            sharded.sendMessageToSupportingSubscriptions(first);
+            for (int i = 0; i < created.size(); i++) {
+                final Subscription sub = sharded.getSubscriptionById(created.get(i).id);
+                if (i % 2 == 0) {
+                    assertThat(sub.messages).containsExactly(first);
+                } else {
+                    assertThat(sub.messages).isEmpty();
+                }
+            }
+
+            // Every t1 mailbox is now full, whichever shard it's in
+            try {
+                sharded.sendMessagesToSupportingSubscriptions(ImmutableList.of(new Message("t1", "b")));
+                throw new AssertionError("Expected MailboxFullException");
+            } catch (final MailboxFullException e) {
+                assertThat(e.getMessage()).contains(created.get(0).id.toString(), created.get(98).id.toString());
+            }
+
+            final Subscription updated = sharded.updateSubscriptionById(created.get(1).id, Optional.empty(),
+                    Optional.of(ImmutableSet.of("t3")));
+            final Message third = new Message("t3", "c");
+            sharded.sendMessageToSupportingSubscriptions(third);
+            assertThat(sharded.getSubscriptionById(updated.id).messages).containsExactly(third);
+        } finally {
+            sharded.stop();
+        }
+    }
+
+    @Test
+    public void messagesAreDeliveredToSubscriptionsWithMatchingPatterns() {
+        final Subscription star = service.createSubscription("star", ImmutableSet.of("orders.*"));
+        final Subscription hash = service.createSubscription("hash", ImmutableSet.of("orders.#", "payments"));
+        final Message created = new Message("orders.created", "a");
+        final Message nested = new Message("orders.eu.created", "b");
+        final Message payment = new Message("payments", "c");
+        final Message other = new Message("shipments.created", "d");
+        service.sendMessagesToSupportingSubscriptions(ImmutableList.of(created, nested, payment, other));
+        assertThat(service.getSubscriptionById(star.id).messages).containsExactly(created);
+        assertThat(service.getSubscriptionById(hash.id).messages).containsExactly(created, nested, payment);
+        assertThat(service.getSubscriptionById(hash.id).messageCountsByType)
+                .containsEntry("orders.#", 0L).containsEntry("orders.eu.created", 1L);
+
+        // Dropping the pattern drops the messages it matched, and stops any more being delivered
+        service.updateSubscriptionById(hash.id, Optional.empty(), Optional.of(ImmutableSet.of("payments")));
+        assertThat(service.getSubscriptionById(hash.id).messages).containsExactly(payment);
+        final Message later = new Message("orders.created", "e");
+        service.sendMessageToSupportingSubscriptions(later);
+        assertThat(service.getSubscriptionById(star.id).messages).containsExactly(created, later);
+        assertThat(service.getSubscriptionById(hash.id).messages).containsExactly(payment);
+    }
+
+    @Test
+    public void messagesMatchingATypeAndPatternsAreDeliveredOnce() {
+        final Subscription sub = service.createSubscription("foo",
+                ImmutableSet.of("orders.created", "orders.*", "orders.#"));
+        final Subscription patterns = service.createSubscription("bar", ImmutableSet.of("orders.*", "#.created"));
+        final Message single = new Message("orders.created", "a");
+        service.sendMessageToSupportingSubscriptions(single);
+        final Message batched = new Message("orders.created", "b");
+        service.sendMessagesToSupportingSubscriptions(ImmutableList.of(batched));
+        assertThat(service.getSubscriptionById(sub.id).messages).containsExactly(single, batched);
+        assertThat(service.getSubscriptionById(patterns.id).messages).containsExactly(single, batched);
+    }
+
+    @Test
+    public void deletedSubscriptionsStopReceivingMessages() {
+        final Subscription sub = service.createSubscription("foo", ImmutableSet.of("t1"));
+        final Subscription other = service.createSubscription("bar", ImmutableSet.of("t1"));
+        final AtomicInteger wakeups = new AtomicInteger();
+        service.addDeliveryListener(sub.id, wakeups::incrementAndGet);
+
+        assertThat(service.deleteSubscriptionById(sub.id).id).isEqualTo(sub.id);
+        assertThat(service.subscriptionExists(sub.id)).isFalse();
+        assertThat(wakeups.get()).isEqualTo(1);
+        final Message message = new Message("t1", "a");
+        service.sendMessageToSupportingSubscriptions(message);
+        assertThat(service.getSubscriptionById(other.id).messages).containsExactly(message);
+
+        try {
+            service.deleteSubscriptionById(sub.id);
+            throw new AssertionError("Expected SubscriptionNotFoundException");
+        } catch (final SubscriptionNotFoundException e) {
+            assertThat(e.getMessage()).contains(sub.id.toString());
+        }
+    }
+
+    @Test
+    public void onlyIdleSubscriptionsExpire() {
+        final AtomicLong now = new AtomicLong(1000);
+        service = new SubscriptionService(subscriptions, now::get);
+        final Subscription idle = service.createSubscription("idle", ImmutableSet.of("t1"));
+        final Subscription read = service.createSubscription("read", ImmutableSet.of("t1"));
+        final Subscription streamed = service.createSubscription("streamed", ImmutableSet.of("t1"));
+        service.addDeliveryListener(streamed.id, () -> { });
+        now.set(2000);
+        service.getSubscriptionById(read.id);
+
+        assertThat(service.expireIdleSubscriptions(1500)).isEqualTo(1);
+        assertThat(service.subscriptionExists(idle.id)).isFalse();
+        assertThat(service.subscriptionExists(read.id)).isTrue();
+        assertThat(service.subscriptionExists(streamed.id)).isTrue();
+        assertThat(service.expireIdleSubscriptions(1500)).isEqualTo(0);
+        assertThat(service.expireIdleSubscriptions(2001)).isEqualTo(1);
+        assertThat(service.subscriptionExists(read.id)).isFalse();
+    }
+
+    @Test
+    public void subscriptionReadJustBeforeItsRemovalDoesNotExpire() {
+        final AtomicLong now = new AtomicLong(1000);
+        final AtomicReference<UUID> readBeforeRemoval = new AtomicReference<>();
+        // Reads the subscription after it was found to be idle, but before it's removed
+        subscriptions = new ConcurrentHashMap<UUID, Subscription>() {
+            @Override
+            public Subscription computeIfPresent(final UUID key,
+                    final BiFunction<? super UUID, ? super Subscription, ? extends Subscription> remapping) {
+                if (key.equals(readBeforeRemoval.get())) {
+                    now.set(3000);
+                    service.getSubscriptionById(key);
+                }
+                return super.computeIfPresent(key, remapping);
+            }
+        };
+        service = new SubscriptionService(subscriptions, now::get);
+        final Subscription sub = service.createSubscription("foo", ImmutableSet.of("t1"));
+        now.set(2000);
+        readBeforeRemoval.set(sub.id);
+
+        assertThat(service.expireIdleSubscriptions(1500)).isEqualTo(0);
+        assertThat(service.subscriptionExists(sub.id)).isTrue();
+    }
+
+    @Test
+    public void typesAreForgottenOnceNoSubscriptionSupportsThem() {
+        final Message message = new Message("forgotten-1", "a");
+        final Subscription first = service.createSubscription("foo", ImmutableSet.of("forgotten-1", "forgotten-2"));
+        final Subscription second = service.createSubscription("bar", ImmutableSet.of("forgotten-2"));
+        assertThat(service.getTypeRegistry().find("forgotten-1")).isNotEqualTo(MessageTypes.UNKNOWN);
+        assertThat(service.getSubscriptionById(first.id).supportsType(message)).isTrue();
+
+        service.updateSubscriptionById(first.id, Optional.empty(), Optional.of(ImmutableSet.of("forgotten-2")));
+        assertThat(service.getTypeRegistry().find("forgotten-1")).isEqualTo(MessageTypes.UNKNOWN);
+        service.deleteSubscriptionById(first.id);
+        assertThat(service.getTypeRegistry().find("forgotten-2")).isNotEqualTo(MessageTypes.UNKNOWN);
+        service.deleteSubscriptionById(second.id);
+        assertThat(service.getTypeRegistry().find("forgotten-2")).isEqualTo(MessageTypes.UNKNOWN);
+    }
 }